@@ -0,0 +1,198 @@
+package com.pingidentity.pingone.authngateway.benchmark;
+
+import java.net.URISyntaxException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.pingidentity.pingone.authngateway.config.HeaderPolicies;
+import com.pingidentity.pingone.authngateway.exceptions.EncryptionException;
+import com.pingidentity.pingone.authngateway.helpers.EncryptionHelper;
+import com.pingidentity.pingone.authngateway.helpers.UpstreamPools;
+import com.pingidentity.pingone.authngateway.helpers.UpstreamUriBuilder;
+import com.pingidentity.pingone.authngateway.store.impl.CookieRetainedValuesStore;
+import com.pingidentity.pingone.authngateway.store.impl.InMemoryRetainedValuesStore;
+import com.pingidentity.pingone.authngateway.validators.ValidatorRunner;
+
+/**
+ * Gateway components wired the way application.yml.template configures them,
+ * without starting Spring.
+ */
+public class BenchmarkFixtures {
+
+	public static final String EnvironmentId = "7b1fa32e-6a0f-4a8c-9f0e-3c2f6fb1d5a4";
+	public static final String AuthHost = "auth.pingone.com";
+	public static final String ApiHost = "api.pingone.com";
+	public static final String EncryptionKey = "{\"kty\":\"oct\",\"k\":\"Fdh9u8rINxfivbrianbbVT1u232VQBZYKx1HGAGPt2I\"}";
+	public static final String[] RetainValues = { "email", "username", "invoiceEmail" };
+	public static final String[] ClaimAliases = { "email:e", "username:u", "invoiceEmail:ie" };
+	public static final String[] RetainValueKeys = { "username", "invoiceEmail" };
+
+	public static final String HandleKey = "q3l8bV0xk2J6m4Qe9RzT1uWc7YpA5sDf0gHjKlNoPqU";
+	public static final String FlowId = "03a5c8f1-2b7e-4d6a-9c1f-8e4b2a7d6c30";
+
+	public static EncryptionHelper newEncryptionHelper() throws EncryptionException {
+		return newEncryptionHelper("A128CBC-HS256");
+	}
+
+	public static EncryptionHelper newEncryptionHelper(String encryptionMethod) throws EncryptionException {
+		return newEncryptionHelper(encryptionMethod, false);
+	}
+
+	// compact: DEFLATE and short claim aliases
+	public static EncryptionHelper newEncryptionHelper(String encryptionMethod, boolean compact) throws EncryptionException {
+		EncryptionHelper encryptionHelper = new EncryptionHelper();
+
+		ReflectionTestUtils.setField(encryptionHelper, "encryptionJWK", EncryptionKey);
+		ReflectionTestUtils.setField(encryptionHelper, "issuer", EnvironmentId);
+		ReflectionTestUtils.setField(encryptionHelper, "retainAttributeList", RetainValues);
+		ReflectionTestUtils.setField(encryptionHelper, "encryptionMethod", encryptionMethod);
+
+		if (compact) {
+			ReflectionTestUtils.setField(encryptionHelper, "compress", true);
+			ReflectionTestUtils.setField(encryptionHelper, "claimAliasList", ClaimAliases);
+		}
+
+		encryptionHelper.init();
+
+		return encryptionHelper;
+	}
+
+	public static CookieRetainedValuesStore newCookieStore(EncryptionHelper encryptionHelper) {
+		CookieRetainedValuesStore store = new CookieRetainedValuesStore();
+		ReflectionTestUtils.setField(store, "encryptionHelper", encryptionHelper);
+
+		return store;
+	}
+
+	public static InMemoryRetainedValuesStore newInMemoryStore() throws EncryptionException {
+		InMemoryRetainedValuesStore store = new InMemoryRetainedValuesStore();
+		ReflectionTestUtils.setField(store, "retainAttributeList", RetainValues);
+		ReflectionTestUtils.setField(store, "handleKey", HandleKey);
+		ReflectionTestUtils.setField(store, "ttlSeconds", 1800L);
+		ReflectionTestUtils.setField(store, "maxEntries", 100000);
+		ReflectionTestUtils.setField(store, "shardCount", 16);
+
+		store.init();
+
+		return store;
+	}
+
+	public static HeaderPolicies newHeaderPolicies() {
+		HeaderPolicies headerPolicies = new HeaderPolicies();
+		ReflectionTestUtils.setField(headerPolicies, "requestDeny", new String[] { "host", "content-length", "expect" });
+		ReflectionTestUtils.setField(headerPolicies, "responseDeny",
+				new String[] { "content-encoding", "content-type", "content-length", "access-control-*" });
+		ReflectionTestUtils.setField(headerPolicies, "environment", new MockEnvironment());
+
+		headerPolicies.init();
+
+		return headerPolicies;
+	}
+
+	public static UpstreamPools newUpstreamPools(String... authHosts) throws URISyntaxException {
+		UpstreamPools upstreamPools = new UpstreamPools();
+		ReflectionTestUtils.setField(upstreamPools, "authHosts", authHosts);
+		ReflectionTestUtils.setField(upstreamPools, "apiHosts", new String[] { ApiHost });
+		ReflectionTestUtils.setField(upstreamPools, "ewmaWeight", 0.3);
+		ReflectionTestUtils.setField(upstreamPools, "maxFailures", 5);
+		ReflectionTestUtils.setField(upstreamPools, "ejectionMillis", 30000L);
+		ReflectionTestUtils.setField(upstreamPools, "maxEjectionMillis", 300000L);
+		// no health checks against the real hosts from a benchmark
+		ReflectionTestUtils.setField(upstreamPools, "healthCheckIntervalMillis", Long.MAX_VALUE);
+		ReflectionTestUtils.setField(upstreamPools, "healthCheckTimeoutMillis", 2000L);
+		ReflectionTestUtils.setField(upstreamPools, "healthCheckPath", "/");
+		ReflectionTestUtils.setField(upstreamPools, "unhealthyThreshold", 2);
+
+		upstreamPools.init();
+
+		return upstreamPools;
+	}
+
+	public static UpstreamUriBuilder newUpstreamUriBuilder() throws URISyntaxException {
+		UpstreamUriBuilder upstreamUriBuilder = new UpstreamUriBuilder();
+		ReflectionTestUtils.setField(upstreamUriBuilder, "maxCacheEntries", 1024);
+		ReflectionTestUtils.setField(upstreamUriBuilder, "upstreamPools", newUpstreamPools(AuthHost));
+
+		upstreamUriBuilder.init();
+
+		return upstreamUriBuilder;
+	}
+
+	public static ValidatorRunner newValidatorRunner() {
+		ValidatorRunner validatorRunner = new ValidatorRunner();
+		ReflectionTestUtils.setField(validatorRunner, "threads", 8);
+		ReflectionTestUtils.setField(validatorRunner, "maxPending", 256);
+		ReflectionTestUtils.setField(validatorRunner, "timeoutMillis", 5000L);
+		ReflectionTestUtils.setField(validatorRunner, "deadlineMillis", 10000L);
+
+		validatorRunner.init();
+
+		return validatorRunner;
+	}
+
+	public static JSONObject newRetainedValues() {
+		JSONObject retainedValues = new JSONObject();
+		retainedValues.put("username", "jane.citizen@example.com");
+		retainedValues.put("email", "jane.citizen@example.com");
+		retainedValues.put("invoiceEmail", "jane.citizen@example.com");
+
+		return retainedValues;
+	}
+
+	public static String newRegistrationBody() {
+		JSONObject user = new JSONObject();
+		user.put("username", "jane.citizen@example.com");
+		user.put("email", "jane.citizen@example.com");
+		user.put("invoiceNumber", "INV-jane.citizen-000123");
+		user.put("password", "2FederateM0re!");
+
+		JSONObject body = new JSONObject();
+		body.put("user", user);
+
+		return body.toString();
+	}
+
+	public static String newFlowResponse() {
+		JSONObject user = new JSONObject();
+		user.put("username", "jane.citizen@example.com");
+		user.put("email", "jane.citizen@example.com");
+
+		JSONObject formData = new JSONObject();
+		formData.put("user", user);
+
+		JSONObject response = new JSONObject();
+		response.put("id", FlowId);
+		response.put("status", "VERIFICATION_CODE_REQUIRED");
+		response.put("formData", formData);
+
+		return response.toString();
+	}
+
+	// a flow response as PingOne returns it: the form data plus HAL links and embedded resources the gateway never reads
+	public static String newLargeFlowResponse() {
+		JSONObject response = new JSONObject(newFlowResponse());
+
+		JSONObject links = new JSONObject();
+		for (String rel : new String[] { "self", "user.register", "user.verify", "password.reset", "password.forgot", "session", "signOnPage" })
+			links.put(rel, new JSONObject().put("href", "https://" + AuthHost + "/" + EnvironmentId + "/flows/" + FlowId + "/" + rel));
+		response.put("_links", links);
+
+		JSONArray fields = new JSONArray();
+		for (int i = 0; i < 40; i++)
+			fields.put(new JSONObject().put("name", "user.attribute" + i).put("type", "TEXT").put("required", i % 3 == 0)
+					.put("label", "Attribute " + i).put("validation", new JSONObject().put("regex", "^[a-zA-Z0-9 ]{1,64}$").put("maxLength", 64)));
+
+		JSONObject form = new JSONObject();
+		form.put("id", "registration-form");
+		form.put("fields", fields);
+		form.put("pages", new JSONArray().put(new JSONObject().put("title", "Register").put("fields", fields)));
+
+		response.put("_embedded", new JSONObject().put("form", form).put("application", new JSONObject().put("name", "Gateway").put("id", FlowId)));
+
+		return response.toString();
+	}
+
+}
@@ -0,0 +1,53 @@
+package com.pingidentity.pingone.authngateway.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs the gateway benchmarks with the GC profiler, so each result is reported
+ * as ops/s with the bytes allocated per op (gc.alloc.rate.norm).
+ *
+ * Usage: mvn -Pbenchmark compile exec:exec [-Dbenchmark.include=regex]
+ *
+ * Any further arguments are passed to JMH as command line options, e.g.
+ * java -cp ... BenchmarkRunner EncryptionHelper -f 1 -wi 2 -i 3
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws Exception {
+		String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+
+		String[] jmhArgs = new String[Math.max(0, args.length - 1)];
+		System.arraycopy(args, Math.min(1, args.length), jmhArgs, 0, jmhArgs.length);
+
+		CommandLineOptions commandLine = new CommandLineOptions(jmhArgs);
+
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.parent(commandLine)
+				.include(include)
+				.addProfiler(GCProfiler.class)
+				.jvmArgsAppend("-Dlogback.configurationFile=logback-benchmark.xml");
+
+		// defaults for options that were not given on the command line
+		if (!commandLine.getForkCount().hasValue())
+			options.forks(1);
+
+		if (!commandLine.getWarmupIterations().hasValue())
+			options.warmupIterations(3).warmupTime(TimeValue.seconds(2));
+
+		if (!commandLine.getMeasurementIterations().hasValue())
+			options.measurementIterations(5).measurementTime(TimeValue.seconds(2));
+
+		if (!commandLine.getTimeUnit().hasValue())
+			options.timeUnit(TimeUnit.SECONDS);
+
+		new Runner(options.build()).run();
+	}
+
+}
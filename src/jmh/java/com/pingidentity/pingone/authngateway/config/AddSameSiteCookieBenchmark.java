@@ -0,0 +1,50 @@
+package com.pingidentity.pingone.authngateway.config;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * The SameSite filter runs on every request. The response is created inside
+ * the benchmark because the filter rewrites its Set-Cookie headers, so its
+ * allocation is included in the bytes per op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class AddSameSiteCookieBenchmark {
+
+	private AddSameSiteCookie filter;
+	private MockHttpServletRequest request;
+	private FilterChain chain;
+
+	@Setup
+	public void setup() {
+		this.filter = new AddSameSiteCookie();
+		this.request = new MockHttpServletRequest("GET", "/");
+		this.chain = (request, response) -> {
+		};
+	}
+
+	@Benchmark
+	public MockHttpServletResponse doFilter() throws IOException, ServletException {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		response.addCookie(new Cookie("ST-RC-03a5c8f1-2b7e-4d6a-9c1f-8e4b2a7d6c30", "eyJhbGciOiJkaXIiLCJlbmMiOiJBMTI4Q0JDLUhTMjU2In0"));
+		response.addCookie(new Cookie("JSESSIONID", "6F1D3C2B9A8E7F60"));
+
+		this.filter.doFilter(this.request, response, this.chain);
+
+		return response;
+	}
+
+}
@@ -0,0 +1,166 @@
+package com.pingidentity.pingone.authngateway.controllers;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpRequest;
+
+import javax.servlet.http.Cookie;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import com.pingidentity.pingone.authngateway.benchmark.BenchmarkFixtures;
+import com.pingidentity.pingone.authngateway.exceptions.CustomAPIErrorException;
+import com.pingidentity.pingone.authngateway.exceptions.EncryptionException;
+import com.pingidentity.pingone.authngateway.helpers.EncryptionHelper;
+import com.pingidentity.pingone.authngateway.helpers.RequestPayload;
+import com.pingidentity.pingone.authngateway.helpers.RetainedValues;
+import com.pingidentity.pingone.authngateway.helpers.UserContext;
+import com.pingidentity.pingone.authngateway.validators.ValidatorRegister;
+import com.pingidentity.pingone.authngateway.validators.impl.InvoiceNumber;
+
+/**
+ * Per-request work the controller does around a flow POST, without the
+ * upstream call: header copy, target URL, retained value cookie handling
+ * (with values that changed and values that did not) and payload validation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class GatewayControllerBenchmark {
+
+	private PingOneAuthGatewayController controller;
+
+	private MultiValueMap<String, String> headers;
+	private MockHttpServletRequest request;
+	private MockHttpServletRequest assetRequest;
+	private String body;
+	private RequestPayload requestPayload;
+	private String flowResponse;
+	private JSONObject retainedValues;
+	private RetainedValues issuedValues;
+
+	@Setup
+	public void setup() throws Exception {
+		EncryptionHelper encryptionHelper = BenchmarkFixtures.newEncryptionHelper();
+
+		ValidatorRegister validatorRegister = new ValidatorRegister();
+
+		InvoiceNumber invoiceNumber = new InvoiceNumber();
+		ReflectionTestUtils.setField(invoiceNumber, "attributeName", "invoiceNumber");
+		ReflectionTestUtils.setField(invoiceNumber, "uiField", "user.invoiceNumber");
+		ReflectionTestUtils.setField(invoiceNumber, "emailField", "invoiceEmail");
+		ReflectionTestUtils.setField(invoiceNumber, "registeredValidators", validatorRegister);
+		invoiceNumber.init();
+
+		this.controller = new PingOneAuthGatewayController();
+		ReflectionTestUtils.setField(this.controller, "authHost", BenchmarkFixtures.AuthHost);
+		ReflectionTestUtils.setField(this.controller, "mfaAttributeName", "invoiceEmail");
+		ReflectionTestUtils.setField(this.controller, "retainValues", BenchmarkFixtures.RetainValues);
+		ReflectionTestUtils.setField(this.controller, "retainValueKeys", BenchmarkFixtures.RetainValueKeys);
+		ReflectionTestUtils.setField(this.controller, "obfuscateValues", new String[] { "password" });
+		ReflectionTestUtils.setField(this.controller, "retainedValuesStore", BenchmarkFixtures.newCookieStore(encryptionHelper));
+		ReflectionTestUtils.setField(this.controller, "registeredValidators", validatorRegister);
+		ReflectionTestUtils.setField(this.controller, "validatorRunner", BenchmarkFixtures.newValidatorRunner());
+		ReflectionTestUtils.setField(this.controller, "headerPolicies", BenchmarkFixtures.newHeaderPolicies());
+		ReflectionTestUtils.setField(this.controller, "upstreamUriBuilder", BenchmarkFixtures.newUpstreamUriBuilder());
+
+		this.controller.init();
+
+		this.headers = new LinkedMultiValueMap<String, String>();
+		this.headers.add("host", "gateway.example.com");
+		this.headers.add("connection", "keep-alive");
+		this.headers.add("content-length", "154");
+		this.headers.add("accept", "application/json");
+		this.headers.add("accept-encoding", "gzip, deflate, br");
+		this.headers.add("accept-language", "en-AU,en;q=0.9");
+		this.headers.add("content-type", "application/vnd.pingidentity.user.register+json");
+		this.headers.add("origin", "https://apps.pingone.com");
+		this.headers.add("referer", "https://apps.pingone.com/signon/?flowId=" + BenchmarkFixtures.FlowId);
+		this.headers.add("user-agent", "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/118.0 Safari/537.36");
+
+		this.retainedValues = BenchmarkFixtures.newRetainedValues();
+		this.body = BenchmarkFixtures.newRegistrationBody();
+		this.requestPayload = new RequestPayload(this.body);
+		this.flowResponse = BenchmarkFixtures.newFlowResponse();
+
+		String cookieValue = encryptionHelper.generate(BenchmarkFixtures.FlowId, this.retainedValues);
+		this.issuedValues = encryptionHelper.read(BenchmarkFixtures.FlowId, cookieValue);
+
+		this.request = new MockHttpServletRequest("POST", "/" + BenchmarkFixtures.EnvironmentId + "/flows/" + BenchmarkFixtures.FlowId);
+		this.request.setQueryString("validatePassword=false");
+		this.request.setCookies(new Cookie("ST-RC-" + BenchmarkFixtures.FlowId, cookieValue));
+		this.request.addHeader(HttpHeaders.CONTENT_TYPE, "application/vnd.pingidentity.user.register+json");
+
+		this.assetRequest = new MockHttpServletRequest("GET", "/signon/assets/js/main.6f2c1b9e.js");
+		this.assetRequest.setQueryString("v=2.31.0");
+	}
+
+	@Benchmark
+	public HttpRequest copyRequestHeaders() throws URISyntaxException {
+		HttpRequest.Builder targetRequestBuilder = HttpRequest.newBuilder().uri(new URI("https://auth.pingone.com/"));
+
+		this.controller.copyRequestHeaders(this.headers, this.request, targetRequestBuilder);
+
+		return targetRequestBuilder.build();
+	}
+
+	@Benchmark
+	public URI getTargetUrl() throws URISyntaxException {
+		return this.controller.getTargetUrl(this.request);
+	}
+
+	@Benchmark
+	public URI getAssetTargetUrl() throws URISyntaxException {
+		return this.controller.getTargetUrl(this.assetRequest, true);
+	}
+
+	@Benchmark
+	public JSONObject updateRetainedValuesRequest() throws EncryptionException {
+		return this.controller.updateRetainedValuesRequest(this.request, new MockHttpServletResponse(), BenchmarkFixtures.FlowId,
+				new RequestPayload(this.body));
+	}
+
+	@Benchmark
+	public JSONObject updateRetainedValuesResponse() throws EncryptionException {
+		// values that are not on the client yet, so the cookie is written
+		RetainedValues retainedValues = new RetainedValues();
+		this.retainedValues.keySet().forEach(key -> retainedValues.put(key, this.retainedValues.get(key)));
+
+		return this.controller.updateRetainedValuesResponse(new MockHttpServletResponse(), this.flowResponse, BenchmarkFixtures.FlowId,
+				retainedValues, new UserContext());
+	}
+
+	@Benchmark
+	public JSONObject updateRetainedValuesResponseUnchanged() throws EncryptionException {
+		// the values read from the cookie, which the flow response does not change
+		return this.controller.updateRetainedValuesResponse(new MockHttpServletResponse(), this.flowResponse, BenchmarkFixtures.FlowId,
+				this.issuedValues, new UserContext());
+	}
+
+	@Benchmark
+	public boolean validateRequestPayload() throws CustomAPIErrorException {
+		return this.controller.validateRequestPayload(this.retainedValues, this.requestPayload);
+	}
+
+	@Benchmark
+	public boolean parseRetainAndValidate() throws EncryptionException, CustomAPIErrorException {
+		// what performPOST does with the body before forwarding it
+		RequestPayload requestPayload = new RequestPayload(this.body);
+		RetainedValues retainedValues = this.controller.updateRetainedValuesRequest(this.request, new MockHttpServletResponse(),
+				BenchmarkFixtures.FlowId, requestPayload);
+
+		return this.controller.validateRequestPayload(retainedValues, requestPayload);
+	}
+
+}
@@ -0,0 +1,66 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.pingidentity.pingone.authngateway.benchmark.BenchmarkFixtures;
+import com.pingidentity.pingone.authngateway.exceptions.EncryptionException;
+
+/**
+ * Retained value cookie encryption, run once or twice on every flow request.
+ *
+ * generate/read use JweCookieCodec with each supported encryption method,
+ * with and without the compact encoding (DEFLATE and claim aliases); the
+ * Jose4j variants are the general jose4j A128CBC-HS256 path the codec
+ * replaced, kept as the baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class EncryptionHelperBenchmark {
+
+	@Param({ "A128CBC-HS256", "A256GCM" })
+	private String encryptionMethod;
+
+	@Param({ "false", "true" })
+	private boolean compact;
+
+	private EncryptionHelper encryptionHelper;
+	private JSONObject retainedValues;
+	private String encryptedJwt;
+	private String jose4jEncryptedJwt;
+
+	@Setup
+	public void setup() throws EncryptionException {
+		this.encryptionHelper = BenchmarkFixtures.newEncryptionHelper(this.encryptionMethod, this.compact);
+		this.retainedValues = BenchmarkFixtures.newRetainedValues();
+		this.encryptedJwt = this.encryptionHelper.generate(BenchmarkFixtures.FlowId, this.retainedValues);
+		this.jose4jEncryptedJwt = this.encryptionHelper.generateWithJose4j(BenchmarkFixtures.FlowId, this.retainedValues);
+	}
+
+	@Benchmark
+	public String generate() throws EncryptionException {
+		return this.encryptionHelper.generate(BenchmarkFixtures.FlowId, this.retainedValues);
+	}
+
+	@Benchmark
+	public JSONObject read() throws EncryptionException {
+		return this.encryptionHelper.read(BenchmarkFixtures.FlowId, this.encryptedJwt);
+	}
+
+	@Benchmark
+	public String generateJose4j() throws EncryptionException {
+		return this.encryptionHelper.generateWithJose4j(BenchmarkFixtures.FlowId, this.retainedValues);
+	}
+
+	@Benchmark
+	public JSONObject readJose4j() throws EncryptionException {
+		return this.encryptionHelper.readWithJose4j(BenchmarkFixtures.FlowId, this.jose4jEncryptedJwt);
+	}
+
+}
@@ -0,0 +1,65 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Filtering the headers of a PingOne flow response: the compiled policy
+ * against the equalsIgnoreCase chain and toLowerCase().startsWith check the
+ * controller used to run for every header.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class HeaderPolicyBenchmark {
+
+	private static final String[] ResponseHeaders = { ":status", "Date", "Content-Type", "Content-Length",
+			"Connection", "Content-Encoding", "Access-Control-Allow-Origin", "Access-Control-Allow-Credentials",
+			"Cache-Control", "Correlation-Id", "Set-Cookie", "Strict-Transport-Security", "Vary", "X-Content-Type-Options" };
+
+	private HeaderPolicy headerPolicy;
+	private List<String> connectionTokens;
+
+	@Setup
+	public void setup() {
+		this.headerPolicy = HeaderPolicy.compile(
+				Arrays.asList("content-encoding", "content-type", "content-length", "access-control-*"),
+				Collections.emptyList());
+		this.connectionTokens = Collections.emptyList();
+	}
+
+	@Benchmark
+	public int headerPolicy() {
+		int forwarded = 0;
+
+		for (String headerName : ResponseHeaders)
+			if (this.headerPolicy.isForwarded(headerName, this.connectionTokens))
+				forwarded++;
+
+		return forwarded;
+	}
+
+	@Benchmark
+	public int equalsIgnoreCaseChain() {
+		int forwarded = 0;
+
+		for (String headerName : ResponseHeaders) {
+			if (headerName.equalsIgnoreCase(":status") || headerName.equalsIgnoreCase("content-encoding")
+					|| headerName.equalsIgnoreCase("content-type") || headerName.equalsIgnoreCase("content-length")
+					|| headerName.toLowerCase().startsWith("access-control"))
+				continue;
+
+			forwarded++;
+		}
+
+		return forwarded;
+	}
+
+}
@@ -0,0 +1,49 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.pingidentity.pingone.authngateway.benchmark.BenchmarkFixtures;
+
+/**
+ * Reading the retained claims from formData.user of a flow response: the
+ * streaming extractor against building the org.json DOM it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class JsonClaimExtractorBenchmark {
+
+	@Param({ "small", "large" })
+	private String payloadSize;
+
+	private JsonClaimExtractor extractor;
+	private String payload;
+
+	@Setup
+	public void setup() {
+		this.extractor = new JsonClaimExtractor(BenchmarkFixtures.RetainValues, "formData", "user");
+		this.payload = this.payloadSize.equals("large") ? BenchmarkFixtures.newLargeFlowResponse() : BenchmarkFixtures.newFlowResponse();
+	}
+
+	@Benchmark
+	public Map<String, Object> extract() {
+		return this.extractor.extract(this.payload).getClaims();
+	}
+
+	@Benchmark
+	public JSONObject jsonObject() {
+		JSONObject jsonPayload = new JSONObject(this.payload);
+		JSONObject formDataPayload = jsonPayload.has("formData") ? jsonPayload.getJSONObject("formData") : jsonPayload;
+
+		return formDataPayload.has("user") ? formDataPayload.getJSONObject("user") : formDataPayload;
+	}
+
+}
@@ -0,0 +1,66 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.net.URISyntaxException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.pingidentity.pingone.authngateway.benchmark.BenchmarkFixtures;
+
+/**
+ * What choosing an upstream address and reporting the request back costs
+ * each proxied request, from several threads at once as under load. One
+ * address is the single-host setup, which skips the choice.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Threads(4)
+public class UpstreamPoolBenchmark {
+
+	private static final long RequestNanos = 20_000_000L;
+
+	@Param({ "1", "3" })
+	private int addressCount;
+
+	private UpstreamPools upstreamPools;
+	private UpstreamPool pool;
+
+	@Setup
+	public void setup() throws URISyntaxException {
+		String[] hosts = new String[this.addressCount];
+
+		for (int i = 0; i < hosts.length; i++)
+			hosts[i] = "auth-" + i + ".pingone.com";
+
+		this.upstreamPools = BenchmarkFixtures.newUpstreamPools(hosts);
+		this.pool = this.upstreamPools.getAuthPool();
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.upstreamPools.destroy();
+	}
+
+	@Benchmark
+	public UpstreamAddress choose() {
+		return this.pool.choose();
+	}
+
+	@Benchmark
+	public UpstreamAddress chooseAndRecord() {
+		UpstreamAddress address = this.pool.choose();
+
+		address.started();
+		address.finished(RequestNanos, true);
+
+		return address;
+	}
+
+}
@@ -0,0 +1,57 @@
+package com.pingidentity.pingone.authngateway.store;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.pingidentity.pingone.authngateway.benchmark.BenchmarkFixtures;
+import com.pingidentity.pingone.authngateway.exceptions.EncryptionException;
+import com.pingidentity.pingone.authngateway.helpers.RetainedValues;
+
+/**
+ * Loading and saving a flow's retained values with the cookie store (decrypt
+ * and encrypt) and the in-memory store (handle HMAC and a shard lookup).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class RetainedValuesStoreBenchmark {
+
+	@Param({ "cookie", "memory" })
+	private String store;
+
+	private IRetainedValuesStore retainedValuesStore;
+	private String handle;
+
+	@Setup
+	public void setup() throws EncryptionException {
+		this.retainedValuesStore = this.store.equals("memory") ? BenchmarkFixtures.newInMemoryStore()
+				: BenchmarkFixtures.newCookieStore(BenchmarkFixtures.newEncryptionHelper());
+
+		this.handle = this.retainedValuesStore.save(BenchmarkFixtures.FlowId, newRetainedValues());
+	}
+
+	@Benchmark
+	public RetainedValues load() throws EncryptionException {
+		return this.retainedValuesStore.load(BenchmarkFixtures.FlowId, this.handle);
+	}
+
+	@Benchmark
+	public String loadAndSave() throws EncryptionException {
+		RetainedValues retainedValues = this.retainedValuesStore.load(BenchmarkFixtures.FlowId, this.handle);
+		retainedValues.put("invoiceEmail", "accounts@example.com");
+
+		return this.retainedValuesStore.save(BenchmarkFixtures.FlowId, retainedValues);
+	}
+
+	private static RetainedValues newRetainedValues() {
+		RetainedValues retainedValues = new RetainedValues();
+		BenchmarkFixtures.newRetainedValues().toMap().forEach(retainedValues::put);
+
+		return retainedValues;
+	}
+
+}
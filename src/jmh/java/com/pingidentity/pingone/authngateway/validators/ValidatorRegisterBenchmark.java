@@ -0,0 +1,91 @@
+package com.pingidentity.pingone.authngateway.validators;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.pingidentity.pingone.authngateway.benchmark.BenchmarkFixtures;
+import com.pingidentity.pingone.authngateway.helpers.RequestPayload;
+
+/**
+ * Finding the validators for a registration payload among many registered
+ * ones: the attribute index against asking every validator in turn.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class ValidatorRegisterBenchmark {
+
+	@Param({ "1", "50" })
+	private int validatorCount;
+
+	private ValidatorRegister validatorRegister;
+	private Map<String, Object> userRequestPayload;
+
+	@Setup
+	public void setup() {
+		this.validatorRegister = new ValidatorRegister();
+
+		// the registration payload carries invoiceNumber, so one validator applies
+		this.validatorRegister.register(new AttributeValidator("invoiceNumber"));
+
+		for (int i = 1; i < this.validatorCount; i++)
+			this.validatorRegister.register(new AttributeValidator("attribute" + i));
+
+		this.userRequestPayload = new RequestPayload(BenchmarkFixtures.newRegistrationBody()).getUserPayload();
+	}
+
+	@Benchmark
+	public List<IValidator> getApplicableValidators() {
+		return this.validatorRegister.getApplicableValidators(this.userRequestPayload);
+	}
+
+	@Benchmark
+	public List<IValidator> linearScan() {
+		List<IValidator> applicable = new ArrayList<IValidator>();
+
+		for (IValidator validator : this.validatorRegister.getRegisteredValidators())
+			if (validator.isApplicable(this.userRequestPayload))
+				applicable.add(validator);
+
+		return applicable;
+	}
+
+	private static class AttributeValidator implements IValidator {
+
+		private final String attributeName;
+
+		private AttributeValidator(String attributeName) {
+			this.attributeName = attributeName;
+		}
+
+		@Override
+		public void validate(Map<String, Object> retainedValues, Map<String, Object> requestPayload) {
+		}
+
+		@Override
+		public boolean isApplicable(Map<String, Object> userRequestPayload) {
+			return userRequestPayload.containsKey(this.attributeName);
+		}
+
+		@Override
+		public Set<String> getTriggerAttributes() {
+			return Collections.singleton(this.attributeName);
+		}
+
+		@Override
+		public String info() {
+			return this.attributeName;
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+package com.pingidentity.pingone.authngateway.validators;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.pingidentity.pingone.authngateway.benchmark.BenchmarkFixtures;
+import com.pingidentity.pingone.authngateway.exceptions.CustomAPIErrorException;
+import com.pingidentity.pingone.authngateway.helpers.JSONObjectMap;
+import com.pingidentity.pingone.authngateway.helpers.RequestPayload;
+
+/**
+ * Validators that each wait on another service for a couple of
+ * milliseconds: run in parallel by ValidatorRunner against one after another
+ * on the request thread, plus the overhead the runner adds for a lone
+ * synchronous validator such as InvoiceNumber.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+public class ValidatorRunnerBenchmark {
+
+	private static final long CallNanos = TimeUnit.MILLISECONDS.toNanos(2);
+
+	@Param({ "3" })
+	private int validatorCount;
+
+	private ValidatorRunner validatorRunner;
+	private List<IValidator> remoteValidators;
+	private List<IValidator> localValidator;
+	private Map<String, Object> retainedValues;
+	private Map<String, Object> userRequestPayload;
+
+	@Setup
+	public void setup() {
+		this.validatorRunner = BenchmarkFixtures.newValidatorRunner();
+
+		this.remoteValidators = new ArrayList<IValidator>();
+
+		for (int i = 0; i < this.validatorCount; i++)
+			this.remoteValidators.add(new RemoteValidator());
+
+		this.localValidator = Collections.singletonList(new LocalValidator());
+
+		this.retainedValues = new JSONObjectMap(BenchmarkFixtures.newRetainedValues());
+		this.userRequestPayload = new RequestPayload(BenchmarkFixtures.newRegistrationBody()).getUserPayload();
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.validatorRunner.destroy();
+	}
+
+	@Benchmark
+	public void remoteParallel() throws CustomAPIErrorException {
+		this.validatorRunner.validate(this.remoteValidators, this.retainedValues, this.userRequestPayload);
+	}
+
+	@Benchmark
+	public void remoteSequential() throws CustomAPIErrorException {
+		for (IValidator validator : this.remoteValidators)
+			validator.validate(this.retainedValues, this.userRequestPayload);
+	}
+
+	@Benchmark
+	public void localRunner() throws CustomAPIErrorException {
+		this.validatorRunner.validate(this.localValidator, this.retainedValues, this.userRequestPayload);
+	}
+
+	@Benchmark
+	public void localDirect() throws CustomAPIErrorException {
+		this.localValidator.get(0).validate(this.retainedValues, this.userRequestPayload);
+	}
+
+	// stands in for a lookup against another service
+	private static class RemoteValidator implements IValidator {
+
+		@Override
+		public void validate(Map<String, Object> retainedValues, Map<String, Object> requestPayload) {
+			LockSupport.parkNanos(CallNanos);
+		}
+
+		@Override
+		public CompletionStage<Void> validateAsync(Map<String, Object> retainedValues, Map<String, Object> requestPayload,
+				Executor executor) {
+			return CompletableFuture.runAsync(() -> validate(retainedValues, requestPayload), executor);
+		}
+
+		@Override
+		public boolean isApplicable(Map<String, Object> userRequestPayload) {
+			return true;
+		}
+
+		@Override
+		public String info() {
+			return "remote";
+		}
+	}
+
+	private static class LocalValidator implements IValidator {
+
+		@Override
+		public void validate(Map<String, Object> retainedValues, Map<String, Object> requestPayload)
+				throws CustomAPIErrorException {
+			if (!requestPayload.containsKey("invoiceNumber"))
+				throw new CustomAPIErrorException("user.invoiceNumber", "INVALID_DATA", "", "INVALID_VALUE", "");
+		}
+
+		@Override
+		public boolean isApplicable(Map<String, Object> userRequestPayload) {
+			return true;
+		}
+
+		@Override
+		public String info() {
+			return "local";
+		}
+	}
+
+}
@@ -0,0 +1,31 @@
+package com.pingidentity.pingone.authngateway.loadtest;
+
+/**
+ * Compares the three gateway execution modes end to end: the same sign-in and
+ * registration flows are driven through an in-process gateway pointed at
+ * MockPingOne with ping.proxy.async off (sync), on (async) and with
+ * ping.threads.virtual on (virtual, Java 21+).
+ *
+ * The default concurrency is above the default Tomcat worker pool (200) and
+ * the upstream latency is high enough that the sync mode runs out of servlet
+ * threads while the other two do not.
+ *
+ * Usage: mvn -Ploadtest compile exec:java -Dexec.args="[concurrency] [flows] [latencyMillis]"
+ *
+ * Run from the project root, the mock serves TLS with cert/network.p12.
+ */
+public class ExecutionModeLoadTest {
+
+	public static void main(String[] args) throws Exception {
+		int concurrency = GatewayLoadTest.intArg(args, 0, 400);
+		int flows = GatewayLoadTest.intArg(args, 1, 4000);
+		int latencyMillis = GatewayLoadTest.intArg(args, 2, 50);
+
+		// the Users API bulkhead would otherwise reject registrations at this concurrency in every mode alike
+		if (System.getProperty("ping.userApi.bulkhead.maxQueued") == null)
+			System.setProperty("ping.userApi.bulkhead.maxQueued", String.valueOf(concurrency));
+
+		GatewayLoadTest.main(new String[] { "all", String.valueOf(concurrency), String.valueOf(flows), String.valueOf(latencyMillis) });
+	}
+
+}
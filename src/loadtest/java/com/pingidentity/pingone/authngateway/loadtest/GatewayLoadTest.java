@@ -0,0 +1,338 @@
+package com.pingidentity.pingone.authngateway.loadtest;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.pingidentity.pingone.authngateway.App;
+import com.pingidentity.pingone.authngateway.controllers.GatewayMetricsEndpoint;
+import com.pingidentity.pingone.authngateway.enrolment.EnrolmentQueue;
+
+/**
+ * Drives scripted sign-in and registration flows through an in-process gateway
+ * pointed at MockPingOne, once per execution mode: sync, async (ping.proxy.async)
+ * and virtual (ping.threads.virtual, skipped before Java 21).
+ *
+ * sign-in:      GET /as/authorize, GET /flows/{id}, POST /flows/{id} (username/password)
+ * registration: GET /as/authorize, GET /flows/{id}, POST /flows/{id} (user with invoiceNumber,
+ *               which triggers MFA enrolment), POST /flowExecutions/{id}
+ *
+ * Each flow type is run as its own phase and reports throughput, latency
+ * percentiles per flow and the upstream calls the gateway made per flow.
+ *
+ * Usage: mvn -Ploadtest compile exec:java -Dloadtest.mainClass=com.pingidentity.pingone.authngateway.loadtest.GatewayLoadTest
+ *          -Dexec.args="[sync|async|virtual|all] [concurrency] [flows] [latencyMillis] [errorPercent] [jitterMillis]"
+ *
+ * Run from the project root, the mock serves TLS with cert/network.p12.
+ */
+public class GatewayLoadTest {
+
+	private static final String EnvironmentId = "5a8d2f3c-0e4b-4c7a-9b61-2d3e4f5a6b7c";
+
+	private static final String[] FlowTypes = { "sign-in", "registration" };
+
+	public static void main(String[] args) throws Exception {
+		String modes = args.length > 0 ? args[0] : "all";
+		int concurrency = intArg(args, 1, 50);
+		int flows = intArg(args, 2, 2000);
+		int latencyMillis = intArg(args, 3, 20);
+		int errorPercent = intArg(args, 4, 0);
+		int jitterMillis = intArg(args, 5, 0);
+
+		System.setProperty("spring.devtools.restart.enabled", "false");
+		trustMockCertificate();
+
+		MockPingOne mock = new MockPingOne(latencyMillis, jitterMillis, errorPercent);
+		mock.start("cert/network.p12", "P@ssword1");
+
+		System.out.println(String.format("concurrency=%s flows=%s upstreamLatency=%sms jitter=%sms errors=%s%%",
+				concurrency, flows, latencyMillis, jitterMillis, errorPercent));
+
+		try {
+			for (String mode : new String[] { "sync", "async", "virtual" }) {
+				if (!modes.equals("all") && !modes.equals(mode))
+					continue;
+
+				if (mode.equals("virtual") && Runtime.version().feature() < 21) {
+					System.out.println("virtual: not supported by this JVM (" + System.getProperty("java.version") + ")");
+					continue;
+				}
+
+				ConfigurableApplicationContext gateway = startGateway(mock, mode);
+
+				try {
+					URI gatewayUri = URI.create("http://127.0.0.1:" + gateway.getEnvironment().getProperty("local.server.port"));
+
+					for (String flowType : FlowTypes)
+						run(mode, flowType, gatewayUri, mock, gateway.getBean(EnrolmentQueue.class), concurrency, flows);
+
+					// what /actuator/gateway reports
+					for (Map.Entry<String, Object> metrics : gateway.getBean(GatewayMetricsEndpoint.class).metrics().entrySet())
+						System.out.println(String.format("%-7s %s %s", mode, metrics.getKey(), metrics.getValue()));
+				} finally {
+					gateway.close();
+				}
+			}
+		} finally {
+			mock.stop();
+		}
+	}
+
+	private static ConfigurableApplicationContext startGateway(MockPingOne mock, String mode) {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("server.port", 0);
+		properties.put("server.ssl.enabled", false);
+		properties.put("server.http2.enabled", false);
+		properties.put("logging.level.root", "WARN");
+		properties.put("ping.environmentId", EnvironmentId);
+		properties.put("ping.authHost", mock.getHost());
+		properties.put("ping.apiHost", mock.getHost());
+		properties.put("ping.allowedOrigin", "https://apps.pingone.com");
+		properties.put("ping.customValidators.invoiceNumberValidator.attributeName", "invoiceNumber");
+		properties.put("ping.customValidators.invoiceNumberValidator.uiField", "user.invoiceNumber");
+		properties.put("ping.customValidators.invoiceNumberValidator.emailField", "invoiceEmail");
+		properties.put("ping.retainValues.claims", "email,username,invoiceEmail");
+		properties.put("ping.retainValues.responseClaims", "invoiceEmail");
+		properties.put("ping.retainValues.key", "username,invoiceEmail");
+		properties.put("ping.retainValues.encryptionKey", "{\"kty\":\"oct\",\"k\":\"Fdh9u8rINxfivbrianbbVT1u232VQBZYKx1HGAGPt2I\"}");
+		properties.put("ping.mfa.attributeName", "invoiceEmail");
+		properties.put("ping.obfuscateValues", "password");
+		properties.put("ping.proxy.async", mode.equals("async"));
+		properties.put("ping.threads.virtual", mode.equals("virtual"));
+		properties.put("oauth2.worker.clientId", "loadtest");
+		properties.put("oauth2.worker.clientSecret", "loadtest");
+
+		// command line -D overrides, e.g. -Dping.maxConnections=50
+		for (String name : System.getProperties().stringPropertyNames())
+			if (name.startsWith("ping.") || name.startsWith("server.") || name.startsWith("spring."))
+				properties.put(name, System.getProperty(name));
+
+		return new SpringApplicationBuilder(App.class).properties(properties).run();
+	}
+
+	private static void run(String mode, String flowType, URI gatewayUri, MockPingOne mock, EnrolmentQueue enrolmentQueue,
+			int concurrency, int flows) throws InterruptedException {
+		HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+				.followRedirects(HttpClient.Redirect.NEVER).build();
+
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		Semaphore inFlight = new Semaphore(concurrency);
+		CountDownLatch done = new CountDownLatch(flows);
+		AtomicInteger errors = new AtomicInteger();
+		AtomicInteger userSequence = new AtomicInteger();
+		long[] latencies = new long[flows];
+
+		Map<String, Long> callsBefore = mock.getCallCounts();
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < flows; i++) {
+			inFlight.acquire();
+
+			int index = i;
+
+			executor.execute(() -> {
+				long started = System.nanoTime();
+				try {
+					FlowSession session = new FlowSession(httpClient, gatewayUri);
+
+					if (flowType.equals("registration"))
+						session.register(userSequence.incrementAndGet());
+					else
+						session.signIn(userSequence.incrementAndGet());
+				} catch (Exception e) {
+					errors.incrementAndGet();
+				} finally {
+					latencies[index] = System.nanoTime() - started;
+					inFlight.release();
+					done.countDown();
+				}
+			});
+		}
+
+		done.await();
+
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+
+		// deferred MFA enrolments finish after the flows, count their upstream calls too
+		for (int i = 0; i < 100 && enrolmentQueue.getPendingCount() > 0; i++)
+			Thread.sleep(100);
+
+		Arrays.sort(latencies);
+
+		System.out.println(String.format("%-7s %-13s throughput=%.1f flows/s p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms errors=%s",
+				mode, flowType, flows / (elapsed / 1e9), percentile(latencies, 50), percentile(latencies, 95),
+				percentile(latencies, 99), latencies[latencies.length - 1] / 1e6, errors.get()));
+
+		System.out.println(String.format("%-7s %-13s upstream calls per flow %s", mode, flowType,
+				callsPerFlow(callsBefore, mock.getCallCounts(), flows)));
+	}
+
+	private static Map<String, String> callsPerFlow(Map<String, Long> before, Map<String, Long> after, int flows) {
+		Map<String, String> perFlow = new LinkedHashMap<String, String>();
+
+		for (Map.Entry<String, Long> entry : after.entrySet()) {
+			long calls = entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+
+			if (calls > 0)
+				perFlow.put(entry.getKey(), String.format("%.2f", calls / (double) flows));
+		}
+
+		return perFlow;
+	}
+
+	static double percentile(long[] sortedNanos, int percentile) {
+		int index = (int) Math.ceil(percentile / 100.0 * sortedNanos.length) - 1;
+		return sortedNanos[Math.max(0, index)] / 1e6;
+	}
+
+	static int intArg(String[] args, int index, int defaultValue) {
+		return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+	}
+
+	// the mock's certificate is for auth.pingone.com and has expired, so upstream TLS trusts it unconditionally
+	private static void trustMockCertificate() throws Exception {
+		System.setProperty("jdk.internal.httpclient.disableHostnameVerification", "true");
+
+		TrustManager trustAll = new X509ExtendedTrustManager() {
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+			}
+
+			public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+			}
+
+			public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+			}
+
+			public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+			}
+
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		};
+
+		SSLContext sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(null, new TrustManager[] { trustAll }, new SecureRandom());
+
+		SSLContext.setDefault(sslContext);
+	}
+
+	/**
+	 * One browser session: follows the flow id from the authorize redirect and
+	 * carries the gateway's retained value cookies between steps.
+	 */
+	private static class FlowSession {
+
+		private final HttpClient httpClient;
+		private final URI gatewayUri;
+		private final Map<String, String> cookies = new LinkedHashMap<String, String>();
+
+		private FlowSession(HttpClient httpClient, URI gatewayUri) {
+			this.httpClient = httpClient;
+			this.gatewayUri = gatewayUri;
+		}
+
+		private void signIn(int userNumber) throws IOException, InterruptedException {
+			String flowId = authorize();
+
+			send("GET", "/flows/" + flowId, null, null);
+
+			send("POST", "/flows/" + flowId, "application/vnd.pingidentity.usernamePassword.check+json",
+					String.format("{\"username\":\"user%s@example.com\",\"password\":\"2FederateM0re!\"}", userNumber));
+		}
+
+		private void register(int userNumber) throws IOException, InterruptedException {
+			String flowId = authorize();
+
+			send("GET", "/flows/" + flowId, null, null);
+
+			send("POST", "/flows/" + flowId, "application/vnd.pingidentity.user.register+json",
+					String.format("{\"user\":{\"username\":\"reg%1$s@example.com\",\"email\":\"reg%1$s@example.com\","
+							+ "\"invoiceEmail\":\"reg%1$s@billing.example.com\",\"invoiceNumber\":\"INV-reg%1$s-000123\"},"
+							+ "\"password\":\"2FederateM0re!\"}", userNumber));
+
+			send("POST", "/flowExecutions/" + flowId, "application/vnd.pingidentity.otp.check+json", "{\"otp\":\"123456\"}");
+		}
+
+		private String authorize() throws IOException, InterruptedException {
+			HttpResponse<String> response = send("GET",
+					"/as/authorize?client_id=loadtest&response_type=code&scope=openid&redirect_uri=https%3A%2F%2Fapp.example.com%2Fcallback",
+					null, null);
+
+			String location = response.headers().firstValue("Location").orElseThrow(() -> new IOException("No authorize redirect"));
+
+			return location.substring(location.indexOf("flowId=") + "flowId=".length());
+		}
+
+		private HttpResponse<String> send(String method, String path, String contentType, String body) throws IOException, InterruptedException {
+			HttpRequest.Builder requestBuilder = HttpRequest.newBuilder().uri(this.gatewayUri.resolve(path))
+					.method(method, body == null ? BodyPublishers.noBody() : BodyPublishers.ofString(body));
+
+			if (contentType != null)
+				requestBuilder.header("Content-Type", contentType);
+
+			if (!this.cookies.isEmpty())
+				requestBuilder.header("Cookie", getCookieHeader());
+
+			HttpResponse<String> response = this.httpClient.send(requestBuilder.build(), BodyHandlers.ofString());
+
+			for (String setCookie : response.headers().allValues("Set-Cookie")) {
+				String nameValue = setCookie.split(";", 2)[0];
+				int separator = nameValue.indexOf('=');
+
+				if (separator > 0)
+					this.cookies.put(nameValue.substring(0, separator), nameValue.substring(separator + 1));
+			}
+
+			if (response.statusCode() >= 400)
+				throw new IOException(String.format("%s %s returned %s", method, path, response.statusCode()));
+
+			return response;
+		}
+
+		private String getCookieHeader() {
+			List<String> pairs = new ArrayList<String>();
+
+			for (Map.Entry<String, String> cookie : this.cookies.entrySet())
+				pairs.add(cookie.getKey() + "=" + cookie.getValue());
+
+			return String.join("; ", pairs);
+		}
+
+	}
+
+}
@@ -0,0 +1,196 @@
+package com.pingidentity.pingone.authngateway.loadtest;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * A local stand-in for the PingOne endpoints the gateway calls: /as/authorize,
+ * /flows/{id}, /flowExecutions/{id}, /as/token and the Users/Devices API.
+ *
+ * Every response is delayed by a fixed latency (plus optional jitter) and a
+ * percentage of calls can be failed with a 503. /as/token is never failed so
+ * error injection exercises the flow and Users API paths rather than startup.
+ * Calls are counted per endpoint.
+ */
+public class MockPingOne {
+
+	private static final Pattern UsernameFilter = Pattern.compile("username eq \"([^\"]*)\"");
+
+	private final int latencyMillis;
+	private final int jitterMillis;
+	private final int errorPercent;
+
+	private final Map<String, LongAdder> callCounts = new ConcurrentHashMap<String, LongAdder>();
+
+	private HttpsServer server;
+	private ExecutorService executor;
+
+	public MockPingOne(int latencyMillis, int jitterMillis, int errorPercent) {
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+		this.errorPercent = errorPercent;
+	}
+
+	public void start(String keyStorePath, String keyStorePassword) throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		try (InputStream inputStream = new FileInputStream(keyStorePath)) {
+			keyStore.load(inputStream, keyStorePassword.toCharArray());
+		}
+
+		KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagerFactory.init(keyStore, keyStorePassword.toCharArray());
+
+		SSLContext sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+		this.server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 4096);
+		this.server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+		this.server.createContext("/", this::handle);
+
+		this.executor = Executors.newCachedThreadPool();
+		this.server.setExecutor(this.executor);
+		this.server.start();
+	}
+
+	public void stop() {
+		this.server.stop(0);
+		this.executor.shutdownNow();
+	}
+
+	public String getHost() {
+		return "localhost:" + this.server.getAddress().getPort();
+	}
+
+	public Map<String, Long> getCallCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+
+		for (Map.Entry<String, LongAdder> entry : this.callCounts.entrySet())
+			counts.put(entry.getKey(), entry.getValue().sum());
+
+		return counts;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String method = exchange.getRequestMethod();
+			String path = exchange.getRequestURI().getPath();
+			String query = exchange.getRequestURI().getRawQuery();
+
+			String endpoint = method + " " + normalise(path);
+			this.callCounts.computeIfAbsent(endpoint, key -> new LongAdder()).increment();
+
+			try (InputStream requestBody = exchange.getRequestBody()) {
+				requestBody.readAllBytes();
+			}
+
+			delay();
+
+			if (!path.equals("/as/token") && this.errorPercent > 0 && ThreadLocalRandom.current().nextInt(100) < this.errorPercent) {
+				respond(exchange, 503, "{\"code\":\"SERVICE_UNAVAILABLE\",\"message\":\"Injected error\"}");
+				return;
+			}
+
+			route(exchange, method, path, query);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void route(HttpExchange exchange, String method, String path, String query) throws IOException {
+		if (path.equals("/as/token")) {
+			respond(exchange, 200, "{\"access_token\":\"mock-worker-token\",\"token_type\":\"Bearer\",\"expires_in\":3600}");
+		} else if (path.endsWith("/as/authorize")) {
+			exchange.getResponseHeaders().add("Location", "/signon/?flowId=" + UUID.randomUUID());
+			exchange.sendResponseHeaders(302, -1);
+		} else if (path.contains("/flowExecutions/")) {
+			respond(exchange, 200, String.format("{\"id\":\"%s\",\"status\":\"COMPLETED\"}", lastSegment(path)));
+		} else if (path.contains("/flows/") && method.equals("GET")) {
+			respond(exchange, 200, String.format("{\"id\":\"%s\",\"status\":\"USERNAME_PASSWORD_REQUIRED\","
+					+ "\"_links\":{\"self\":{\"href\":\"%s\"}}}", lastSegment(path), path));
+		} else if (path.contains("/flows/")) {
+			respond(exchange, 200, String.format("{\"id\":\"%s\",\"status\":\"COMPLETED\",\"formData\":{\"user\":{}}}", lastSegment(path)));
+		} else if (path.endsWith("/users") && method.equals("GET")) {
+			String username = getUsername(query);
+			respond(exchange, 200, String.format("{\"size\":1,\"_embedded\":{\"users\":[{\"id\":\"%s\",\"username\":\"%s\"}]}}",
+					UUID.nameUUIDFromBytes(username.getBytes(StandardCharsets.UTF_8)), username));
+		} else if (path.endsWith("/mfaEnabled")) {
+			respond(exchange, 200, "{\"mfaEnabled\":true}");
+		} else if (path.endsWith("/devices") && method.equals("GET")) {
+			respond(exchange, 200, "{\"size\":0,\"_embedded\":{\"devices\":[]}}");
+		} else if (path.endsWith("/devices")) {
+			respond(exchange, 201, String.format("{\"id\":\"%s\",\"type\":\"EMAIL\",\"status\":\"ACTIVE\"}", UUID.randomUUID()));
+		} else {
+			respond(exchange, 404, "{\"code\":\"NOT_FOUND\"}");
+		}
+	}
+
+	private void delay() {
+		int millis = this.latencyMillis + (this.jitterMillis > 0 ? ThreadLocalRandom.current().nextInt(this.jitterMillis + 1) : 0);
+
+		if (millis <= 0)
+			return;
+
+		try {
+			TimeUnit.MILLISECONDS.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+
+		try (OutputStream outputStream = exchange.getResponseBody()) {
+			outputStream.write(bytes);
+		}
+	}
+
+	private static String getUsername(String rawQuery) {
+		if (rawQuery == null)
+			return "";
+
+		Matcher matcher = UsernameFilter.matcher(URLDecoder.decode(rawQuery, StandardCharsets.UTF_8));
+
+		return matcher.find() ? matcher.group(1) : "";
+	}
+
+	// collapses ids so calls are counted per endpoint rather than per resource
+	private static String normalise(String path) {
+		return path.replaceAll("/environments/[^/]+", "/environments/{env}")
+				.replaceAll("/users/[^/]+", "/users/{id}")
+				.replaceAll("/flows/[^/]+", "/flows/{id}")
+				.replaceAll("/flowExecutions/[^/]+", "/flowExecutions/{id}");
+	}
+
+	private static String lastSegment(String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+}
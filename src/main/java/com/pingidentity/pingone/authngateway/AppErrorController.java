@@ -1,7 +1,10 @@
 package com.pingidentity.pingone.authngateway;
 
+import java.net.URISyntaxException;
 import java.util.UUID;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -13,6 +16,8 @@ import com.pingidentity.pingone.authngateway.exceptions.CustomAPIErrorException;
 @ControllerAdvice
 public class AppErrorController {
 
+	private static Logger log = LoggerFactory.getLogger(AppErrorController.class);
+
 	private static final String errorTemplate = "	{\n" + "	   \"id\" : \"%s\",\n" + "	   \"code\" : \"%s\",\n"
 			+ "	   \"message\" : \"%s\",\n" + "	   \"details\" : [ {\n" + "	     \"code\" : \"%s\",\n"
 			+ "	     \"target\" : \"%s\",\n" + "	     \"message\" : \"%s\"\n" + "	   } ]\n" + "	 }";
@@ -20,6 +25,22 @@ public class AppErrorController {
 	@ExceptionHandler(value = { CustomAPIErrorException.class })
 	public ResponseEntity<String> multipleHandler(final CustomAPIErrorException e) {
 
+		return toResponse(e);
+	}
+
+	// a request path or query that cannot be forwarded upstream, e.g. a path traversal attempt
+	@ExceptionHandler(value = { URISyntaxException.class })
+	public ResponseEntity<String> invalidRequestUri(final URISyntaxException e) {
+
+		if (log.isDebugEnabled())
+			log.debug("Rejected request URI: " + e.getMessage());
+
+		return toResponse(new CustomAPIErrorException("request", "INVALID_REQUEST",
+				"The request could not be completed. The request URI is invalid.", "INVALID_VALUE", e.getReason()));
+	}
+
+	private ResponseEntity<String> toResponse(final CustomAPIErrorException e) {
+
 		HttpHeaders headers = new HttpHeaders();
 		headers.set("Content-Type", "application/hal+json;charset=UTF-8");
 
@@ -0,0 +1,120 @@
+package com.pingidentity.pingone.authngateway.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import com.pingidentity.pingone.authngateway.helpers.HeaderPolicy;
+
+/**
+ * The request and response header policies for each gateway route, compiled
+ * at startup from ping.headers.
+ *
+ * The request and response deny lists apply to every route. Each route can
+ * add its own lists under ping.headers.routes.(route).request/response.allow
+ * and deny. The routes are authorize (/as/authorize), as (other /as/ calls),
+ * flows (flows, flow executions and experiences) and assets (everything
+ * else), with or without the environment id in front.
+ */
+@Component
+public class HeaderPolicies {
+
+	private static Logger log = LoggerFactory.getLogger(HeaderPolicies.class);
+
+	public static final String AuthorizeRoute = "authorize";
+	public static final String AsRoute = "as";
+	public static final String FlowsRoute = "flows";
+	public static final String AssetsRoute = "assets";
+
+	private static final String[] Routes = { AuthorizeRoute, AsRoute, FlowsRoute, AssetsRoute };
+
+	@Value("${ping.headers.request.deny:host,content-length,expect}")
+	private String[] requestDeny;
+
+	@Value("${ping.headers.response.deny:content-encoding,content-type,content-length,access-control-*}")
+	private String[] responseDeny;
+
+	@Autowired
+	private Environment environment;
+
+	private final Map<String, HeaderPolicy> requestPolicies = new HashMap<String, HeaderPolicy>();
+	private final Map<String, HeaderPolicy> responsePolicies = new HashMap<String, HeaderPolicy>();
+
+	@PostConstruct
+	public void init() {
+		for (String route : Routes) {
+			this.requestPolicies.put(route, compile(route, "request", this.requestDeny));
+			this.responsePolicies.put(route, compile(route, "response", this.responseDeny));
+		}
+	}
+
+	public HeaderPolicy getRequestPolicy(String path) {
+		return this.requestPolicies.get(getRoute(path));
+	}
+
+	public HeaderPolicy getResponsePolicy(String path) {
+		return this.responsePolicies.get(getRoute(path));
+	}
+
+	public static String getRoute(String path) {
+		if (path == null)
+			return AssetsRoute;
+
+		String route = getRoute(path, 0);
+
+		// PingOne paths usually start with the environment id, e.g. /{environmentId}/flows/{flowId}
+		int environmentEnd = path.indexOf('/', 1);
+
+		if (route == null && environmentEnd > 0)
+			route = getRoute(path, environmentEnd);
+
+		return route == null ? AssetsRoute : route;
+	}
+
+	private static String getRoute(String path, int offset) {
+		if (path.startsWith("/as/authorize", offset))
+			return AuthorizeRoute;
+
+		if (path.startsWith("/as/", offset))
+			return AsRoute;
+
+		if (path.startsWith("/flows/", offset) || path.startsWith("/flowExecutions/", offset)
+				|| path.startsWith("/experiences/", offset))
+			return FlowsRoute;
+
+		return null;
+	}
+
+	private HeaderPolicy compile(String route, String direction, String[] deny) {
+		String prefix = "ping.headers.routes." + route + "." + direction + ".";
+
+		List<String> routeDeny = new ArrayList<String>(Arrays.asList(deny));
+		routeDeny.addAll(getList(prefix + "deny"));
+
+		List<String> routeAllow = getList(prefix + "allow");
+
+		if (log.isDebugEnabled())
+			log.debug(String.format("Header policy %s %s: deny %s, allow %s", route, direction, routeDeny,
+					routeAllow.isEmpty() ? "*" : routeAllow));
+
+		return HeaderPolicy.compile(routeDeny, routeAllow);
+	}
+
+	private List<String> getList(String key) {
+		String[] values = this.environment.getProperty(key, String[].class);
+
+		return values == null ? new ArrayList<String>() : Arrays.asList(values);
+	}
+
+}
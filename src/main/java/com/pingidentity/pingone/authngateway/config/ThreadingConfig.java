@@ -0,0 +1,82 @@
+package com.pingidentity.pingone.authngateway.config;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Opt-in virtual thread execution (Java 21+) for servlet request handling and
+ * the upstream HttpClient.
+ *
+ * The executor is looked up reflectively so the gateway still builds and runs
+ * on older JDKs, where the setting falls back to platform threads.
+ */
+@Configuration
+public class ThreadingConfig {
+
+	private static Logger log = LoggerFactory.getLogger(ThreadingConfig.class);
+
+	@Value("${ping.threads.virtual:false}")
+	private boolean virtualThreads;
+
+	private ExecutorService virtualThreadExecutor = null;
+
+	@PostConstruct
+	public void init() {
+		if (!this.virtualThreads)
+			return;
+
+		this.virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+
+		if (this.virtualThreadExecutor == null)
+			log.warn("Virtual threads requested but not supported by this JVM (" + System.getProperty("java.version")
+					+ "), using platform threads");
+		else
+			log.info("Using virtual threads for servlet requests and upstream calls");
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (this.virtualThreadExecutor != null)
+			this.virtualThreadExecutor.shutdown();
+	}
+
+	@Bean
+	public WebServerFactoryCustomizer<TomcatServletWebServerFactory> virtualThreadServletCustomizer() {
+		return factory -> factory.addProtocolHandlerCustomizers(protocolHandler -> {
+			if (this.virtualThreadExecutor != null)
+				protocolHandler.setExecutor(this.virtualThreadExecutor);
+		});
+	}
+
+	public boolean isVirtualThreads() {
+		return this.virtualThreadExecutor != null;
+	}
+
+	// null leaves the HttpClient on its default executor
+	public Executor getUpstreamExecutor() {
+		return this.virtualThreadExecutor;
+	}
+
+	public static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factoryMethod.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+}
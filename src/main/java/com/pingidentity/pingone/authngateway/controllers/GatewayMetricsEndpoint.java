@@ -0,0 +1,57 @@
+package com.pingidentity.pingone.authngateway.controllers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import com.pingidentity.pingone.authngateway.enrolment.EnrolmentQueue;
+import com.pingidentity.pingone.authngateway.helpers.AssetCache;
+import com.pingidentity.pingone.authngateway.helpers.PingOneUserHelper;
+import com.pingidentity.pingone.authngateway.helpers.UpstreamClient;
+import com.pingidentity.pingone.authngateway.helpers.WorkerTokenManager;
+
+/**
+ * Read-only actuator endpoint (/actuator/gateway) with the runtime state of
+ * the gateway's upstream calls: the upstream client and its pools, the Users
+ * API bulkhead and circuit breaker, the worker token and the MFA enrolment
+ * queue.
+ *
+ * Only exposed once listed in management.endpoints.web.exposure.include,
+ * which should go with a management.server.port that is not public.
+ */
+@Component
+@Endpoint(id = "gateway")
+public class GatewayMetricsEndpoint {
+
+	@Autowired
+	private UpstreamClient httpClient;
+
+	@Autowired
+	private PingOneUserHelper p1UserHelper;
+
+	@Autowired
+	private WorkerTokenManager tokenManager;
+
+	@Autowired
+	private EnrolmentQueue enrolmentQueue;
+
+	@Autowired
+	private AssetCache assetCache;
+
+	@ReadOperation
+	public Map<String, Object> metrics() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("upstream", this.httpClient.getMetrics());
+		metrics.put("userApi", this.p1UserHelper.getMetrics());
+		metrics.put("workerToken", this.tokenManager.getMetrics());
+		metrics.put("mfaEnrolment", this.enrolmentQueue.getMetrics());
+		metrics.put("assetCache", this.assetCache.getMetrics());
+
+		return metrics;
+	}
+
+}
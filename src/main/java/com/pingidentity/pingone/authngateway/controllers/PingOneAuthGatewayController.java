@@ -1,29 +1,46 @@
 package com.pingidentity.pingone.authngateway.controllers;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpRequest.Builder;
 import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.zip.GZIPInputStream;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -47,12 +64,29 @@ import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 
+import com.pingidentity.pingone.authngateway.config.HeaderPolicies;
+import com.pingidentity.pingone.authngateway.config.ThreadingConfig;
+import com.pingidentity.pingone.authngateway.enrolment.EnrolmentQueue;
 import com.pingidentity.pingone.authngateway.exceptions.CustomAPIErrorException;
 import com.pingidentity.pingone.authngateway.exceptions.EncryptionException;
-import com.pingidentity.pingone.authngateway.helpers.EncryptionHelper;
+import com.pingidentity.pingone.authngateway.helpers.AssetCache;
+import com.pingidentity.pingone.authngateway.helpers.CachedAsset;
+import com.pingidentity.pingone.authngateway.helpers.ConcurrentCalls;
+import com.pingidentity.pingone.authngateway.helpers.HeaderPolicy;
+import com.pingidentity.pingone.authngateway.helpers.JSONObjectMap;
+import com.pingidentity.pingone.authngateway.helpers.JsonClaimExtractor;
+import com.pingidentity.pingone.authngateway.helpers.JsonClaims;
 import com.pingidentity.pingone.authngateway.helpers.PingOneUserHelper;
+import com.pingidentity.pingone.authngateway.helpers.RequestPayload;
+import com.pingidentity.pingone.authngateway.helpers.RetainedValues;
+import com.pingidentity.pingone.authngateway.helpers.UpstreamClient;
+import com.pingidentity.pingone.authngateway.helpers.UpstreamPool;
+import com.pingidentity.pingone.authngateway.helpers.UpstreamUriBuilder;
+import com.pingidentity.pingone.authngateway.helpers.UserContext;
+import com.pingidentity.pingone.authngateway.store.IRetainedValuesStore;
 import com.pingidentity.pingone.authngateway.validators.IValidator;
 import com.pingidentity.pingone.authngateway.validators.ValidatorRegister;
+import com.pingidentity.pingone.authngateway.validators.ValidatorRunner;
 
 @Controller
 @RequestMapping("/")
@@ -60,29 +94,74 @@ public class PingOneAuthGatewayController {
 	
 	private static final Logger log = LoggerFactory.getLogger(PingOneAuthGatewayController.class);
 	private static final String EmailAttribute = "username";
+	private static final int StreamBufferSize = 8192;
+	private static final String RetainedValuesCookiePrefix = "ST-RC-";
+	private static final String CompletedStatus = "COMPLETED";
+	private static final String StatusAttribute = "status";
+
+	private static final ThreadLocal<byte[]> streamBuffer = ThreadLocal.withInitial(() -> new byte[StreamBufferSize]);
 
 	@Autowired
 	private ValidatorRegister registeredValidators;
-
-	@Value("${ping.authHost}")
-	private String authHost;
+	
+	@Autowired
+	private ValidatorRunner validatorRunner;
 
 	@Value("${ping.mfa.attributeName}")
 	private String mfaAttributeName;
 	
+	//registers the email device after the flow response is sent instead of before it
+	@Value("${ping.mfa.enrolment.deferred:true}")
+	private boolean deferredEnrolment;
+	
+	@Autowired
+	private EnrolmentQueue enrolmentQueue;
+	
 	@Value("${ping.retainValues.claims}")
 	private String[] retainValues;
 	
 	@Value("${ping.retainValues.key}")
 	private String[] retainValueKeys;
 	
+	//max-age of the retained values cookie so abandoned flows do not leave it behind, -1 for a session cookie
+	@Value("${ping.retainValues.cookieMaxAgeSeconds:-1}")
+	private int cookieMaxAgeSeconds;
+	
 	@Value("${ping.obfuscateValues}")
 	private String[] obfuscateValues;
 	
 	@Autowired
-	private EncryptionHelper encryptionHelper;
+	private IRetainedValuesStore retainedValuesStore;
 
-	private HttpClient httpClient = null;
+	@Autowired
+	private AssetCache assetCache;
+	
+	@Autowired
+	private HeaderPolicies headerPolicies;
+
+	@Value("${ping.proxy.async:false}")
+	private boolean asyncMode;
+	
+	@Value("${ping.proxy.asyncThreads:16}")
+	private int asyncThreads;
+	
+	@Value("${ping.proxy.submitTimeoutMillis:30000}")
+	private long submitTimeoutMillis;
+
+	@Autowired
+	private UpstreamClient httpClient;
+	
+	@Autowired
+	private ThreadingConfig threadingConfig;
+	
+	@Autowired
+	private UpstreamUriBuilder upstreamUriBuilder;
+	
+	private ExecutorService continuationExecutor = null;
+	
+	private JsonClaimExtractor responseClaimExtractor;
+	
+	private Set<String> obfuscateNames;
 	
 	@Autowired
 	private PingOneUserHelper p1UserHelper;
@@ -90,11 +169,29 @@ public class PingOneAuthGatewayController {
 	@PostConstruct
 	public void init() throws KeyManagementException, NoSuchAlgorithmException, KeyStoreException, EncryptionException, ClassNotFoundException, InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException, URISyntaxException {
 		
-		httpClient = HttpClient.newBuilder()
-			      .version(HttpClient.Version.HTTP_2)
-			      .followRedirects(HttpClient.Redirect.NEVER)
-			      .build();
+		//retained claims are read from formData.user in a flow response, else formData, else a top-level user
+		String[] responseClaimNames = Arrays.copyOf(this.retainValues, this.retainValues.length + 1);
+		responseClaimNames[this.retainValues.length] = StatusAttribute;
+		this.responseClaimExtractor = new JsonClaimExtractor(responseClaimNames, "formData", "user");
 		
+		this.obfuscateNames = new HashSet<String>(Arrays.asList(this.obfuscateValues));
+		
+		if(this.asyncMode)
+		{
+			AtomicInteger threadCount = new AtomicInteger();
+			
+			continuationExecutor = Executors.newFixedThreadPool(this.asyncThreads, runnable -> {
+				Thread thread = new Thread(runnable, "proxy-continuation-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+	
+	@PreDestroy
+	public void destroy() {
+		if(continuationExecutor != null)
+			continuationExecutor.shutdown();
 	}
 
 	@GetMapping("/as/authorize")
@@ -104,197 +201,373 @@ public class PingOneAuthGatewayController {
 		if(log.isDebugEnabled())
 			log.debug("Process Authorize Endpoint");
 		
-		Builder targetRequestBuilder = HttpRequest.newBuilder().uri(getTargetUrl(request)).GET();
+		Builder targetRequestBuilder = httpClient.newRequestBuilder(getTargetUrl(request)).GET();
 
 		copyRequestHeaders(headers, request, targetRequestBuilder);
 
 		HttpRequest targetRequest = targetRequestBuilder.build();
 		
-		HttpResponse<InputStream> targetResponse = executeTargetRequest(targetRequest, response, true, true);
+		//only the location is read, so the body is discarded rather than left open holding its upstream slot
+		HttpResponse<Void> targetResponse = executeTargetRequest(getFailoverPool(null), targetRequest, BodyHandlers.discarding(), response, true, true);
 
 		String location = getLocationHeader(targetResponse, response);
 
 		if(log.isDebugEnabled())
 			log.debug("Location header: " + location);
 		
+		//the flow's later requests have to reach the upstream address that started it
+		this.upstreamUriBuilder.setFlowAddress(getFlowId(location), targetRequest.uri());
+		
 		response.sendRedirect(location);
 		response.setStatus(302);
 		response.addHeader(":status", "302");
 	}
 
 	@GetMapping(value = "/experiences/{experienceId}", produces = "text/html;charset=UTF-8")
-	public ResponseEntity<String> getExperiences(HttpServletRequest request, HttpServletResponse response,
+	public Object getExperiences(HttpServletRequest request, HttpServletResponse response,
 			@RequestHeader MultiValueMap<String, String> headers,
-			@RequestParam String redirectUri) throws IOException, InterruptedException, URISyntaxException, EncryptionException {
+			@RequestParam String redirectUri) throws IOException, InterruptedException, URISyntaxException, EncryptionException, CustomAPIErrorException {
 
 		String flowId = redirectUri.substring(redirectUri.indexOf("/flows/") + "/flows/".length()).replace("flowExecutionCallback", "").replaceAll("\\/", "");
 
 		if(log.isDebugEnabled())
 			log.debug("Process getExperiences flowId: " + flowId);
 		
-		return performGET(request, response, headers, null, true);
+		return respond(performGET(request, response, headers, null, getFlowId(redirectUri), true));
 	}
 
 	@GetMapping(value = "/flows/{flowId}/flowExecutionCallback", produces = "text/html;charset=UTF-8")
-	public ResponseEntity<String> getFlowExecutionCallback(HttpServletRequest request, HttpServletResponse response,
+	public Object getFlowExecutionCallback(HttpServletRequest request, HttpServletResponse response,
 			@RequestHeader MultiValueMap<String, String> headers,
 			@PathVariable(value = "flowId", required = true) String flowId,
-			@RequestParam String flowExecutionId) throws IOException, InterruptedException, URISyntaxException, EncryptionException {
+			@RequestParam String flowExecutionId) throws IOException, InterruptedException, URISyntaxException, EncryptionException, CustomAPIErrorException {
 
 		if(log.isDebugEnabled())
 			log.debug("Process getFlowExecutionCallback flowId: " + flowId);
 		
 		//copying flow execution cookie to flow cookie
-		JSONObject cookieValues = getRetainedValuesFromCookie(flowExecutionId, request);
-		if(cookieValues != null)
+		RetainedValues cookieValues = getRetainedValuesFromCookie(flowExecutionId, request);
+		if(cookieValues.isIssued())
 		{
 			if(log.isDebugEnabled())
 				log.debug("copying flow execution cookie to flow cookie");
 			
-			String newEncryptedCookieValue = this.encryptionHelper.generate(flowId, cookieValues);
-			addCookie(this.getCookieName(flowId), newEncryptedCookieValue, response);
+			RetainedValues flowValues = new RetainedValues();
+			for(String claimName: cookieValues.keySet())
+				flowValues.put(claimName, cookieValues.get(claimName));
+			
+			String newCookieValue = this.retainedValuesStore.save(flowId, flowValues);
+			addCookie(this.getCookieName(flowId), newCookieValue, response);
+			
+			//the flow execution is finished with once its values are on the flow cookie
+			this.retainedValuesStore.remove(flowExecutionId, cookieValues);
+			expireCookie(getCookieName(flowExecutionId), response);
 		}
 		
-		return performGET(request, response, headers, null, true);
+		return respond(performGET(request, response, headers, null, flowId, true));
 	}
 
 	@GetMapping(value = "/flows/{flowId}", produces = "application/hal+json;charset=UTF-8")
-	public ResponseEntity<String> get(HttpServletRequest request, HttpServletResponse response,
+	public Object get(HttpServletRequest request, HttpServletResponse response,
 			@RequestHeader MultiValueMap<String, String> headers,
-			@PathVariable(value = "flowId", required = true) String flowId) throws IOException, InterruptedException, URISyntaxException, EncryptionException {
+			@PathVariable(value = "flowId", required = true) String flowId) throws IOException, InterruptedException, URISyntaxException, EncryptionException, CustomAPIErrorException {
 
 		if(log.isDebugEnabled())
 			log.debug("Process GET flows");
 		
-		return performGET(request, response, headers, flowId, true);
+		return respond(performGET(request, response, headers, flowId, flowId, true));
 	}
 
 	@GetMapping(value = {"/**"})
-	public ResponseEntity<String> getAll(HttpServletRequest request, HttpServletResponse response,
-			@RequestHeader MultiValueMap<String, String> headers) throws IOException, InterruptedException, URISyntaxException, EncryptionException {
+	public void getAll(HttpServletRequest request, HttpServletResponse response,
+			@RequestHeader MultiValueMap<String, String> headers) throws IOException, InterruptedException, URISyntaxException {
 
 		if(log.isDebugEnabled())
 			log.debug("Process GET all");
 		
-		return performGET(request, response, headers, null, false);
+		performStreamingGET(request, response, headers, null);
 	}
 
 	@GetMapping(value = {"/**/*.otf", "/**/*.woff2", "/**/*.ttf", "/**/*.woff"}, produces="binary/octet-stream;")
-	public ResponseEntity<String> getOctetStream(HttpServletRequest request, HttpServletResponse response,
-			@RequestHeader MultiValueMap<String, String> headers) throws IOException, InterruptedException, URISyntaxException, EncryptionException {
+	public void getOctetStream(HttpServletRequest request, HttpServletResponse response,
+			@RequestHeader MultiValueMap<String, String> headers) throws IOException, InterruptedException, URISyntaxException {
 
 		if(log.isDebugEnabled())
 			log.debug("Process GET octet stream");
 		
-		return performGET(request, response, headers, null, false);
+		performCachedGET(request, response, headers);
 	}
 
 	@GetMapping(value = {"/**/*.png"}, produces="image/png")
-	public ResponseEntity<String> getPNG(HttpServletRequest request, HttpServletResponse response,
-			@RequestHeader MultiValueMap<String, String> headers) throws IOException, InterruptedException, URISyntaxException, EncryptionException {
+	public void getPNG(HttpServletRequest request, HttpServletResponse response,
+			@RequestHeader MultiValueMap<String, String> headers) throws IOException, InterruptedException, URISyntaxException {
 
 		if(log.isDebugEnabled())
 			log.debug("Process GET png");
 		
-		return performGET(request, response, headers, null, false);
+		performCachedGET(request, response, headers);
 	}
 
 	@GetMapping(value = {"/**/*.js"}, produces="application/javascript;charset=UTF-8")
-	public ResponseEntity<String> getJavascript(HttpServletRequest request, HttpServletResponse response,
-			@RequestHeader MultiValueMap<String, String> headers) throws IOException, InterruptedException, URISyntaxException, EncryptionException {
+	public void getJavascript(HttpServletRequest request, HttpServletResponse response,
+			@RequestHeader MultiValueMap<String, String> headers) throws IOException, InterruptedException, URISyntaxException {
 
 		if(log.isDebugEnabled())
 			log.debug("Process GET javascript");
 		
-		return performGET(request, response, headers, null, false);
+		performCachedGET(request, response, headers);
 	}
 
 	@GetMapping(value = {"/**/*.json"}, produces="application/json;charset=UTF-8")
-	public ResponseEntity<String> getJson(HttpServletRequest request, HttpServletResponse response,
-			@RequestHeader MultiValueMap<String, String> headers) throws IOException, InterruptedException, URISyntaxException, EncryptionException {
+	public void getJson(HttpServletRequest request, HttpServletResponse response,
+			@RequestHeader MultiValueMap<String, String> headers) throws IOException, InterruptedException, URISyntaxException {
 
 		if(log.isDebugEnabled())
 			log.debug("Process GET json");
 		
-		return performGET(request, response, headers, null, false);
+		performCachedGET(request, response, headers);
 	}
 
 	@GetMapping(value = {"/**/*.css"}, produces="text/css;charset=UTF-8")
-	public ResponseEntity<String> getCSS(HttpServletRequest request, HttpServletResponse response,
-			@RequestHeader MultiValueMap<String, String> headers) throws IOException, InterruptedException, URISyntaxException, EncryptionException {
+	public void getCSS(HttpServletRequest request, HttpServletResponse response,
+			@RequestHeader MultiValueMap<String, String> headers) throws IOException, InterruptedException, URISyntaxException {
 
 		if(log.isDebugEnabled())
 			log.debug("Process GET CSS");
 		
-		return performGET(request, response, headers, null, false);
+		performCachedGET(request, response, headers);
 	}
 
 	@PostMapping(value = "/flows/{flowId}", produces = "application/hal+json;charset=UTF-8")
-	public ResponseEntity<String> post(HttpServletRequest request, HttpServletResponse response,
+	public Object post(HttpServletRequest request, HttpServletResponse response,
 			@RequestHeader MultiValueMap<String, String> headers, @RequestBody(required = true) String bodyStr,
 			@PathVariable(value = "flowId", required = true) String flowId) throws IOException, URISyntaxException, InterruptedException, EncryptionException, CustomAPIErrorException {
 
 		if(log.isDebugEnabled())
 			log.debug(String.format("Process POST - FlowId: %s", flowId));
 		
-		if(log.isDebugEnabled())
-			log.debug(String.format("Process POST - FlowId: %s", flowId));
-		
-		return performPOST(request, response, headers, bodyStr, flowId);
+		return respond(performPOST(request, response, headers, bodyStr, flowId));
 	}
 
 	@PostMapping(value = "/as/**", produces = "application/json;charset=UTF-8")
-	public ResponseEntity<String> postAS(HttpServletRequest request, HttpServletResponse response,
+	public Object postAS(HttpServletRequest request, HttpServletResponse response,
 			@RequestHeader MultiValueMap<String, String> headers, @RequestBody(required = true) String bodyStr) throws IOException, URISyntaxException, InterruptedException, EncryptionException, CustomAPIErrorException {
 
-		Builder targetRequestBuilder = HttpRequest.newBuilder().uri(getTargetUrl(request)).POST(BodyPublishers.ofString(bodyStr));
+		Builder targetRequestBuilder = httpClient.newRequestBuilder(getTargetUrl(request)).POST(BodyPublishers.ofString(bodyStr));
 
 		copyRequestHeaders(headers, request, targetRequestBuilder);
 
 		HttpRequest targetRequest = targetRequestBuilder.build();
 		
-		HttpResponse<InputStream> targetResponse = executeTargetRequest(targetRequest, response, true);
+		CompletableFuture<HttpResponse<byte[]>> targetResponseFuture = executeTargetRequestAsync(getFailoverPool(null), targetRequest, response, true);
 		
-		String responsePayload = getResponsePayload(targetResponse);
-		
-		return new ResponseEntity<String>(responsePayload,
-				HttpStatus.valueOf(targetResponse.statusCode()));
+		return respond(continueWith(targetResponseFuture, targetResponse -> {
+			String responsePayload = getResponsePayload(targetResponse);
+			
+			return new ResponseEntity<String>(responsePayload,
+					HttpStatus.valueOf(targetResponse.statusCode()));
+		}));
 	}
 
 	@PostMapping(value = "/flowExecutions/{flowExecutionId}", produces = "application/json;charset=UTF-8")
-	public ResponseEntity<String> postExecution(HttpServletRequest request, HttpServletResponse response,
+	public Object postExecution(HttpServletRequest request, HttpServletResponse response,
 			@RequestHeader MultiValueMap<String, String> headers, @RequestBody(required = true) String bodyStr,
 			@PathVariable(value = "flowExecutionId", required = true) String flowExecutionId) throws IOException, URISyntaxException, InterruptedException, EncryptionException, CustomAPIErrorException {
 
 		if(log.isDebugEnabled())
 			log.debug(String.format("Process postExecution - FlowId: %s", flowExecutionId));
 		
-		return performPOST(request, response, headers, bodyStr, flowExecutionId);
+		return respond(performPOST(request, response, headers, bodyStr, flowExecutionId));
 	}
 	
-	private ResponseEntity<String> performGET(HttpServletRequest request, HttpServletResponse response,
+	private CompletableFuture<ResponseEntity<String>> performGET(HttpServletRequest request, HttpServletResponse response,
 			MultiValueMap<String, String> headers,
-			String flowId, boolean ignoreContentType) throws URISyntaxException, IOException, InterruptedException, EncryptionException
+			String flowId, String upstreamFlowId, boolean ignoreContentType) throws URISyntaxException, IOException, InterruptedException, EncryptionException
 	{
-		JSONObject retainedValues = this.updateRetainedValuesRequest(request, response, flowId, null);
+		RetainedValues retainedValues = this.updateRetainedValuesRequest(request, response, flowId, null);
 		
-		Builder targetRequestBuilder = HttpRequest.newBuilder().uri(getTargetUrl(request)).GET();
+		Builder targetRequestBuilder = httpClient.newRequestBuilder(getFlowTargetUrl(request, upstreamFlowId)).GET();
 
 		copyRequestHeaders(headers, request, targetRequestBuilder);
 
 		HttpRequest targetRequest = targetRequestBuilder.build();
 		
-		HttpResponse<InputStream> targetResponse = executeTargetRequest(targetRequest, response, true, ignoreContentType);
+		CompletableFuture<HttpResponse<byte[]>> targetResponseFuture = executeTargetRequestAsync(getFailoverPool(upstreamFlowId), targetRequest, response, ignoreContentType);
 
-		String responsePayload = getResponsePayload(targetResponse);
-		
-		this.updateRetainedValuesResponse(response, responsePayload, flowId, retainedValues);
+		return continueWith(targetResponseFuture, targetResponse -> {
+			String responsePayload = getResponsePayload(targetResponse);
+			
+			this.updateRetainedValuesResponse(response, responsePayload, flowId, retainedValues, new UserContext());
 
-		return new ResponseEntity<String>(responsePayload,
-				HttpStatus.valueOf(targetResponse.statusCode()));
+			return new ResponseEntity<String>(responsePayload,
+					HttpStatus.valueOf(targetResponse.statusCode()));
+		});
 	}
-	
-	private String getLocationHeader(HttpResponse<InputStream> targetResponse, HttpServletResponse response) throws IOException, InterruptedException
+
+	//non-flow routes (assets, pages) have nothing to retain or rewrite so the upstream body is copied as-is
+	private void performStreamingGET(HttpServletRequest request, HttpServletResponse response,
+			MultiValueMap<String, String> headers, String cacheKey) throws URISyntaxException, IOException, InterruptedException
+	{
+		Builder targetRequestBuilder = httpClient.newRequestBuilder(getTargetUrl(request, true)).GET();
+
+		copyRequestHeaders(headers, request, targetRequestBuilder);
+
+		HttpRequest targetRequest = targetRequestBuilder.build();
+
+		HttpResponse<InputStream> targetResponse = executeTargetRequest(getFailoverPool(null), targetRequest, BodyHandlers.ofInputStream(), response, true, true);
+
+		streamResponsePayload(targetResponse, response, cacheKey);
+	}
+
+	private void performCachedGET(HttpServletRequest request, HttpServletResponse response,
+			MultiValueMap<String, String> headers) throws URISyntaxException, IOException, InterruptedException
+	{
+		if(!this.assetCache.isEnabled() || request.getHeader("Authorization") != null)
+		{
+			performStreamingGET(request, response, headers, null);
+			return;
+		}
+
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		String cacheKey = this.assetCache.getCacheKey(request.getRequestURI(), request.getQueryString(), acceptEncoding);
+
+		//no-cache or max-age from the browser (e.g. a reload) goes upstream and replaces the entry
+		CachedAsset cachedAsset = this.assetCache.get(cacheKey, request.getHeader("Cache-Control"), request.getHeader("Pragma"));
+
+		if(cachedAsset == null)
+		{
+			if(log.isDebugEnabled())
+				log.debug("Asset cache miss: " + cacheKey);
+
+			performStreamingGET(request, response, headers, cacheKey);
+			return;
+		}
+
+		if(!cachedAsset.isFresh())
+		{
+			URI targetUrl = getTargetUrl(request, true);
+			this.assetCache.revalidate(cacheKey, cachedAsset, staleAsset -> revalidateAsset(targetUrl, acceptEncoding, staleAsset));
+		}
+
+		writeCachedAsset(cachedAsset, request, response);
+	}
+
+	private CachedAsset revalidateAsset(URI targetUrl, String acceptEncoding, CachedAsset staleAsset) throws IOException, InterruptedException
+	{
+		Builder targetRequestBuilder = httpClient.newRequestBuilder(targetUrl).GET();
+
+		if(acceptEncoding != null)
+			targetRequestBuilder.header("accept-encoding", acceptEncoding);
+		if(staleAsset.getETag() != null)
+			targetRequestBuilder.header("if-none-match", staleAsset.getETag());
+		if(staleAsset.getLastModified() != null)
+			targetRequestBuilder.header("if-modified-since", staleAsset.getLastModified());
+
+		HttpResponse<byte[]> targetResponse = httpClient.send(getFailoverPool(null), targetRequestBuilder.build(), BodyHandlers.ofByteArray());
+
+		if(log.isDebugEnabled())
+			log.debug(String.format("Revalidated asset %s: %s", targetUrl, targetResponse.statusCode()));
+
+		if(targetResponse.statusCode() == 304)
+			return this.assetCache.refresh(staleAsset, targetResponse.headers(), getForwardedResponseHeaders(targetResponse));
+
+		if(!this.assetCache.isCacheable(targetResponse.statusCode(), targetResponse.headers()))
+			return null;
+
+		return this.assetCache.toCachedAsset(targetResponse.headers(), getForwardedResponseHeaders(targetResponse), targetResponse.body());
+	}
+
+	private void writeCachedAsset(CachedAsset cachedAsset, HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		for(Map.Entry<String, List<String>> header: cachedAsset.getHeaders().entrySet())
+		{
+			for(String headerValue: header.getValue())
+				response.addHeader(header.getKey(), headerValue);
+		}
+
+		response.setHeader("Age", String.valueOf(cachedAsset.getAgeSeconds()));
+
+		if(cachedAsset.isNotModified(request.getHeader("If-None-Match"), request.getHeader("If-Modified-Since")))
+		{
+			response.setStatus(304);
+			return;
+		}
+
+		response.setStatus(200);
+
+		if(cachedAsset.getContentType() != null)
+			response.setContentType(cachedAsset.getContentType());
+		if(cachedAsset.getContentEncoding() != null)
+			response.setHeader("Content-Encoding", cachedAsset.getContentEncoding());
+
+		response.setContentLength(cachedAsset.getBody().length);
+
+		OutputStream outputStream = response.getOutputStream();
+		outputStream.write(cachedAsset.getBody());
+		outputStream.flush();
+	}
+
+	private void streamResponsePayload(HttpResponse<InputStream> targetResponse, HttpServletResponse response, String cacheKey) throws IOException
+	{
+		response.setStatus(targetResponse.statusCode());
+
+		Optional<String> contentType = targetResponse.headers().firstValue("Content-Type");
+		if(contentType.isPresent())
+			response.setContentType(contentType.get());
+
+		//the body is passed through still encoded, so the encoding and length of the upstream response remain valid
+		Optional<String> contentEncoding = targetResponse.headers().firstValue("Content-Encoding");
+		if(contentEncoding.isPresent())
+			response.setHeader("Content-Encoding", contentEncoding.get());
+
+		OptionalLong contentLength = targetResponse.headers().firstValueAsLong("Content-Length");
+		if(contentLength.isPresent())
+			response.setContentLengthLong(contentLength.getAsLong());
+
+		ByteArrayOutputStream cacheCapture = null;
+		if(cacheKey != null && this.assetCache.isCacheable(targetResponse.statusCode(), targetResponse.headers()))
+			cacheCapture = new ByteArrayOutputStream(contentLength.isPresent() ? (int) contentLength.getAsLong() : StreamBufferSize);
+
+		try(InputStream bodyInputStream = targetResponse.body())
+		{
+			if (bodyInputStream == null || targetResponse.statusCode() == 204 || targetResponse.statusCode() == 304) {
+				if(log.isDebugEnabled())
+					log.debug("No body");
+				return;
+			}
+
+			OutputStream outputStream = response.getOutputStream();
+			//a thread-local buffer is never reused by a virtual thread, which only serves one request
+			byte[] buffer = this.threadingConfig.isVirtualThreads() ? new byte[StreamBufferSize] : streamBuffer.get();
+			long total = 0;
+
+			int read;
+			while((read = bodyInputStream.read(buffer)) != -1)
+			{
+				outputStream.write(buffer, 0, read);
+				total += read;
+
+				if(cacheCapture != null && cacheCapture.size() + read > this.assetCache.getMaxEntryBytes())
+					cacheCapture = null;
+				else if(cacheCapture != null)
+					cacheCapture.write(buffer, 0, read);
+			}
+
+			outputStream.flush();
+
+			if(log.isDebugEnabled())
+				log.debug("Streamed body bytes: " + total);
+		}
+
+		if(cacheCapture != null)
+		{
+			CachedAsset cachedAsset = this.assetCache.toCachedAsset(targetResponse.headers(), getForwardedResponseHeaders(targetResponse), cacheCapture.toByteArray());
+			if(cachedAsset != null)
+				this.assetCache.put(cacheKey, cachedAsset);
+		}
+	}
+
+	private String getLocationHeader(HttpResponse<?> targetResponse, HttpServletResponse response) throws IOException, InterruptedException
 	{
 		List<String> locationHeader = targetResponse.headers().map().get("location");
 		
@@ -308,62 +581,124 @@ public class PingOneAuthGatewayController {
 		throw new InterruptedException("HTTP 302 Status found with no location header");
 	}
 	
-	private ResponseEntity<String> performPOST(HttpServletRequest request, HttpServletResponse response,
+	private CompletableFuture<ResponseEntity<String>> performPOST(HttpServletRequest request, HttpServletResponse response,
 			MultiValueMap<String, String> headers, String bodyStr,
 			String flowId) throws EncryptionException, URISyntaxException, CustomAPIErrorException, IOException, InterruptedException
 	{
 		
-		JSONObject retainedValues = this.updateRetainedValuesRequest(request, response, flowId, bodyStr);
+		//parsed once for retained values and the validators
+		RequestPayload requestPayload = new RequestPayload(bodyStr);
 		
-		boolean hasValidated = validateRequestPayload(retainedValues, bodyStr);
+		RetainedValues retainedValues = this.updateRetainedValuesRequest(request, response, flowId, requestPayload);
 		
-		this.registerMFARequest(hasValidated, retainedValues);
+		//users api state shared by every step of this request so the user is resolved once
+		UserContext userContext = new UserContext();
 		
-		Builder targetRequestBuilder = HttpRequest.newBuilder().uri(getTargetUrl(request)).POST(BodyPublishers.ofString(bodyStr));
+		boolean hasValidated = validateRequestPayload(retainedValues, requestPayload);
+		
+		Builder targetRequestBuilder = httpClient.newRequestBuilder(getFlowTargetUrl(request, flowId)).POST(BodyPublishers.ofString(bodyStr));
 
 		copyRequestHeaders(headers, request, targetRequestBuilder);
 
 		HttpRequest targetRequest = targetRequestBuilder.build();
 		
-		HttpResponse<InputStream> targetResponse = executeTargetRequest(targetRequest, response, true);
+		CompletableFuture<HttpResponse<byte[]>> targetResponseFuture = hasValidated ?
+				submitWithMFA(targetRequest, response, retainedValues, userContext) :
+				executeTargetRequestAsync(getFailoverPool(flowId), targetRequest, response, true);
 		
-		String responsePayload = getResponsePayload(targetResponse);
+		return continueWith(targetResponseFuture, targetResponse -> {
+			String responsePayload = getResponsePayload(targetResponse);
+			
+			if(targetResponse.statusCode() == 200)
+				this.invalidateMissingUser(retainedValues, userContext);
+			
+			this.updateRetainedValuesResponse(response, responsePayload, flowId, retainedValues, userContext);
+			
+			this.registerMFAResponse(targetResponse.statusCode(), hasValidated, retainedValues, userContext);
+			
+			return new ResponseEntity<String>(responsePayload,
+					HttpStatus.valueOf(targetResponse.statusCode()));
+		});
+	}
+	
+	//enables mfa for the user and registers any device that must exist before submission, then forwards the flow request.
+	//only the device listing, a read, overlaps enabling mfa. the flow request is sent once both are done and is never
+	//cancelled once sent, so the flow and the retained values cookie cannot get out of step
+	private CompletableFuture<HttpResponse<byte[]>> submitWithMFA(HttpRequest targetRequest, HttpServletResponse response,
+			JSONObject retainedValues, UserContext userContext) throws CustomAPIErrorException, IOException, InterruptedException
+	{
+		String username = retainedValues.getString("username");
+		String mfaAttribute = getPreSubmitMFAAttribute(retainedValues);
 		
-		this.updateRetainedValuesResponse(response, responsePayload, flowId, retainedValues);
+		ConcurrentCalls calls = new ConcurrentCalls();
 		
-		this.registerMFAResponse(targetResponse.statusCode(), hasValidated, retainedValues);
+		calls.add(this.p1UserHelper.enableMFAAsync(userContext, username, "username"), this.submitTimeoutMillis);
 		
-		return new ResponseEntity<String>(responsePayload,
-				HttpStatus.valueOf(targetResponse.statusCode()));
+		if(mfaAttribute != null)
+			calls.add(this.p1UserHelper.getUserIdAsync(userContext, username, "username").thenCompose(userId ->
+				userId == null ? CompletableFuture.completedFuture(null) : this.p1UserHelper.getUserDevicesAsync(userContext, userId)), this.submitTimeoutMillis);
+		
+		//the device is created after mfa is enabled, as it always has been, reusing the devices already listed
+		CompletableFuture<Boolean> preSubmit = calls.whenAll().thenCompose(done -> mfaAttribute == null ?
+				CompletableFuture.completedFuture(false) :
+				this.p1UserHelper.registerEmailDeviceAsync(userContext, username, mfaAttribute))
+				.orTimeout(this.submitTimeoutMillis, TimeUnit.MILLISECONDS);
+		
+		CompletableFuture<HttpResponse<byte[]>> submitted = preSubmit
+				//a flow request, only its own address holds the flow
+				.thenCompose(registered -> httpClient.sendAsync(null, targetRequest, BodyHandlers.ofByteArray()))
+				.thenApply(targetResponse -> {
+					copyResponseHeaders(targetResponse, response, true);
+					
+					return targetResponse;
+				});
+		
+		if(this.asyncMode)
+			return submitted;
+		
+		try {
+			return CompletableFuture.completedFuture(submitted.get());
+		} catch (ExecutionException e) {
+			Throwable cause = ConcurrentCalls.unwrap(e);
+			
+			if(cause instanceof CustomAPIErrorException)
+				throw (CustomAPIErrorException) cause;
+			else if(cause instanceof IOException)
+				throw (IOException) cause;
+			else if(cause instanceof TimeoutException)
+				throw new HttpTimeoutException("MFA enrolment before flow submission timed out after " + this.submitTimeoutMillis + "ms");
+			else if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			
+			throw new IOException(cause);
+		}
 	}
 
 	//determines whether we need to register email MFA after request validation and before request submission
 	//enabling mfa prior to the request submission will result in the user having to perform MFA
 	//however this might not be ideal e.g. if the user has already verified the same email address during registration
-	private void registerMFARequest(boolean hasValidated, JSONObject retainedValues) throws JSONException, CustomAPIErrorException {
-		
-		if(!hasValidated)
-			return;
+	//returns the email to register, or null when there is none to register before submission
+	private String getPreSubmitMFAAttribute(JSONObject retainedValues) throws JSONException {
 		
 		if(EmailAttribute.equals(mfaAttributeName))
 		{
 			if(log.isDebugEnabled())
 				log.debug("Not enabling MFA device because email attribute name is the same as mfa attribute. User has already verified their email.");
-			return;
+			return null;
 		}
 		
 		if(!retainedValues.has(EmailAttribute))
 		{
 			if(log.isDebugEnabled())
 				log.debug("Not enabling MFA device because retained attributes does not contain EmailAttribute.");
-			return;
+			return null;
 		}
 		
 		if(!retainedValues.has(mfaAttributeName))
 		{
 			if(log.isDebugEnabled())
 				log.debug("Not enabling MFA device because retained attributes does not contain mfaAttributeName.");
-			return;
+			return null;
 		}
 		
 		String emailAttribute = retainedValues.getString(EmailAttribute);
@@ -374,14 +709,31 @@ public class PingOneAuthGatewayController {
 			if(log.isDebugEnabled())
 				log.debug("Not enabling MFA device because email attribute value is equal to mfa attribute value. User has already verified their email.");
 			
-			return;
+			return null;
 		}
 		
-		this.p1UserHelper.registerEmailDevice(retainedValues.getString("username"), mfaAttribute);
+		return mfaAttribute;
+		
+	}
+	
+	//a registration step may have just created the user that earlier searches by these values did not find
+	private void invalidateMissingUser(JSONObject retainedValues, UserContext userContext) {
+		
+		if(retainedValues == null)
+			return;
+		
+		if(retainedValues.has("username"))
+			this.p1UserHelper.invalidateMissingUser(userContext, retainedValues.getString("username"), "username");
+		
+		for(String retainValueKey : this.retainValueKeys)
+		{
+			if(!retainValueKey.equals("username") && retainedValues.has(retainValueKey))
+				this.p1UserHelper.invalidateMissingUser(userContext, String.valueOf(retainedValues.get(retainValueKey)), retainValueKey);
+		}
 		
 	}
 	
-	private void registerMFAResponse(int statusCode, boolean hasValidated, JSONObject retainedValues) throws JSONException, CustomAPIErrorException {
+	private void registerMFAResponse(int statusCode, boolean hasValidated, JSONObject retainedValues, UserContext userContext) throws JSONException, CustomAPIErrorException {
 		
 		if(!hasValidated)
 			return;
@@ -431,76 +783,49 @@ public class PingOneAuthGatewayController {
 			
 		
 		if(isRegisterEmailDevice)
-			this.p1UserHelper.registerEmailDevice(retainedValues.getString("username"), mfaAttribute);
-			
-		
-	}
-
-	private boolean validateRequestPayload(JSONObject retainedValues, String bodyStr) throws CustomAPIErrorException {
-
-		JSONObject requestPayload = new JSONObject(bodyStr);
-		JSONObject userRequestPayload = requestPayload.has("user")?requestPayload.getJSONObject("user"):requestPayload;
-
-		Map<String, Object> userRequestPayloadMap = convertJSONToUnmodifiableMap(userRequestPayload);
-		Map<String, Object> retainedValuesMap = convertJSONToUnmodifiableMap(retainedValues);
-		
-		boolean hasValidated = false;
-		
-		for(IValidator validator: this.registeredValidators.getRegisteredValidators())
 		{
-			if(!validator.isApplicable(userRequestPayloadMap))
-				continue;
+			String username = retainedValues.getString("username");
 			
-			hasValidated = true;
-			
-			validator.validate(retainedValuesMap, userRequestPayloadMap);
+			//inline when the queue is full so the enrolment is not lost
+			if(!this.deferredEnrolment || !this.enrolmentQueue.enqueue(username, mfaAttribute))
+				this.p1UserHelper.registerEmailDevice(userContext, username, mfaAttribute);
 		}
+			
 		
-		if(hasValidated)
-			this.p1UserHelper.enableMFA(retainedValues.getString("username"), "username");
-		
-		return hasValidated;
 	}
 
-	private Map<String, Object> convertJSONToUnmodifiableMap(JSONObject userRequestPayload) {
-		Map<String, Object> map = new HashMap<String, Object>();
+	boolean validateRequestPayload(JSONObject retainedValues, RequestPayload requestPayload) throws CustomAPIErrorException {
+
+		//read-only views, shared by every validator
+		Map<String, Object> userRequestPayloadMap = requestPayload.getUserPayload();
+		Map<String, Object> retainedValuesMap = new JSONObjectMap(retainedValues);
 		
-		for(String key: userRequestPayload.keySet())
-			map.put(key, userRequestPayload.get(key));
+		List<IValidator> applicableValidators = this.registeredValidators.getApplicableValidators(userRequestPayloadMap);
 		
-		return Collections.unmodifiableMap(map);
+		this.validatorRunner.validate(applicableValidators, retainedValuesMap, userRequestPayloadMap);
+		
+		return !applicableValidators.isEmpty();
 	}
 
 	private String obfuscate(String bodyStr) {
-		JSONObject jsonObject = new JSONObject(bodyStr);
-		
-		for(String obfuscateClaim: this.obfuscateValues)
-		{
-			if(jsonObject.has(obfuscateClaim))
-				jsonObject.put(obfuscateClaim, "****");
-		}
-			
-		return jsonObject.toString(4);
+		return JsonClaimExtractor.obfuscate(bodyStr, this.obfuscateNames);
 	}
 
-	private JSONObject updateRetainedValuesRequest(HttpServletRequest request, HttpServletResponse response, String flowId, String bodyStr) throws EncryptionException {
+	RetainedValues updateRetainedValuesRequest(HttpServletRequest request, HttpServletResponse response, String flowId, RequestPayload requestPayload) throws EncryptionException {
 		if(flowId == null)
 			return null;
 		
-		JSONObject cookieValues = getRetainedValuesFromCookie(flowId, request);
+		RetainedValues cookieValues = getRetainedValuesFromCookie(flowId, request);
 		
-		if(bodyStr == null)
+		if(requestPayload == null)
 			return cookieValues;
 		
-		JSONObject jsonPayload = new JSONObject(bodyStr);
-		JSONObject userRequestPayload = jsonPayload.has("user")?jsonPayload.getJSONObject("user"):jsonPayload;
-		
 		for(String retainValue: this.retainValues)
 		{
-			if(!userRequestPayload.has(retainValue))
+			if(!requestPayload.has(retainValue))
 				continue;
 			
-			cookieValues.put(retainValue, userRequestPayload.get(retainValue));
+			cookieValues.put(retainValue, requestPayload.get(retainValue));
 		}
 		
 		if(log.isDebugEnabled())
@@ -509,17 +834,16 @@ public class PingOneAuthGatewayController {
 		return cookieValues;
 	}
 
-	private JSONObject updateRetainedValuesResponse(HttpServletResponse response, String payload, String flowId, JSONObject retainAttributes) throws EncryptionException {
+	RetainedValues updateRetainedValuesResponse(HttpServletResponse response, String payload, String flowId, RetainedValues retainAttributes, UserContext userContext) throws EncryptionException {
 		if(flowId == null)
 			return null;
 		
-		JSONObject jsonPayload = new JSONObject(payload);
-		JSONObject formDataPayload = jsonPayload.has("formData")?jsonPayload.getJSONObject("formData"):jsonPayload;
-		JSONObject userRequestPayload = formDataPayload.has("user")?formDataPayload.getJSONObject("user"):formDataPayload;
+		JsonClaims jsonPayload = this.responseClaimExtractor.extract(payload);
+		Map<String, Object> userRequestPayload = jsonPayload.getClaims();
 		
 		for(String retainValue: this.retainValues)
 		{
-			if(!userRequestPayload.has(retainValue))
+			if(!userRequestPayload.containsKey(retainValue))
 				continue;
 			
 			retainAttributes.put(retainValue, userRequestPayload.get(retainValue));
@@ -536,7 +860,7 @@ public class PingOneAuthGatewayController {
 					continue;
 				
 				try {
-					String username = this.p1UserHelper.getUserName(String.valueOf(retainAttributes.get(retainValueKey)), retainValueKey);
+					String username = this.p1UserHelper.getUserName(userContext, String.valueOf(retainAttributes.get(retainValueKey)), retainValueKey);
 					retainAttributes.put("username", username);
 					
 				} catch (JSONException | CustomAPIErrorException e) {
@@ -545,9 +869,25 @@ public class PingOneAuthGatewayController {
 			}
 		}
 		
-		String newEncryptedCookieValue = this.encryptionHelper.generate(flowId, retainAttributes);
-		
-		addCookie(getCookieName(flowId), newEncryptedCookieValue, response);
+		if(CompletedStatus.equals(jsonPayload.getRootValue(StatusAttribute)))
+		{
+			//nothing reads the cookie once the flow has completed
+			if(retainAttributes.isIssued())
+			{
+				this.retainedValuesStore.remove(flowId, retainAttributes);
+				expireCookie(getCookieName(flowId), response);
+			}
+		}
+		else if(retainAttributes.isDirty())
+		{
+			String newCookieValue = this.retainedValuesStore.save(flowId, retainAttributes);
+			
+			//a server-side store updates the values behind the handle the client already holds
+			if(newCookieValue != null)
+				addCookie(getCookieName(flowId), newCookieValue, response);
+			
+			retainAttributes.clean();
+		}
 		
 		if(log.isDebugEnabled())
 			log.debug("Retained Values Response: " + retainAttributes.toString(4));
@@ -561,61 +901,148 @@ public class PingOneAuthGatewayController {
 		newCookie.setPath("/");
 		newCookie.setHttpOnly(true);
 		newCookie.setSecure(true);
+		newCookie.setMaxAge(this.cookieMaxAgeSeconds);
 		response.addCookie(newCookie);
 	}
+	
+	private void expireCookie(String cookieName, HttpServletResponse response)
+	{
+		if(log.isDebugEnabled())
+			log.debug("Expiring cookie: " + cookieName);
+		
+		Cookie expiredCookie = new Cookie(cookieName, "");
+		expiredCookie.setPath("/");
+		expiredCookie.setHttpOnly(true);
+		expiredCookie.setSecure(true);
+		expiredCookie.setMaxAge(0);
+		response.addCookie(expiredCookie);
+	}
 
-	private JSONObject getRetainedValuesFromCookie(String flowId, HttpServletRequest request) throws EncryptionException {
+	private RetainedValues getRetainedValuesFromCookie(String flowId, HttpServletRequest request) throws EncryptionException {
 		if(request.getCookies() == null)
-			return new JSONObject();
+			return new RetainedValues();
 		
 		for(Cookie cookie: request.getCookies())
 		{
-			if(!cookie.getName().equals(getCookieName(flowId)))
+			//an expired cookie can still be sent back empty by clients that do not honour max-age=0
+			if(!cookie.getName().equals(getCookieName(flowId)) || cookie.getValue() == null || cookie.getValue().isEmpty())
 				continue;
 			
-			return this.encryptionHelper.read(flowId, cookie.getValue());
+			return this.retainedValuesStore.load(flowId, cookie.getValue());
 		}
 		
-		return new JSONObject();
+		return new RetainedValues();
 	}
 
 	private String getCookieName(String flowId) {
-		return "ST-RC-" + flowId;
+		return RetainedValuesCookiePrefix + flowId;
 	}
 
-	private URI getTargetUrl(HttpServletRequest request) throws URISyntaxException {
-		String url = null;
-		if(request.getQueryString() != null && !request.getQueryString().trim().equals(""))
-			url = String.format("https://%s%s?%s", this.authHost, request.getRequestURI(), request.getQueryString());
-		else
-			url = String.format("https://%s%s", this.authHost, request.getRequestURI());
+	URI getTargetUrl(HttpServletRequest request) throws URISyntaxException {
+		return getTargetUrl(request, false);
+	}
+	
+	//hosted-ui pages and assets are requested over and over, so their URIs are cached
+	URI getTargetUrl(HttpServletRequest request, boolean cacheable) throws URISyntaxException {
+		URI url = this.upstreamUriBuilder.getUri(request.getRequestURI(), request.getQueryString(), cacheable);
 		
 		if(log.isDebugEnabled())
 			log.debug("Target URL: " + url);
 		
-		return new URI(url);
+		return url;
 	}
 
-	private void copyRequestHeaders(MultiValueMap<String, String> headers, HttpServletRequest request, Builder targetRequestBuilder) {
+	//flow requests go to the upstream address holding the flow, anything else is balanced per request
+	URI getFlowTargetUrl(HttpServletRequest request, String flowId) throws URISyntaxException {
+		if(flowId == null)
+			return getTargetUrl(request);
+		
+		URI url = this.upstreamUriBuilder.getFlowUri(flowId, request.getRequestURI(), request.getQueryString());
+		
+		if(log.isDebugEnabled())
+			log.debug("Target URL: " + url + " for flow " + flowId);
+		
+		return url;
+	}
+
+	//the pool a request that cannot connect is retried in, none for a flow's requests as no other address holds the flow
+	UpstreamPool getFailoverPool(String flowId) {
+		return flowId == null ? this.upstreamUriBuilder.getPool() : null;
+	}
+
+	//the flow id of an authorize redirect, either ?flowId= or /flows/{flowId}, null when it has none
+	static String getFlowId(String location) {
+		if(location == null)
+			return null;
+		
+		int start = location.indexOf("flowId=");
+		
+		if(start >= 0 && (start == 0 || location.charAt(start - 1) == '?' || location.charAt(start - 1) == '&'))
+			start += "flowId=".length();
+		else if((start = location.indexOf("/flows/")) >= 0)
+			start += "/flows/".length();
+		else
+			return null;
+		
+		int end = start;
+		
+		while(end < location.length() && "/?&#".indexOf(location.charAt(end)) < 0)
+			end++;
+		
+		return end > start ? location.substring(start, end) : null;
+	}
+
+	void copyRequestHeaders(MultiValueMap<String, String> headers, HttpServletRequest request, Builder targetRequestBuilder) {
+		
+		HeaderPolicy headerPolicy = this.headerPolicies.getRequestPolicy(request.getRequestURI());
+		List<String> connectionTokens = HeaderPolicy.getConnectionTokens(headers);
 					
-	    headers.forEach((key, values) -> {
+	    headers.forEach((name, values) -> {
 	    	
-	    	key = key.toLowerCase();
+	    	if(!headerPolicy.isForwarded(name, connectionTokens))
+	    		return;
 	    	
-	    	if(!key.equals("host") && !key.equals("connection") && !key.equals("content-length"))
-	    	{
-	    		if(log.isDebugEnabled())
-			    	log.debug(String.format(
-			          "Header '%s' = %s", key, values.stream().collect(Collectors.joining("|"))));
-		        
-		        for(String value : values)
-		        	targetRequestBuilder.header(key, value);
-	    	}
+	        for(String value : values)
+	        {
+	        	//the retained values cookies are only read by the gateway
+	        	if(name.equalsIgnoreCase("cookie"))
+	        		value = removeRetainedValuesCookies(value);
+	        	
+	        	if(value == null)
+	        		continue;
+	        	
+	        	if(log.isDebugEnabled())
+	        		log.debug(String.format("Header '%s' = %s", name, value));
+	        	
+	        	targetRequestBuilder.header(name, value);
+	        }
 	    });
 	    
 	}
 
-	private String getResponsePayload(HttpResponse<InputStream> response) throws UnsupportedOperationException, IOException {
+	private static String removeRetainedValuesCookies(String cookieHeader) {
+		if(!cookieHeader.contains(RetainedValuesCookiePrefix))
+			return cookieHeader;
+		
+		StringBuilder cookies = new StringBuilder(cookieHeader.length());
+		
+		for(String cookie: cookieHeader.split(";"))
+		{
+			cookie = cookie.trim();
+			
+			if(cookie.isEmpty() || cookie.startsWith(RetainedValuesCookiePrefix))
+				continue;
+			
+			if(cookies.length() > 0)
+				cookies.append("; ");
+			
+			cookies.append(cookie);
+		}
+		
+		return cookies.length() == 0 ? null : cookies.toString();
+	}
+
+	private String getResponsePayload(HttpResponse<byte[]> response) throws UnsupportedOperationException, IOException {
 		if (response == null) {
 			return null;
 		}
@@ -640,45 +1067,133 @@ public class PingOneAuthGatewayController {
 
 	}
 	
-	private HttpResponse<InputStream> executeTargetRequest(HttpRequest targetRequest, HttpServletResponse response, boolean ignoreContentType) throws IOException, InterruptedException {
-		return executeTargetRequest(targetRequest, response, true, ignoreContentType);
+	private CompletableFuture<HttpResponse<byte[]>> executeTargetRequestAsync(UpstreamPool failoverPool, HttpRequest targetRequest, HttpServletResponse response, boolean ignoreContentType) throws IOException, InterruptedException {
+		return executeTargetRequestAsync(failoverPool, targetRequest, response, true, ignoreContentType);
+	}
+
+	//in synchronous mode the returned future is already complete and its continuations run on the calling thread
+	private CompletableFuture<HttpResponse<byte[]>> executeTargetRequestAsync(UpstreamPool failoverPool, HttpRequest targetRequest, HttpServletResponse response, boolean isSetResponseHeaders, boolean ignoreContentType) throws IOException, InterruptedException {
+
+		if(!this.asyncMode)
+			return CompletableFuture.completedFuture(executeTargetRequest(failoverPool, targetRequest, BodyHandlers.ofByteArray(), response, isSetResponseHeaders, ignoreContentType));
+
+		return continueWith(httpClient.sendAsync(failoverPool, targetRequest, BodyHandlers.ofByteArray()), targetResponse -> {
+			copyResponseHeaders(targetResponse, response, isSetResponseHeaders);
+			return targetResponse;
+		});
 	}
 
-	private HttpResponse<InputStream> executeTargetRequest(HttpRequest targetRequest, HttpServletResponse response, boolean isSetResponseHeaders, boolean ignoreContentType) throws IOException, InterruptedException {
+	private <T> HttpResponse<T> executeTargetRequest(UpstreamPool failoverPool, HttpRequest targetRequest, BodyHandler<T> bodyHandler, HttpServletResponse response, boolean isSetResponseHeaders, boolean ignoreContentType) throws IOException, InterruptedException {
+
+		HttpResponse<T> targetResponse = httpClient.send(failoverPool, targetRequest, bodyHandler);
+		
+		copyResponseHeaders(targetResponse, response, isSetResponseHeaders);
+		
+		return targetResponse;
+	}
 
-		HttpResponse<InputStream> targetResponse = httpClient.send(targetRequest, BodyHandlers.ofInputStream());
+	private void copyResponseHeaders(HttpResponse<?> targetResponse, HttpServletResponse response, boolean isSetResponseHeaders) {
 		
 		if(log.isDebugEnabled())
 			log.debug("target content-type is: " + targetResponse.headers().firstValue("Content-Type"));
 		
 		if(isSetResponseHeaders)
 		{
-			for(String headerName: targetResponse.headers().map().keySet())
-			{				
-				if(headerName.equalsIgnoreCase(":status") || headerName.equalsIgnoreCase("content-encoding") || headerName.equalsIgnoreCase("content-type") || headerName.equalsIgnoreCase("content-length") || headerName.toLowerCase().startsWith("access-control"))
-					continue;
+			Map<String, List<String>> headers = targetResponse.headers().map();
+			
+			HeaderPolicy headerPolicy = this.headerPolicies.getResponsePolicy(targetResponse.request().uri().getRawPath());
+			List<String> connectionTokens = HeaderPolicy.getConnectionTokens(headers);
+			
+			headers.forEach((headerName, headerValues) -> {
+				if(!headerPolicy.isForwarded(headerName, connectionTokens))
+					return;
 				
-				for(String headerValue: targetResponse.headers().allValues(headerName))
+				for(String headerValue: headerValues)
 				{
 					if(log.isDebugEnabled())
 						log.debug(String.format("Adding response header: %s=%s", headerName, headerValue));
 					response.addHeader(headerName, headerValue);
 				}
-			}
+			});
 		}
+	}
+
+	//the upstream response headers the response policy of their route forwards, as copyResponseHeaders writes them
+	private Map<String, List<String>> getForwardedResponseHeaders(HttpResponse<?> targetResponse) {
 		
-		return targetResponse;
+		Map<String, List<String>> headers = targetResponse.headers().map();
+		
+		HeaderPolicy headerPolicy = this.headerPolicies.getResponsePolicy(targetResponse.request().uri().getRawPath());
+		List<String> connectionTokens = HeaderPolicy.getConnectionTokens(headers);
+		
+		Map<String, List<String>> forwardedHeaders = new LinkedHashMap<String, List<String>>();
+		headers.forEach((headerName, headerValues) -> {
+			if(headerPolicy.isForwarded(headerName, connectionTokens))
+				forwardedHeaders.put(headerName, headerValues);
+		});
+		
+		return forwardedHeaders;
+	}
+
+	//runs post-processing of an upstream response inline once it is available, or on the continuation pool in async mode
+	private <T, R> CompletableFuture<R> continueWith(CompletableFuture<T> future, ResponseContinuation<T, R> continuation) {
+		
+		Function<T, R> function = value -> {
+			try {
+				return continuation.apply(value);
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		};
+		
+		if(this.asyncMode)
+			return future.thenApplyAsync(function, this.continuationExecutor);
+		
+		return future.thenApply(function);
+	}
+
+	//asynchronous mode hands Spring MVC the future. synchronous mode returns the ResponseEntity itself, already complete
+	//on this thread, so the request is not started async, dispatched a second time and bound by the async request timeout
+	private Object respond(CompletableFuture<ResponseEntity<String>> future) throws IOException, URISyntaxException, EncryptionException, CustomAPIErrorException {
+		
+		if(this.asyncMode)
+			return future;
+		
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			Throwable cause = ConcurrentCalls.unwrap(e);
+			
+			if(cause instanceof CustomAPIErrorException)
+				throw (CustomAPIErrorException) cause;
+			else if(cause instanceof EncryptionException)
+				throw (EncryptionException) cause;
+			else if(cause instanceof URISyntaxException)
+				throw (URISyntaxException) cause;
+			else if(cause instanceof IOException)
+				throw (IOException) cause;
+			else if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if(cause instanceof Error)
+				throw (Error) cause;
+			
+			throw new IOException(cause);
+		}
+	}
+
+	private interface ResponseContinuation<T, R> {
+		R apply(T value) throws Exception;
 	}
 	
 	private static InputStream getDecodedInputStream(
-	        HttpResponse<InputStream> httpResponse) {
+	        HttpResponse<byte[]> httpResponse) {
 	    String encoding = determineContentEncoding(httpResponse);
 	    try {
 	        switch (encoding) {
 	            case "":
-	                return httpResponse.body();
+	                return new ByteArrayInputStream(httpResponse.body());
 	            case "gzip":
-	                return new GZIPInputStream(httpResponse.body());
+	                return new GZIPInputStream(new ByteArrayInputStream(httpResponse.body()));
 	            default:
 	                throw new UnsupportedOperationException(
 	                        "Unexpected Content-Encoding: " + encoding);
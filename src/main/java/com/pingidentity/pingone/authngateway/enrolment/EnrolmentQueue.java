@@ -0,0 +1,266 @@
+package com.pingidentity.pingone.authngateway.enrolment;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.pingidentity.pingone.authngateway.exceptions.CustomAPIErrorException;
+import com.pingidentity.pingone.authngateway.helpers.ConcurrentCalls;
+import com.pingidentity.pingone.authngateway.helpers.PingOneUserHelper;
+import com.pingidentity.pingone.authngateway.helpers.UserContext;
+
+/**
+ * Registers email MFA devices in the background once a registration flow
+ * has completed, so the browser does not wait for the device listing and
+ * creation.
+ *
+ * At most ping.mfa.enrolment.maxQueued users are queued, one task each: a
+ * user already queued with the same email is not queued again, and a
+ * different email replaces the queued task (one already running still
+ * completes). Worker threads register the device and retry failures that may
+ * pass later (no response in time, a 5xx, the Users API circuit breaker or
+ * bulkhead refusing the call) with exponential backoff and jitter, up to
+ * maxAttempts; any other failure, such as a 4xx, is given up on at once.
+ * Each task is recorded in the IEnrolmentJournal when queued and when done,
+ * and the tasks it still holds at startup are queued again.
+ */
+@Component
+public class EnrolmentQueue {
+
+	private static Logger log = LoggerFactory.getLogger(EnrolmentQueue.class);
+
+	private static final String attributeName = "enablemfa";
+
+	@Value("${ping.mfa.enrolment.threads:2}")
+	private int threads;
+
+	@Value("${ping.mfa.enrolment.maxQueued:1000}")
+	private int maxQueued;
+
+	@Value("${ping.mfa.enrolment.maxAttempts:5}")
+	private int maxAttempts;
+
+	@Value("${ping.mfa.enrolment.backoffMillis:1000}")
+	private long backoffMillis;
+
+	@Value("${ping.mfa.enrolment.maxBackoffMillis:60000}")
+	private long maxBackoffMillis;
+
+	@Autowired
+	private PingOneUserHelper p1UserHelper;
+
+	@Autowired
+	private IEnrolmentJournal journal;
+
+	private ScheduledThreadPoolExecutor executor;
+
+	// queued or running, by username
+	private final ConcurrentHashMap<String, EnrolmentTask> pending = new ConcurrentHashMap<String, EnrolmentTask>();
+
+	private final LongAdder queued = new LongAdder();
+	private final LongAdder deduplicated = new LongAdder();
+	private final LongAdder replaced = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder registered = new LongAdder();
+	private final LongAdder retried = new LongAdder();
+	private final LongAdder abandoned = new LongAdder();
+
+	@PostConstruct
+	public void init() throws IOException {
+		AtomicInteger threadCount = new AtomicInteger();
+
+		this.executor = new ScheduledThreadPoolExecutor(Math.max(1, this.threads), runnable -> {
+			Thread thread = new Thread(runnable, "mfa-enrolment-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.executor.setRemoveOnCancelPolicy(true);
+
+		List<EnrolmentTask> recovered = this.journal.recover();
+
+		// give the rest of the gateway a moment to start before calling PingOne
+		for (EnrolmentTask task : recovered)
+			if (this.pending.putIfAbsent(task.getUsername(), task) == null)
+				schedule(task, this.backoffMillis);
+
+		if (log.isDebugEnabled() || !recovered.isEmpty())
+			log.info(String.format("MFA enrolment queue: journal=%s, threads=%s, maxQueued=%s, recovered=%s",
+					this.journal.info(), this.threads, this.maxQueued, recovered.size()));
+	}
+
+	@PreDestroy
+	public void destroy() {
+		// tasks still pending stay in the journal for the next start
+		this.executor.shutdownNow();
+	}
+
+	// false when the queue is full, the caller should register the device itself
+	public boolean enqueue(String username, String email) {
+		if (this.pending.size() >= this.maxQueued) {
+			this.rejected.increment();
+			log.warn("MFA enrolment queue is full, registering inline: " + getMetrics());
+			return false;
+		}
+
+		EnrolmentTask task = new EnrolmentTask(username, email);
+
+		EnrolmentTask existing;
+		while ((existing = this.pending.putIfAbsent(username, task)) != null) {
+			if (Objects.equals(existing.getEmail(), email)) {
+				this.deduplicated.increment();
+
+				if (log.isDebugEnabled())
+					log.debug("MFA enrolment already queued for user: " + username);
+
+				return true;
+			}
+
+			// the queued task sees it was replaced when it runs
+			if (this.pending.replace(username, existing, task)) {
+				this.replaced.increment();
+
+				if (log.isDebugEnabled())
+					log.debug("MFA enrolment queued again with another email for user: " + username);
+
+				break;
+			}
+		}
+
+		try {
+			this.journal.append(task);
+		} catch (IOException e) {
+			log.warn("Unable to journal MFA enrolment, it will be lost if the gateway stops first: " + username, e);
+		}
+
+		this.queued.increment();
+		schedule(task, 0);
+
+		return true;
+	}
+
+	public int getPendingCount() {
+		return this.pending.size();
+	}
+
+	public Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("pending", this.pending.size());
+		metrics.put("queued", this.queued.sum());
+		metrics.put("deduplicated", this.deduplicated.sum());
+		metrics.put("replaced", this.replaced.sum());
+		metrics.put("rejected", this.rejected.sum());
+		metrics.put("registered", this.registered.sum());
+		metrics.put("retried", this.retried.sum());
+		metrics.put("abandoned", this.abandoned.sum());
+
+		return metrics;
+	}
+
+	private void schedule(EnrolmentTask task, long delayMillis) {
+		try {
+			this.executor.schedule(() -> run(task), delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			if (log.isDebugEnabled())
+				log.debug("MFA enrolment not scheduled, shutting down: " + task);
+		}
+	}
+
+	private void run(EnrolmentTask task) {
+		// replaced by a task with another email, which the journal already holds instead
+		if (this.pending.get(task.getUsername()) != task)
+			return;
+
+		int attempt = task.attempted();
+
+		try {
+			boolean created = ConcurrentCalls.await(
+					this.p1UserHelper.registerEmailDeviceAsync(new UserContext(), task.getUsername(), task.getEmail(), true),
+					attributeName);
+
+			if (created)
+				this.registered.increment();
+
+			if (log.isDebugEnabled())
+				log.debug(String.format("MFA enrolment done for user %s: %s", task.getUsername(),
+						created ? "device registered" : "device already registered"));
+
+			done(task);
+		} catch (CustomAPIErrorException e) {
+			if (Thread.currentThread().isInterrupted())
+				return;
+
+			if (!isRetryable(e)) {
+				this.abandoned.increment();
+				log.error(String.format("MFA enrolment for user %s failed, not retrying: %s", task.getUsername(),
+						e.getDetailedMessage()));
+
+				done(task);
+				return;
+			}
+
+			if (attempt >= this.maxAttempts) {
+				this.abandoned.increment();
+				log.error(String.format("MFA enrolment for user %s failed %s times, giving up: %s", task.getUsername(),
+						attempt, e.getDetailedMessage()));
+
+				done(task);
+				return;
+			}
+
+			long delay = getBackoffMillis(attempt);
+
+			this.retried.increment();
+			log.warn(String.format("MFA enrolment for user %s failed, retrying in %sms: %s", task.getUsername(), delay,
+					e.getDetailedMessage()));
+
+			schedule(task, delay);
+		} catch (RuntimeException e) {
+			this.abandoned.increment();
+			log.error("MFA enrolment failed for user " + task.getUsername(), e);
+
+			done(task);
+		}
+	}
+
+	// no response in time, a 5xx, or the Users API circuit breaker or bulkhead refusing the call
+	private static boolean isRetryable(CustomAPIErrorException e) {
+		return "TIMEOUT".equals(e.getDetailedCode()) || "UNAVAILABLE".equals(e.getDetailedCode());
+	}
+
+	// exponential, with the upper half jittered so retries after a PingOne outage do not arrive together
+	private long getBackoffMillis(int attempt) {
+		long backoff = Math.min(this.maxBackoffMillis, this.backoffMillis << Math.min(attempt - 1, 20));
+
+		return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+	}
+
+	private void done(EnrolmentTask task) {
+		// journaled as done before a new task for the user can be queued
+		try {
+			this.journal.complete(task);
+		} catch (IOException e) {
+			log.warn("Unable to journal completed MFA enrolment, it will run again after a restart: " + task.getUsername(), e);
+		}
+
+		this.pending.remove(task.getUsername(), task);
+	}
+
+}
@@ -0,0 +1,41 @@
+package com.pingidentity.pingone.authngateway.enrolment;
+
+/**
+ * A user whose email MFA device is still to be registered once their flow
+ * has completed.
+ */
+public final class EnrolmentTask {
+
+	private final String username;
+	private final String email;
+
+	// handed between worker threads through the executor, never used by two at once
+	private int attempts;
+
+	public EnrolmentTask(String username, String email) {
+		this.username = username;
+		this.email = email;
+	}
+
+	public String getUsername() {
+		return this.username;
+	}
+
+	public String getEmail() {
+		return this.email;
+	}
+
+	public int getAttempts() {
+		return this.attempts;
+	}
+
+	int attempted() {
+		return ++this.attempts;
+	}
+
+	@Override
+	public String toString() {
+		return this.username + " (attempts " + this.attempts + ")";
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.pingidentity.pingone.authngateway.enrolment;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Keeps the MFA enrolments that are queued but not yet done, so they can be
+ * queued again after a restart. There is at most one outstanding task per
+ * username: appending a task for a username replaces the one outstanding,
+ * and completing a task that was replaced changes nothing.
+ *
+ * The journal is chosen with ping.mfa.enrolment.journal. Another durable
+ * store (e.g. a database table) can be added as a Spring component
+ * implementing this interface.
+ */
+public interface IEnrolmentJournal {
+
+	// the task has been queued
+	public void append(EnrolmentTask task) throws IOException;
+
+	// the task is done, whether the device was registered or the task given up on
+	public void complete(EnrolmentTask task) throws IOException;
+
+	// the tasks appended and not completed before the last shutdown, read once at startup
+	public List<EnrolmentTask> recover() throws IOException;
+
+	public String info();
+}
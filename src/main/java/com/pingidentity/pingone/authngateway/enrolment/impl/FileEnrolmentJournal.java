@@ -0,0 +1,186 @@
+package com.pingidentity.pingone.authngateway.enrolment.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.pingidentity.pingone.authngateway.enrolment.EnrolmentTask;
+import com.pingidentity.pingone.authngateway.enrolment.IEnrolmentJournal;
+
+/**
+ * Journals enrolments to an append-only file of JSON lines, one line when a
+ * task is queued and one when it is done. At startup, and whenever most of
+ * the file is done tasks, it is rewritten with just the outstanding ones.
+ *
+ * Each line is written straight to the file, so it survives the gateway
+ * process dying; with ping.mfa.enrolment.journalFsync it is also forced to
+ * disk, which survives the host dying but costs a disk flush per line. The
+ * file holds usernames and email addresses and is created readable by its
+ * owner only.
+ */
+@Component
+@ConditionalOnProperty(name = "ping.mfa.enrolment.journal", havingValue = "file")
+public class FileEnrolmentJournal implements IEnrolmentJournal {
+
+	private static Logger log = LoggerFactory.getLogger(FileEnrolmentJournal.class);
+
+	private static final String AddOperation = "add";
+	private static final String DoneOperation = "done";
+
+	// done lines are only compacted away once there are this many lines
+	private static final int MinCompactLines = 1000;
+
+	@Value("${ping.mfa.enrolment.journalFile:mfa-enrolment.journal}")
+	private String journalFile;
+
+	@Value("${ping.mfa.enrolment.journalFsync:false}")
+	private boolean fsync;
+
+	private Path path;
+	private FileChannel channel;
+	private int lines;
+
+	private final Map<String, EnrolmentTask> outstanding = new LinkedHashMap<String, EnrolmentTask>();
+
+	@PostConstruct
+	public synchronized void init() throws IOException {
+		this.path = Paths.get(this.journalFile).toAbsolutePath();
+
+		if (Files.exists(this.path))
+			read();
+
+		compact();
+
+		log.info(String.format("MFA enrolment journal %s: %s outstanding", this.path, this.outstanding.size()));
+	}
+
+	@PreDestroy
+	public synchronized void destroy() throws IOException {
+		if (this.channel != null)
+			this.channel.close();
+	}
+
+	@Override
+	public synchronized void append(EnrolmentTask task) throws IOException {
+		this.outstanding.put(task.getUsername(), task);
+
+		write(AddOperation, task);
+	}
+
+	@Override
+	public synchronized void complete(EnrolmentTask task) throws IOException {
+		// a task replaced by one with another email is not outstanding any more
+		if (!this.outstanding.remove(task.getUsername(), task))
+			return;
+
+		write(DoneOperation, task);
+
+		if (this.lines >= MinCompactLines && this.lines > this.outstanding.size() * 4)
+			compact();
+	}
+
+	@Override
+	public synchronized List<EnrolmentTask> recover() {
+		return new ArrayList<EnrolmentTask>(this.outstanding.values());
+	}
+
+	@Override
+	public String info() {
+		return "file";
+	}
+
+	private void read() throws IOException {
+		for (String line : Files.readAllLines(this.path, StandardCharsets.UTF_8)) {
+			if (line.isEmpty())
+				continue;
+
+			try {
+				JSONObject entry = new JSONObject(line);
+				String username = entry.getString("username");
+
+				if (DoneOperation.equals(entry.getString("op")))
+					this.outstanding.remove(username);
+				else
+					this.outstanding.put(username, new EnrolmentTask(username, entry.optString("email", null)));
+			} catch (JSONException e) {
+				// the last line of a journal that was being written when the process died
+				log.warn("Skipping unreadable MFA enrolment journal line: " + e.getMessage());
+			}
+		}
+	}
+
+	private void write(String operation, EnrolmentTask task) throws IOException {
+		write(this.channel, operation, task);
+
+		if (this.fsync)
+			this.channel.force(false);
+
+		this.lines++;
+	}
+
+	private static void write(FileChannel channel, String operation, EnrolmentTask task) throws IOException {
+		JSONObject entry = new JSONObject();
+		entry.put("op", operation);
+		entry.put("username", task.getUsername());
+
+		if (AddOperation.equals(operation))
+			entry.put("email", task.getEmail());
+
+		ByteBuffer line = ByteBuffer.wrap((entry.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+
+		while (line.hasRemaining())
+			channel.write(line);
+	}
+
+	// rewrites the journal with the outstanding tasks only, replacing the old file in one move
+	private void compact() throws IOException {
+		Path compacted = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+
+		try (FileChannel compactedChannel = open(compacted, StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (EnrolmentTask task : this.outstanding.values())
+				write(compactedChannel, AddOperation, task);
+
+			compactedChannel.force(false);
+		}
+
+		// the current file stays open for appends until it has been replaced
+		Files.move(compacted, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		if (this.channel != null)
+			this.channel.close();
+
+		this.channel = open(this.path, StandardOpenOption.APPEND);
+		this.lines = this.outstanding.size();
+	}
+
+	private static FileChannel open(Path path, StandardOpenOption mode) throws IOException {
+		if (!Files.exists(path) && FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+
+		return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode);
+	}
+
+}
@@ -0,0 +1,38 @@
+package com.pingidentity.pingone.authngateway.enrolment.impl;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.pingidentity.pingone.authngateway.enrolment.EnrolmentTask;
+import com.pingidentity.pingone.authngateway.enrolment.IEnrolmentJournal;
+
+/**
+ * Journals nothing, so enrolments still queued when the gateway stops are
+ * lost.
+ */
+@Component
+@ConditionalOnProperty(name = "ping.mfa.enrolment.journal", havingValue = "none", matchIfMissing = true)
+public class NoOpEnrolmentJournal implements IEnrolmentJournal {
+
+	@Override
+	public void append(EnrolmentTask task) {
+	}
+
+	@Override
+	public void complete(EnrolmentTask task) {
+	}
+
+	@Override
+	public List<EnrolmentTask> recover() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public String info() {
+		return "none";
+	}
+
+}
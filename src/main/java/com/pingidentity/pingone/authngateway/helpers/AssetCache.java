@@ -0,0 +1,355 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.net.http.HttpHeaders;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-process cache for the hosted-UI assets proxied from PingOne.
+ *
+ * Entries are bounded by total body bytes and evicted least recently used
+ * first. Only responses that PingOne marks as publicly cacheable with a
+ * max-age are stored, with the headers the response policy forwards, and
+ * their freshness counts from when PingOne produced them (less any Age they
+ * arrived with). Once stale an entry is still served for the
+ * stale-while-revalidate window while a conditional request refreshes it in
+ * the background. A request with Cache-Control no-cache or a max-age the
+ * entry is older than (or Pragma: no-cache) is not served from the cache.
+ */
+@Component
+public class AssetCache {
+
+	private static Logger log = LoggerFactory.getLogger(AssetCache.class);
+
+	private static final String AgeHeader = "Age";
+
+	@Value("${ping.assetCache.enabled:true}")
+	private boolean enabled;
+
+	@Value("${ping.assetCache.maxBytes:33554432}")
+	private long maxBytes;
+
+	@Value("${ping.assetCache.maxEntryBytes:2097152}")
+	private long maxEntryBytes;
+
+	@Value("${ping.assetCache.staleWhileRevalidateSeconds:60}")
+	private long defaultStaleSeconds;
+
+	@Value("${ping.assetCache.revalidationThreads:2}")
+	private int revalidationThreads;
+
+	private final LinkedHashMap<String, CachedAsset> entries = new LinkedHashMap<String, CachedAsset>(64, 0.75f, true);
+	private long currentBytes = 0;
+
+	private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private ThreadPoolExecutor revalidationExecutor;
+
+	public interface AssetLoader {
+		public CachedAsset load(CachedAsset staleAsset) throws Exception;
+	}
+
+	@PostConstruct
+	public void init() {
+		AtomicInteger threadCount = new AtomicInteger();
+
+		this.revalidationExecutor = new ThreadPoolExecutor(revalidationThreads, revalidationThreads, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(256), runnable -> {
+					Thread thread = new Thread(runnable, "asset-revalidation-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.revalidationExecutor.allowCoreThreadTimeOut(true);
+
+		if (log.isDebugEnabled())
+			log.debug(String.format("Asset cache enabled: %s, maxBytes: %s, maxEntryBytes: %s", enabled, maxBytes,
+					maxEntryBytes));
+	}
+
+	@PreDestroy
+	public void destroy() {
+		this.revalidationExecutor.shutdownNow();
+	}
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	public long getMaxEntryBytes() {
+		return this.maxEntryBytes;
+	}
+
+	// the encoding the browser accepts is part of the key as the body is stored still encoded
+	public String getCacheKey(String requestUri, String queryString, String acceptEncoding) {
+		StringBuilder key = new StringBuilder(requestUri);
+
+		if (queryString != null && !queryString.isEmpty())
+			key.append('?').append(queryString);
+
+		return key.append('|').append(acceptEncoding == null ? "" : acceptEncoding).toString();
+	}
+
+	// null when there is no usable entry or the request's Cache-Control and Pragma ask for a newer one
+	public synchronized CachedAsset get(String key, String requestCacheControl, String pragma) {
+		CachedAsset cachedAsset = this.entries.get(key);
+
+		if (cachedAsset != null && !cachedAsset.isUsable()) {
+			removeEntry(key);
+			cachedAsset = null;
+		}
+
+		if (cachedAsset != null && cachedAsset.getAgeSeconds() > getRequestMaxAge(requestCacheControl, pragma))
+			cachedAsset = null;
+
+		if (cachedAsset == null)
+			this.misses.increment();
+		else
+			this.hits.increment();
+
+		return cachedAsset;
+	}
+
+	public synchronized void put(String key, CachedAsset cachedAsset) {
+		removeEntry(key);
+
+		this.entries.put(key, cachedAsset);
+		this.currentBytes += cachedAsset.getBody().length;
+
+		Iterator<Map.Entry<String, CachedAsset>> eldest = this.entries.entrySet().iterator();
+		while (this.currentBytes > this.maxBytes && eldest.hasNext()) {
+			Map.Entry<String, CachedAsset> entry = eldest.next();
+
+			if (log.isDebugEnabled())
+				log.debug("Evicting cached asset: " + entry.getKey());
+
+			this.currentBytes -= entry.getValue().getBody().length;
+			eldest.remove();
+		}
+	}
+
+	public synchronized void remove(String key) {
+		removeEntry(key);
+	}
+
+	private void removeEntry(String key) {
+		CachedAsset removed = this.entries.remove(key);
+
+		if (removed != null)
+			this.currentBytes -= removed.getBody().length;
+	}
+
+	public void revalidate(String key, CachedAsset staleAsset, AssetLoader loader) {
+		if (!this.revalidating.add(key))
+			return;
+
+		try {
+			this.revalidationExecutor.execute(() -> {
+				try {
+					CachedAsset refreshedAsset = loader.load(staleAsset);
+
+					if (refreshedAsset == null)
+						remove(key);
+					else
+						put(key, refreshedAsset);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (Exception e) {
+					log.warn("Unable to revalidate cached asset: " + key, e);
+				} finally {
+					this.revalidating.remove(key);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this.revalidating.remove(key);
+
+			if (log.isDebugEnabled())
+				log.debug("Revalidation queue full, skipping: " + key);
+		}
+	}
+
+	public boolean isCacheable(int statusCode, HttpHeaders headers) {
+		if (!this.enabled || statusCode != 200)
+			return false;
+
+		if (headers.firstValue("Set-Cookie").isPresent())
+			return false;
+
+		Optional<String> vary = headers.firstValue("Vary");
+		if (vary.isPresent() && !vary.get().trim().equalsIgnoreCase("Accept-Encoding"))
+			return false;
+
+		OptionalLong contentLength = headers.firstValueAsLong("Content-Length");
+		if (contentLength.isPresent() && contentLength.getAsLong() > this.maxEntryBytes)
+			return false;
+
+		return getMaxAge(headers.firstValue("Cache-Control").orElse(null)) > 0;
+	}
+
+	// forwardedHeaders are the response headers left once the route's response policy is applied
+	public CachedAsset toCachedAsset(HttpHeaders headers, Map<String, List<String>> forwardedHeaders, byte[] body) {
+		if (body.length > this.maxEntryBytes)
+			return null;
+
+		String cacheControl = headers.firstValue("Cache-Control").orElse(null);
+
+		long maxAge = getMaxAge(cacheControl);
+		if (maxAge <= 0)
+			return null;
+
+		Map<String, List<String>> storedHeaders = new LinkedHashMap<String, List<String>>();
+		putHeaders(storedHeaders, forwardedHeaders);
+
+		long generatedAt = getGeneratedAt(headers);
+		long freshUntil = generatedAt + (maxAge * 1000);
+
+		return new CachedAsset(headers.firstValue("Content-Type").orElse(null),
+				headers.firstValue("Content-Encoding").orElse(null), headers.firstValue("ETag").orElse(null),
+				headers.firstValue("Last-Modified").orElse(null), Collections.unmodifiableMap(storedHeaders), body,
+				generatedAt, freshUntil, freshUntil + (getStaleSeconds(cacheControl) * 1000));
+	}
+
+	// applies the headers and freshness of a 304 response to the entry it revalidated (RFC 7234 section 4.3.4)
+	public CachedAsset refresh(CachedAsset staleAsset, HttpHeaders headers, Map<String, List<String>> forwardedHeaders) {
+		Map<String, List<String>> storedHeaders = new LinkedHashMap<String, List<String>>();
+		putHeaders(storedHeaders, staleAsset.getHeaders());
+		putHeaders(storedHeaders, forwardedHeaders);
+
+		String cacheControl = getFirstValue(storedHeaders, "Cache-Control");
+
+		long maxAge = getMaxAge(cacheControl);
+		if (maxAge <= 0)
+			return null;
+
+		long generatedAt = getGeneratedAt(headers);
+		long freshUntil = generatedAt + (maxAge * 1000);
+
+		return staleAsset.refresh(Collections.unmodifiableMap(storedHeaders), generatedAt, freshUntil,
+				freshUntil + (getStaleSeconds(cacheControl) * 1000));
+	}
+
+	// header names are matched without case, a later value replaces an earlier one; Age is recomputed when served
+	private static void putHeaders(Map<String, List<String>> storedHeaders, Map<String, List<String>> headers) {
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			if (header.getKey().equalsIgnoreCase(AgeHeader))
+				continue;
+
+			storedHeaders.keySet().removeIf(name -> name.equalsIgnoreCase(header.getKey()));
+			storedHeaders.put(header.getKey(), header.getValue());
+		}
+	}
+
+	private static String getFirstValue(Map<String, List<String>> headers, String name) {
+		for (Map.Entry<String, List<String>> header : headers.entrySet())
+			if (header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty())
+				return header.getValue().get(0);
+
+		return null;
+	}
+
+	private static long getGeneratedAt(HttpHeaders headers) {
+		long age = headers.firstValue(AgeHeader).map(AssetCache::parseSeconds).orElse(0L);
+
+		return System.currentTimeMillis() - (Math.max(0, age) * 1000);
+	}
+
+	// the oldest entry the request accepts, in seconds
+	private static long getRequestMaxAge(String requestCacheControl, String pragma) {
+		if (requestCacheControl == null)
+			return pragma != null && pragma.toLowerCase().contains("no-cache") ? -1 : Long.MAX_VALUE;
+
+		long maxAge = Long.MAX_VALUE;
+
+		for (String directive : requestCacheControl.split(",")) {
+			directive = directive.trim().toLowerCase();
+
+			if (directive.equals("no-cache") || directive.equals("no-store"))
+				return -1;
+
+			if (directive.startsWith("max-age="))
+				maxAge = parseSeconds(directive.substring("max-age=".length()));
+		}
+
+		// max-age=0 asks for revalidation however young the entry is
+		return maxAge <= 0 ? -1 : maxAge;
+	}
+
+	private long getMaxAge(String cacheControl) {
+		if (cacheControl == null)
+			return 0;
+
+		long maxAge = 0;
+		long sharedMaxAge = -1;
+
+		for (String directive : cacheControl.split(",")) {
+			directive = directive.trim().toLowerCase();
+
+			if (directive.equals("no-store") || directive.equals("no-cache") || directive.equals("private"))
+				return 0;
+
+			if (directive.startsWith("max-age="))
+				maxAge = parseSeconds(directive.substring("max-age=".length()));
+			else if (directive.startsWith("s-maxage="))
+				sharedMaxAge = parseSeconds(directive.substring("s-maxage=".length()));
+		}
+
+		return sharedMaxAge >= 0 ? sharedMaxAge : maxAge;
+	}
+
+	private long getStaleSeconds(String cacheControl) {
+		if (cacheControl == null)
+			return this.defaultStaleSeconds;
+
+		for (String directive : cacheControl.split(",")) {
+			directive = directive.trim().toLowerCase();
+
+			if (directive.startsWith("stale-while-revalidate="))
+				return parseSeconds(directive.substring("stale-while-revalidate=".length()));
+		}
+
+		return this.defaultStaleSeconds;
+	}
+
+	private static long parseSeconds(String value) {
+		try {
+			return Long.parseLong(value.replace("\"", "").trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	public synchronized Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("entries", this.entries.size());
+		metrics.put("bytes", this.currentBytes);
+		metrics.put("maxBytes", this.maxBytes);
+		metrics.put("hits", this.hits.sum());
+		metrics.put("misses", this.misses.sum());
+		metrics.put("revalidating", this.revalidating.size());
+
+		return metrics;
+	}
+
+}
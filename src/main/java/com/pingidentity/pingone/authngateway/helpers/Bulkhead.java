@@ -0,0 +1,147 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Caps the asynchronous calls of one kind that are in flight at once, so a
+ * slow dependency can only ever hold maxConcurrent of the shared upstream
+ * connections.
+ *
+ * Calls over the cap wait in a queue of at most maxQueued without holding a
+ * thread, and start as earlier calls complete. A call that finds the queue
+ * full is rejected at once.
+ *
+ * A queued call is started on the thread that completed the call before it,
+ * typically an upstream HttpClient thread, so starting a call must never
+ * block. One thread at a time drains the queue, in a loop: a call that
+ * completes while it is being started (e.g. refused by an open circuit
+ * breaker) hands its permit back to that loop rather than draining again
+ * from inside it. A queued call that is cancelled or fails (e.g. times out)
+ * before it starts leaves the queue at once.
+ */
+public final class Bulkhead {
+
+	private final int maxConcurrent;
+	private final int maxQueued;
+
+	private final Semaphore permits;
+	private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicInteger queuedCount = new AtomicInteger();
+	// drain requests not yet served, only the thread that takes it from 0 drains
+	private final AtomicInteger drainRequests = new AtomicInteger();
+
+	private final LongAdder queued = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	public Bulkhead(int maxConcurrent, int maxQueued) {
+		this.maxConcurrent = Math.max(1, maxConcurrent);
+		this.maxQueued = Math.max(0, maxQueued);
+		this.permits = new Semaphore(this.maxConcurrent);
+	}
+
+	// null when the bulkhead is full, the caller decides how to fail
+	public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> call) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+
+		Runnable start = () -> start(call, result);
+
+		if (this.permits.tryAcquire()) {
+			start.run();
+			return result;
+		}
+
+		if (this.queuedCount.incrementAndGet() > this.maxQueued) {
+			this.queuedCount.decrementAndGet();
+			this.rejected.increment();
+			return null;
+		}
+
+		this.queued.increment();
+		this.queue.add(start);
+
+		// whoever removes it, this or drain, accounts for it
+		result.whenComplete((value, e) -> {
+			if (e != null && this.queue.remove(start))
+				this.queuedCount.decrementAndGet();
+		});
+
+		// a permit may have been released between tryAcquire and add
+		drain();
+
+		return result;
+	}
+
+	public Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("maxConcurrent", this.maxConcurrent);
+		metrics.put("inFlight", this.maxConcurrent - this.permits.availablePermits());
+		metrics.put("pending", this.queuedCount.get());
+		metrics.put("queued", this.queued.sum());
+		metrics.put("rejected", this.rejected.sum());
+
+		return metrics;
+	}
+
+	private <T> void start(Supplier<CompletableFuture<T>> call, CompletableFuture<T> result) {
+		// cancelled by the caller (e.g. a ConcurrentCalls timeout) while queued
+		if (result.isDone()) {
+			release();
+			return;
+		}
+
+		CompletableFuture<T> started;
+		try {
+			started = call.get();
+		} catch (RuntimeException e) {
+			release();
+			result.completeExceptionally(e);
+			return;
+		}
+
+		started.whenComplete((value, e) -> {
+			release();
+
+			if (e != null)
+				result.completeExceptionally(e);
+			else
+				result.complete(value);
+		});
+
+		result.whenComplete((value, e) -> {
+			if (result.isCancelled())
+				started.cancel(true);
+		});
+	}
+
+	private void release() {
+		this.permits.release();
+		drain();
+	}
+
+	private void drain() {
+		if (this.drainRequests.getAndIncrement() != 0)
+			return;
+
+		do {
+			while (!this.queue.isEmpty() && this.permits.tryAcquire()) {
+				Runnable next = this.queue.poll();
+
+				if (next == null) {
+					this.permits.release();
+					continue;
+				}
+
+				this.queuedCount.decrementAndGet();
+				next.run();
+			}
+		} while (this.drainRequests.decrementAndGet() != 0);
+	}
+
+}
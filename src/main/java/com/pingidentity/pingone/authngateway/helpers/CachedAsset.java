@@ -0,0 +1,111 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Map;
+
+public class CachedAsset {
+
+	private final String contentType;
+	private final String contentEncoding;
+	private final String eTag;
+	private final String lastModified;
+	private final Map<String, List<String>> headers;
+	private final byte[] body;
+	private final long generatedAt;
+	private final long freshUntil;
+	private final long staleUntil;
+
+	// generatedAt is when PingOne produced the response by this clock, its arrival less any Age it came with
+	public CachedAsset(String contentType, String contentEncoding, String eTag, String lastModified,
+			Map<String, List<String>> headers, byte[] body, long generatedAt, long freshUntil, long staleUntil) {
+		this.contentType = contentType;
+		this.contentEncoding = contentEncoding;
+		this.eTag = eTag;
+		this.lastModified = lastModified;
+		this.headers = headers;
+		this.body = body;
+		this.generatedAt = generatedAt;
+		this.freshUntil = freshUntil;
+		this.staleUntil = staleUntil;
+	}
+
+	public CachedAsset refresh(Map<String, List<String>> headers, long generatedAt, long freshUntil, long staleUntil) {
+		return new CachedAsset(this.contentType, this.contentEncoding, this.eTag, this.lastModified, headers,
+				this.body, generatedAt, freshUntil, staleUntil);
+	}
+
+	// the Age header sent with the entry
+	public long getAgeSeconds() {
+		return Math.max(0, (System.currentTimeMillis() - this.generatedAt) / 1000);
+	}
+
+	public boolean isFresh() {
+		return System.currentTimeMillis() < this.freshUntil;
+	}
+
+	public boolean isUsable() {
+		return System.currentTimeMillis() < this.staleUntil;
+	}
+
+	// If-None-Match takes precedence over If-Modified-Since (RFC 7232 section 6)
+	public boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+		if (ifNoneMatch != null) {
+			if (this.eTag == null)
+				return false;
+
+			for (String candidate : ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+
+				if (candidate.equals("*") || stripWeak(candidate).equals(stripWeak(this.eTag)))
+					return true;
+			}
+
+			return false;
+		}
+
+		if (ifModifiedSince == null || this.lastModified == null)
+			return false;
+
+		try {
+			ZonedDateTime since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME);
+			ZonedDateTime modified = ZonedDateTime.parse(this.lastModified, DateTimeFormatter.RFC_1123_DATE_TIME);
+
+			return !modified.isAfter(since);
+		} catch (DateTimeParseException e) {
+			return false;
+		}
+	}
+
+	private static String stripWeak(String eTag) {
+		return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public String getContentEncoding() {
+		return contentEncoding;
+	}
+
+	public String getETag() {
+		return eTag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	// the upstream headers the response policy forwards, except Age
+	public Map<String, List<String>> getHeaders() {
+		return headers;
+	}
+
+	public byte[] getBody() {
+		return body;
+	}
+
+}
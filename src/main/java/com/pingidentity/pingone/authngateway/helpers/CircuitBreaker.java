@@ -0,0 +1,178 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops calling a dependency that is failing or too slow, so callers fail
+ * fast instead of waiting on it.
+ *
+ * While closed, the outcomes of the last windowSize calls are kept. Once
+ * there are at least minimumCalls of them and failureRatePercent or more
+ * failed (errors, 5xx, or calls slower than slowCallMillis), the breaker
+ * opens and rejects calls for openMillis. It then lets halfOpenCalls trial
+ * calls through: if they all succeed it closes, otherwise it opens again.
+ */
+public final class CircuitBreaker {
+
+	private static Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	public enum State {
+		Closed, Open, HalfOpen
+	}
+
+	private final String name;
+	private final int failureRatePercent;
+	private final int minimumCalls;
+	private final long slowCallNanos;
+	private final long openNanos;
+	private final int halfOpenCalls;
+
+	// the last calls while closed, true for a failure
+	private final boolean[] window;
+	private int windowIndex;
+	private int windowCalls;
+	private int windowFailures;
+
+	private volatile State state = State.Closed;
+	private long openUntil;
+	private int halfOpenPermits;
+	private int halfOpenSuccesses;
+
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder opened = new LongAdder();
+
+	public CircuitBreaker(String name, int failureRatePercent, int minimumCalls, int windowSize, long slowCallMillis,
+			long openMillis, int halfOpenCalls) {
+		this.name = name;
+		this.failureRatePercent = failureRatePercent;
+		this.window = new boolean[Math.max(1, windowSize)];
+		this.minimumCalls = Math.max(1, Math.min(minimumCalls, this.window.length));
+		this.slowCallNanos = slowCallMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(slowCallMillis) : Long.MAX_VALUE;
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+		this.halfOpenCalls = Math.max(1, halfOpenCalls);
+	}
+
+	// false when the call must not be made; every true must be followed by onSuccess, onFailure or onIgnored
+	public boolean tryAcquire() {
+		if (this.state == State.Closed)
+			return true;
+
+		synchronized (this) {
+			if (this.state == State.Open) {
+				if (System.nanoTime() - this.openUntil < 0) {
+					this.rejected.increment();
+					return false;
+				}
+
+				transition(State.HalfOpen);
+				this.halfOpenPermits = this.halfOpenCalls;
+				this.halfOpenSuccesses = 0;
+			}
+
+			if (this.state == State.HalfOpen) {
+				if (this.halfOpenPermits == 0) {
+					this.rejected.increment();
+					return false;
+				}
+
+				this.halfOpenPermits--;
+			}
+
+			return true;
+		}
+	}
+
+	public void onSuccess(long nanos) {
+		record(nanos < this.slowCallNanos);
+	}
+
+	public void onFailure() {
+		record(false);
+	}
+
+	// the call was abandoned for reasons of the caller's own (e.g. cancelled), it says nothing about the dependency
+	public synchronized void onIgnored() {
+		if (this.state == State.HalfOpen && this.halfOpenPermits < this.halfOpenCalls - this.halfOpenSuccesses)
+			this.halfOpenPermits++;
+	}
+
+	public synchronized Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("state", this.state);
+		metrics.put("windowCalls", this.windowCalls);
+		metrics.put("windowFailures", this.windowFailures);
+		metrics.put("opened", this.opened.sum());
+		metrics.put("rejected", this.rejected.sum());
+
+		return metrics;
+	}
+
+	@Override
+	public String toString() {
+		return this.name + " " + getMetrics();
+	}
+
+	private synchronized void record(boolean success) {
+		switch (this.state) {
+		case Closed:
+			if (this.windowCalls == this.window.length) {
+				if (this.window[this.windowIndex])
+					this.windowFailures--;
+			} else
+				this.windowCalls++;
+
+			this.window[this.windowIndex] = !success;
+			this.windowIndex = (this.windowIndex + 1) % this.window.length;
+
+			if (!success)
+				this.windowFailures++;
+
+			if (this.windowCalls >= this.minimumCalls && this.windowFailures * 100 >= this.failureRatePercent * this.windowCalls)
+				open(String.format("%s of the last %s calls failed", this.windowFailures, this.windowCalls));
+			break;
+
+		case HalfOpen:
+			if (!success)
+				open("a trial call failed");
+			else if (++this.halfOpenSuccesses >= this.halfOpenCalls)
+				transition(State.Closed);
+			break;
+
+		default:
+			// a call made before the breaker opened
+			break;
+		}
+	}
+
+	private void open(String reason) {
+		log.warn(String.format("Circuit breaker %s opening for %sms, %s", this.name,
+				TimeUnit.NANOSECONDS.toMillis(this.openNanos), reason));
+
+		this.openUntil = System.nanoTime() + this.openNanos;
+		this.opened.increment();
+
+		transition(State.Open);
+	}
+
+	private void transition(State state) {
+		if (state == State.Closed)
+			log.info(String.format("Circuit breaker %s closed", this.name));
+		else if (log.isDebugEnabled())
+			log.debug(String.format("Circuit breaker %s: %s -> %s", this.name, this.state, state));
+
+		Arrays.fill(this.window, false);
+		this.windowIndex = 0;
+		this.windowCalls = 0;
+		this.windowFailures = 0;
+
+		this.state = state;
+	}
+
+}
@@ -0,0 +1,116 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.net.http.HttpTimeoutException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.pingidentity.pingone.authngateway.exceptions.CustomAPIErrorException;
+
+/**
+ * A group of upstream calls that run at the same time.
+ *
+ * Each call gets its own timeout. The first call that fails cancels the
+ * others, and whenAll completes with that failure.
+ */
+public class ConcurrentCalls {
+
+	private final List<CompletableFuture<?>> calls = new CopyOnWriteArrayList<CompletableFuture<?>>();
+	private final CompletableFuture<Void> firstFailure = new CompletableFuture<Void>();
+
+	public <T> CompletableFuture<T> add(CompletableFuture<T> call, long timeoutMillis) {
+		CompletableFuture<T> timedCall = call.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+
+		this.calls.add(timedCall);
+
+		timedCall.whenComplete((result, e) -> {
+			if (e != null)
+				fail(e);
+		});
+
+		return timedCall;
+	}
+
+	public CompletableFuture<Void> whenAll() {
+		CompletableFuture<Void> all = CompletableFuture.allOf(this.calls.toArray(new CompletableFuture<?>[0]));
+
+		return CompletableFuture.anyOf(all, this.firstFailure).thenApply(result -> null);
+	}
+
+	private void fail(Throwable e) {
+		if (!this.firstFailure.completeExceptionally(unwrap(e)))
+			return;
+
+		for (CompletableFuture<?> call : this.calls)
+			call.cancel(true);
+	}
+
+	public static Throwable unwrap(Throwable e) {
+		while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null)
+			e = e.getCause();
+
+		return e;
+	}
+
+	// blocks for a Users API result, surfacing failures the way the synchronous helper methods always have
+	public static <T> T await(CompletableFuture<T> future, String target) throws CustomAPIErrorException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw new CustomAPIErrorException(target, "UNKNOWN", "Unknown issue. Please contact support", "UNKNOWN",
+					"Unknown issue. Interrupted waiting for upstream call.");
+		} catch (ExecutionException e) {
+			throw toCustomAPIErrorException(e, target);
+		}
+	}
+
+	public static CustomAPIErrorException toCustomAPIErrorException(Throwable e, String target) {
+		Throwable cause = unwrap(e);
+
+		if (cause instanceof CustomAPIErrorException)
+			return (CustomAPIErrorException) cause;
+
+		if (cause instanceof RuntimeException && !(cause instanceof CompletionException))
+			throw (RuntimeException) cause;
+
+		if (cause instanceof TimeoutException)
+			return new CustomAPIErrorException(target, "UNKNOWN", "Unknown issue. Please contact support", "TIMEOUT",
+					"Unknown issue. Upstream call timed out.");
+
+		return new CustomAPIErrorException(target, "UNKNOWN", "Unknown issue. Please contact support", "UNKNOWN",
+				"Unknown issue. " + cause.getMessage());
+	}
+
+	// no response from upstream: TIMEOUT when it took too long, else UNAVAILABLE; either may succeed when retried later
+	public static CustomAPIErrorException noResponse(String target, String detailedMessage, Throwable e) {
+		Throwable cause = unwrap(e);
+
+		if (cause instanceof CustomAPIErrorException)
+			return (CustomAPIErrorException) cause;
+
+		boolean timedOut = cause instanceof TimeoutException || cause instanceof HttpTimeoutException;
+
+		return new CustomAPIErrorException(target, "UNKNOWN", "Unknown issue. Please contact support",
+				timedOut ? "TIMEOUT" : "UNAVAILABLE", "Unknown issue. " + detailedMessage);
+	}
+
+	// an unexpected upstream status: a 5xx is UNAVAILABLE and may succeed when retried later, anything else is UNKNOWN
+	public static CustomAPIErrorException badStatus(String target, String detailedMessage, int statusCode) {
+		return new CustomAPIErrorException(target, "UNKNOWN", "Unknown issue. Please contact support",
+				statusCode >= 500 ? "UNAVAILABLE" : "UNKNOWN", "Unknown issue. " + detailedMessage + ": " + statusCode);
+	}
+
+	public static <T> CompletableFuture<T> failed(CustomAPIErrorException e) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(e);
+
+		return future;
+	}
+
+}
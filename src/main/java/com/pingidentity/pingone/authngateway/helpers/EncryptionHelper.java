@@ -1,17 +1,30 @@
 package com.pingidentity.pingone.authngateway.helpers;
 
+import java.security.Key;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
 import javax.annotation.PostConstruct;
 
+import org.jose4j.jwa.AlgorithmConstraints;
+import org.jose4j.jwa.AlgorithmConstraints.ConstraintType;
 import org.jose4j.jwe.ContentEncryptionAlgorithmIdentifiers;
 import org.jose4j.jwe.JsonWebEncryption;
 import org.jose4j.jwe.KeyManagementAlgorithmIdentifiers;
 import org.jose4j.jwk.JsonWebKey;
+import org.jose4j.jwk.JsonWebKeySet;
 import org.jose4j.jwt.JwtClaims;
 import org.jose4j.jwt.MalformedClaimException;
+import org.jose4j.jwt.ReservedClaimNames;
 import org.jose4j.jwt.consumer.InvalidJwtException;
 import org.jose4j.jwt.consumer.JwtConsumer;
 import org.jose4j.jwt.consumer.JwtConsumerBuilder;
 import org.jose4j.lang.JoseException;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,9 +38,11 @@ public class EncryptionHelper {
 	
 	private static Logger log = LoggerFactory.getLogger(EncryptionHelper.class);
 
+	private static final String[] ReservedClaims = { ReservedClaimNames.ISSUER, ReservedClaimNames.ISSUED_AT, ReservedClaimNames.SUBJECT };
+
 	private JsonWebKey jsonWebKey = null;
 
-	@Value("${ping.retainValues.encryptionKey}")
+	@Value("${ping.retainValues.encryptionKey:}")
 	private String encryptionJWK;
 
 	@Value("${ping.environmentId}")
@@ -36,34 +51,222 @@ public class EncryptionHelper {
 	@Value("${ping.retainValues.claims}")
 	private String[] retainAttributeList;
 	
+	//A128CBC-HS256 or A256GCM, for keys without their own "alg"
+	@Value("${ping.retainValues.encryptionMethod:A128CBC-HS256}")
+	private String encryptionMethod;
+	
+	//optional JWK set of 256 bit oct keys with a kid, each used with one method (its "alg" or encryptionMethod).
+	//the first key encrypts new cookies, all of them decrypt
+	@Value("${ping.retainValues.keySet:}")
+	private String encryptionJWKS;
+	
+	//DEFLATE the cookie payload ("zip":"DEF") before it is encrypted
+	@Value("${ping.retainValues.compress:false}")
+	private boolean compress;
+	
+	//optional claim:alias pairs, e.g. email:e. cookies are written with the alias, either name is read
+	@Value("${ping.retainValues.claimAliases:}")
+	private String[] claimAliasList;
+	
+	private Map<String, String> claimAliases = Collections.emptyMap();
+	
+	private Map<String, String> aliasClaims = Collections.emptyMap();
+	
 	private JwtConsumer jwtConsumer;
 	
+	private JweCookieCodec cookieCodec = null;
+	
+	//codecs by the encoded protected header they write, so a cookie finds its key with one lookup
+	private Map<String, JweCookieCodec> cookieCodecs = Collections.emptyMap();
+	
 	@PostConstruct
 	public void init() throws EncryptionException
 	{		
-		if(log.isDebugEnabled())
-			log.debug("Registering encryptionKey: " + encryptionJWK);
+		if(!isEncryptionMethod(this.encryptionMethod))
+			throw new EncryptionException("Unsupported retained values encryptionMethod: " + this.encryptionMethod);
 		
-		try {
-			jwtConsumer = generateNewConsumer();
-		} catch (JoseException e) {
-			throw new EncryptionException("Unable to generate Jwt Consumer", e);
+		initClaimAliases();
+		
+		Map<String, JweCookieCodec> codecs = new HashMap<String, JweCookieCodec>();
+		
+		if(this.encryptionJWKS != null && !this.encryptionJWKS.trim().isEmpty())
+		{
+			List<JsonWebKey> keys;
+			try {
+				keys = new JsonWebKeySet(this.encryptionJWKS).getJsonWebKeys();
+			} catch (JoseException e) {
+				throw new EncryptionException("Unable to read retained values keySet", e);
+			}
+			
+			for(JsonWebKey key: keys)
+			{
+				if(key.getKeyId() == null)
+					throw new EncryptionException("Retained values keySet keys must have a kid");
+				
+				//a key is only ever used with one method, a new method means a new key. zip can change without one
+				String method = getEncryptionMethod(key);
+				
+				for(boolean compressed: new boolean[] { false, true })
+				{
+					JweCookieCodec codec = JweCookieCodec.forKey(getRawKey(key), method, key.getKeyId(), compressed);
+					
+					if(codec == null)
+						throw new EncryptionException("Retained values keySet key is not a 256 bit oct key: " + key.getKeyId());
+					
+					codecs.put(codec.getEncodedHeader(), codec);
+					
+					if(cookieCodec == null && compressed == this.compress)
+						cookieCodec = codec;
+				}
+			}
+			
+			if(log.isDebugEnabled())
+				log.debug("Registered retained values keySet: " + keys.size() + " keys");
 		}
-
-		try {
-			jsonWebKey = JsonWebKey.Factory.newJwk(this.encryptionJWK);
-		} catch (JoseException e) {
-			throw new EncryptionException("Unable to generate new JWK WebKey", e);
+		
+		if(this.encryptionJWK != null && !this.encryptionJWK.trim().isEmpty())
+		{
+			if(log.isDebugEnabled())
+				log.debug("Registering encryptionKey: " + encryptionJWK);
+			
+			try {
+				jsonWebKey = JsonWebKey.Factory.newJwk(this.encryptionJWK);
+			} catch (JoseException e) {
+				throw new EncryptionException("Unable to generate new JWK WebKey", e);
+			}
+			
+			//the original cookie format, no kid. CBC is what cookies were always written with, kept so they can still be read
+			String[] methods = new LinkedHashSet<String>(Arrays.asList(getEncryptionMethod(jsonWebKey), JweCookieCodec.A128CBC_HS256)).toArray(new String[0]);
+			
+			try {
+				jwtConsumer = generateNewConsumer(methods);
+			} catch (JoseException e) {
+				throw new EncryptionException("Unable to generate Jwt Consumer", e);
+			}
+			
+			for(String method: methods)
+			{
+				for(boolean compressed: new boolean[] { false, true })
+				{
+					JweCookieCodec codec = JweCookieCodec.forKey(getRawKey(jsonWebKey), method, null, compressed);
+					
+					if(codec == null)
+						continue;
+					
+					codecs.putIfAbsent(codec.getEncodedHeader(), codec);
+					
+					if(cookieCodec == null && method.equals(methods[0]) && compressed == this.compress)
+						cookieCodec = codec;
+				}
+			}
+			
+			if(cookieCodec == null)
+				log.warn("Retained values encryptionKey is not a 256 bit oct key, using jose4j for the cookie");
+		}
+		else if(cookieCodec == null)
+			throw new EncryptionException("No retained values encryptionKey or keySet configured for " + this.encryptionMethod);
+		
+		this.cookieCodecs = Collections.unmodifiableMap(codecs);
+	}
+	
+	private void initClaimAliases() throws EncryptionException
+	{
+		Map<String, String> claimAliases = new HashMap<String, String>();
+		Map<String, String> aliasClaims = new HashMap<String, String>();
+		
+		if(this.claimAliasList != null)
+		{
+			List<String> claimNames = Arrays.asList(this.retainAttributeList);
+			
+			for(String claimAlias: this.claimAliasList)
+			{
+				if(claimAlias.trim().isEmpty())
+					continue;
+				
+				String[] pair = claimAlias.trim().split(":");
+				
+				if(pair.length != 2 || pair[0].isEmpty() || pair[1].isEmpty())
+					throw new EncryptionException("Retained values claimAliases must be claim:alias pairs: " + claimAlias);
+				
+				//an alias must not be read back as some other claim
+				if(claimNames.contains(pair[1]) || Arrays.asList(ReservedClaims).contains(pair[1]) || aliasClaims.containsKey(pair[1]))
+					throw new EncryptionException("Retained values claim alias is already a claim name or alias: " + pair[1]);
+				
+				claimAliases.put(pair[0], pair[1]);
+				aliasClaims.put(pair[1], pair[0]);
+			}
 		}
+		
+		this.claimAliases = Collections.unmodifiableMap(claimAliases);
+		this.aliasClaims = Collections.unmodifiableMap(aliasClaims);
 	}
 
 	public String generate(String flowId, JSONObject requestPayload) throws EncryptionException {
 
+		if(cookieCodec == null)
+			return generateWithJose4j(flowId, requestPayload);
+		
+		JSONObject claims = new JSONObject();
+
+		for (String requestClaim : this.retainAttributeList) {
+			if (requestPayload.has(requestClaim)) {
+				claims.put(this.claimAliases.getOrDefault(requestClaim, requestClaim), requestPayload.get(requestClaim));
+			}
+		}
+
+		claims.put(ReservedClaimNames.ISSUER, this.issuer);
+		claims.put(ReservedClaimNames.ISSUED_AT, System.currentTimeMillis() / 1000);
+		claims.put(ReservedClaimNames.SUBJECT, flowId);
+
+		return cookieCodec.encrypt(claims.toString());
+	}
+	
+	public RetainedValues read(String flowId, String encryptedJwt) throws EncryptionException
+	{
+		JweCookieCodec codec = this.cookieCodecs.get(JweCookieCodec.getEncodedHeader(encryptedJwt));
+		
+		//cookies written with any other header are still read the general way with encryptionKey
+		if(codec == null)
+		{
+			if(jwtConsumer == null)
+				throw new EncryptionException("Unable to read encrypted JWT, no key for its header");
+			
+			return readWithJose4j(flowId, encryptedJwt);
+		}
+		
+		JSONObject claims;
+		try {
+			claims = new JSONObject(codec.decrypt(encryptedJwt));
+		} catch (JSONException e) {
+			throw new EncryptionException("Unable to read encrypted JWT", e);
+		}
+		
+		if(!this.issuer.equals(claims.optString(ReservedClaimNames.ISSUER, null)))
+			throw new EncryptionException("Unable to read encrypted JWT, issuer does not match");
+		
+		if(!flowId.equals(claims.optString(ReservedClaimNames.SUBJECT, null)))
+			throw new EncryptionException("FlowId does not match encrypted subject");
+		
+		RetainedValues returnObject = new RetainedValues(encryptedJwt);
+		
+		for(String claimName: claims.keySet())
+		{
+			if(!claims.isNull(claimName))
+				returnObject.put(this.aliasClaims.getOrDefault(claimName, claimName), String.valueOf(claims.get(claimName)));
+		}
+		
+		returnObject.clean();
+		
+		return returnObject;
+	}
+	
+	String generateWithJose4j(String flowId, JSONObject requestPayload) throws EncryptionException {
+
 		JwtClaims claims = new JwtClaims();
 
 		for (String requestClaim : this.retainAttributeList) {
 			if (requestPayload.has(requestClaim)) {
-				claims.setClaim(requestClaim, requestPayload.get(requestClaim));
+				claims.setClaim(this.claimAliases.getOrDefault(requestClaim, requestClaim), requestPayload.get(requestClaim));
 			}
 		}
 
@@ -76,6 +279,9 @@ public class EncryptionHelper {
 		jwe.setPayload(claims.toJson());
 		jwe.setAlgorithmHeaderValue(KeyManagementAlgorithmIdentifiers.DIRECT);
 		jwe.setEncryptionMethodHeaderParameter(ContentEncryptionAlgorithmIdentifiers.AES_128_CBC_HMAC_SHA_256);
+		
+		if(this.compress)
+			jwe.enableDefaultCompression();
 		jwe.setKey(jsonWebKey.getKey());
 
 		String jwt;
@@ -88,7 +294,7 @@ public class EncryptionHelper {
 		return jwt;
 	}
 	
-	public JSONObject read(String flowId, String encryptedJwt) throws EncryptionException
+	RetainedValues readWithJose4j(String flowId, String encryptedJwt) throws EncryptionException
 	{
 		JwtClaims claims;
 		try {
@@ -104,15 +310,40 @@ public class EncryptionHelper {
 			throw new EncryptionException("Malformed FlowId does not match encrypted subject", e);
 		}
 		
-		JSONObject returnObject = new JSONObject();
+		RetainedValues returnObject = new RetainedValues(encryptedJwt);
 		
 		for(String claimName: claims.getClaimNames())
-			returnObject.put(claimName, claims.getClaimValueAsString(claimName));
+			returnObject.put(this.aliasClaims.getOrDefault(claimName, claimName), claims.getClaimValueAsString(claimName));
+		
+		returnObject.clean();
 		
 		return returnObject;
 	}
 
-	private JwtConsumer generateNewConsumer() throws JoseException {
+	private static boolean isEncryptionMethod(String method) {
+		return JweCookieCodec.A128CBC_HS256.equals(method) || JweCookieCodec.A256GCM.equals(method);
+	}
+	
+	//the key's "alg" when it names a content encryption method, otherwise encryptionMethod
+	private String getEncryptionMethod(JsonWebKey key) throws EncryptionException {
+		String alg = key.getAlgorithm();
+		
+		if(alg == null || KeyManagementAlgorithmIdentifiers.DIRECT.equals(alg))
+			return this.encryptionMethod;
+		
+		if(!isEncryptionMethod(alg))
+			throw new EncryptionException("Unsupported retained values key alg, expected A128CBC-HS256 or A256GCM: " + alg);
+		
+		return alg;
+	}
+
+	private static byte[] getRawKey(JsonWebKey jsonWebKey) {
+		Key key = jsonWebKey.getKey();
+		
+		return key != null && "RAW".equals(key.getFormat()) ? key.getEncoded() : null;
+	}
+
+	private JwtConsumer generateNewConsumer(String[] methods) throws JoseException {
 
 		if (jsonWebKey == null)
 			jsonWebKey = JsonWebKey.Factory.newJwk(this.encryptionJWK);
@@ -121,6 +352,8 @@ public class EncryptionHelper {
 				.setRequireSubject() // the JWT must have a subject claim
 				.setExpectedIssuer(this.issuer) // whom the JWT needs to have been issued by
 				.setDecryptionKey(jsonWebKey.getKey()) // verify the signature with the public key
+				.setJweAlgorithmConstraints(new AlgorithmConstraints(ConstraintType.PERMIT, KeyManagementAlgorithmIdentifiers.DIRECT))
+				.setJweContentEncryptionAlgorithmConstraints(new AlgorithmConstraints(ConstraintType.PERMIT, methods)) // only the key's methods
 				.setDisableRequireSignature().build();
 
 		return jwtConsumer;
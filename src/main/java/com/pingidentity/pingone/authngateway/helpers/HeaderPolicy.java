@@ -0,0 +1,217 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Which headers are forwarded between the client and PingOne, compiled once
+ * into a case-insensitive open-addressing table so each header costs one
+ * lookup and no allocation (header names are neither lower-cased nor copied).
+ *
+ * Hop-by-hop headers (RFC 7230 section 6.1), including any named by the
+ * message's Connection header, and HTTP/2 pseudo-headers are never
+ * forwarded. Names in the deny list are dropped; when the allow list is not
+ * empty only its names are forwarded. An entry ending in * matches every
+ * header name with that prefix. Deny wins over allow.
+ */
+public final class HeaderPolicy {
+
+	private static final String ConnectionHeader = "connection";
+	private static final String CloseOption = "close";
+	private static final int ConnectionHash = hash(ConnectionHeader);
+
+	private static final String[] HopByHopHeaders = { ConnectionHeader, "keep-alive", "proxy-connection", "te", "trailer",
+			"transfer-encoding", "upgrade" };
+
+	// proxy-authenticate, proxy-authorization and other proxy-* headers, and HTTP/2 pseudo-headers such as :status
+	private static final String[] HopByHopPrefixes = { "proxy-", ":" };
+
+	private static final byte Denied = 1;
+	private static final byte Allowed = 2;
+
+	private final String[] names;
+	private final int[] hashes;
+	private final byte[] decisions;
+	private final int mask;
+
+	private final String[] denyPrefixes;
+	private final String[] allowPrefixes;
+	private final boolean allowAll;
+
+	private HeaderPolicy(List<String> deny, List<String> allow) {
+		List<String> denyNames = new ArrayList<String>();
+		List<String> denyPrefixes = new ArrayList<String>();
+		List<String> allowNames = new ArrayList<String>();
+		List<String> allowPrefixes = new ArrayList<String>();
+
+		Collections.addAll(denyNames, HopByHopHeaders);
+		Collections.addAll(denyPrefixes, HopByHopPrefixes);
+
+		split(deny, denyNames, denyPrefixes);
+		split(allow, allowNames, allowPrefixes);
+
+		int capacity = Integer.highestOneBit(Math.max(4, (denyNames.size() + allowNames.size()) * 2) - 1) << 1;
+
+		this.names = new String[capacity];
+		this.hashes = new int[capacity];
+		this.decisions = new byte[capacity];
+		this.mask = capacity - 1;
+
+		this.denyPrefixes = denyPrefixes.toArray(new String[0]);
+
+		for (String name : allowNames)
+			put(name, startsWithAny(name, this.denyPrefixes) ? Denied : Allowed);
+
+		for (String name : denyNames)
+			put(name, Denied);
+
+		this.allowPrefixes = allowPrefixes.toArray(new String[0]);
+		this.allowAll = allowNames.isEmpty() && allowPrefixes.isEmpty();
+	}
+
+	public static HeaderPolicy compile(List<String> deny, List<String> allow) {
+		return new HeaderPolicy(deny, allow);
+	}
+
+	public boolean isForwarded(String name) {
+		int hash = hash(name);
+		int index = hash & this.mask;
+
+		String entry;
+		while ((entry = this.names[index]) != null) {
+			// names are stored lower-case, as HTTP/2 and most clients send them
+			if (this.hashes[index] == hash && (entry.equals(name) || entry.equalsIgnoreCase(name)))
+				return this.decisions[index] == Allowed;
+
+			index = (index + 1) & this.mask;
+		}
+
+		if (startsWithAny(name, this.denyPrefixes))
+			return false;
+
+		return this.allowAll || startsWithAny(name, this.allowPrefixes);
+	}
+
+	// also drops the headers named by the message's Connection header values
+	public boolean isForwarded(String name, List<String> connectionTokens) {
+		if (!isForwarded(name))
+			return false;
+
+		for (int i = 0; i < connectionTokens.size(); i++)
+			if (connectionTokens.get(i).equalsIgnoreCase(name))
+				return false;
+
+		return true;
+	}
+
+	// the header names listed in the Connection header, other than the hop-by-hop ones already dropped
+	public static List<String> getConnectionTokens(Map<String, List<String>> headers) {
+		List<String> tokens = null;
+
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			if (hash(header.getKey()) != ConnectionHash || !header.getKey().equalsIgnoreCase(ConnectionHeader))
+				continue;
+
+			tokens = getConnectionTokens(header.getValue(), tokens);
+		}
+
+		return tokens == null ? Collections.emptyList() : tokens;
+	}
+
+	private static List<String> getConnectionTokens(List<String> connectionValues, List<String> tokens) {
+		for (String value : connectionValues) {
+			// usually just keep-alive or close
+			String[] valueTokens = value.indexOf(',') < 0 ? null : value.split(",");
+
+			for (int i = 0; i < (valueTokens == null ? 1 : valueTokens.length); i++) {
+				String token = (valueTokens == null ? value : valueTokens[i]).trim();
+
+				if (token.isEmpty() || token.equalsIgnoreCase(CloseOption) || isHopByHop(token))
+					continue;
+
+				if (tokens == null)
+					tokens = new ArrayList<String>(1);
+
+				tokens.add(token);
+			}
+		}
+
+		return tokens;
+	}
+
+	private static boolean isHopByHop(String name) {
+		for (String hopByHopHeader : HopByHopHeaders)
+			if (hopByHopHeader.equalsIgnoreCase(name))
+				return true;
+
+		return startsWithAny(name, HopByHopPrefixes);
+	}
+
+	private void put(String name, byte decision) {
+		int hash = hash(name);
+		int index = hash & this.mask;
+
+		while (this.names[index] != null && !this.names[index].equalsIgnoreCase(name))
+			index = (index + 1) & this.mask;
+
+		this.names[index] = name.toLowerCase(Locale.ROOT);
+		this.hashes[index] = hash;
+		this.decisions[index] = decision;
+	}
+
+	// the length and three case-folded characters, which tell header names apart well enough for a table this
+	// small without reading the whole name; equal names always hash the same
+	private static int hash(String name) {
+		int length = name.length();
+
+		if (length == 0)
+			return 0;
+
+		int hash = length * 0x9E3779B1;
+		hash ^= lower(name.charAt(0)) << 16 | lower(name.charAt(length >> 1)) << 8 | lower(name.charAt(length - 1));
+
+		return hash ^ (hash >>> 15);
+	}
+
+	// prefixes are lower-case
+	private static boolean startsWithAny(String name, String[] prefixes) {
+		for (String prefix : prefixes) {
+			if (name.length() < prefix.length())
+				continue;
+
+			int i = 0;
+			while (i < prefix.length() && lower(name.charAt(i)) == prefix.charAt(i))
+				i++;
+
+			if (i == prefix.length())
+				return true;
+		}
+
+		return false;
+	}
+
+	private static char lower(char c) {
+		return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+	}
+
+	private static void split(List<String> entries, List<String> names, List<String> prefixes) {
+		if (entries == null)
+			return;
+
+		for (String entry : entries) {
+			entry = entry.trim();
+
+			if (entry.isEmpty())
+				continue;
+
+			if (entry.endsWith("*"))
+				prefixes.add(entry.substring(0, entry.length() - 1).toLowerCase(Locale.ROOT));
+			else
+				names.add(entry);
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+/**
+ * A read-only Map view of a JSONObject, so the payload and retained values
+ * can be handed to validators without copying them into a new map for each
+ * call. Reads go straight to the JSONObject; any change throws
+ * UnsupportedOperationException.
+ */
+public class JSONObjectMap extends AbstractMap<String, Object> {
+
+	private final JSONObject jsonObject;
+
+	public JSONObjectMap(JSONObject jsonObject) {
+		this.jsonObject = jsonObject;
+	}
+
+	@Override
+	public Object get(Object key) {
+		return key instanceof String ? this.jsonObject.opt((String) key) : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof String && this.jsonObject.has((String) key);
+	}
+
+	@Override
+	public int size() {
+		return this.jsonObject.length();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return this.jsonObject.isEmpty();
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return Collections.unmodifiableSet(this.jsonObject.keySet());
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				Iterator<String> keys = JSONObjectMap.this.jsonObject.keys();
+
+				return new Iterator<Map.Entry<String, Object>>() {
+
+					@Override
+					public boolean hasNext() {
+						return keys.hasNext();
+					}
+
+					@Override
+					public Map.Entry<String, Object> next() {
+						String key = keys.next();
+
+						return new AbstractMap.SimpleImmutableEntry<String, Object>(key, JSONObjectMap.this.jsonObject.opt(key));
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return JSONObjectMap.this.jsonObject.length();
+			}
+		};
+	}
+
+}
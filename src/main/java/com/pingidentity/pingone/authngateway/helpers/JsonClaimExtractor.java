@@ -0,0 +1,143 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads a few named claims out of a JSON document in one streaming pass,
+ * without building a JSONObject for it.
+ *
+ * Only objects along the path (e.g. formData then user) are descended into;
+ * any other object or array is skipped token by token, so a large HAL flow
+ * response costs a scan rather than a DOM. A step of the path missing from
+ * the document is skipped, so with formData then user, a document without
+ * formData has its claims read from a top-level user. Values are returned as org.json
+ * would have returned them: strings, numbers, booleans, JSONObject.NULL, and
+ * JSONObject/JSONArray for nested values.
+ */
+public class JsonClaimExtractor {
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private final Set<String> claimNames;
+	private final String[] path;
+
+	public JsonClaimExtractor(String[] claimNames, String... path) {
+		if (path.length > 16)
+			throw new IllegalArgumentException("Path too long: " + Arrays.toString(path));
+
+		this.claimNames = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(claimNames)));
+		this.path = path;
+	}
+
+	public JsonClaims extract(String json) throws JSONException {
+		JsonClaims claims = new JsonClaims(this.path.length);
+
+		try (JsonParser parser = jsonFactory.createParser(json)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				throw new JSONException("A JSONObject text must begin with '{'");
+
+			readObject(parser, 0, 0, claims);
+		} catch (IOException e) {
+			throw new JSONException("Unable to parse JSON payload", e);
+		}
+
+		return claims;
+	}
+
+	// the document with the named fields at any depth replaced by ****, for logging
+	public static String obfuscate(String json, Set<String> obfuscateNames) throws JSONException {
+		StringWriter writer = new StringWriter(json.length());
+
+		try (JsonParser parser = jsonFactory.createParser(json); JsonGenerator generator = jsonFactory.createGenerator(writer)) {
+			generator.useDefaultPrettyPrinter();
+
+			JsonToken token;
+			while ((token = parser.nextToken()) != null) {
+				if (token == JsonToken.FIELD_NAME && obfuscateNames.contains(parser.getCurrentName())) {
+					generator.writeFieldName(parser.getCurrentName());
+					parser.nextToken();
+					parser.skipChildren();
+					generator.writeString("****");
+				} else
+					generator.copyCurrentEvent(parser);
+			}
+		} catch (IOException e) {
+			throw new JSONException("Unable to parse JSON payload", e);
+		}
+
+		return writer.toString();
+	}
+
+	// route has a bit set for each step of the path taken to reach this object; next is the first step it may take
+	private void readObject(JsonParser parser, int route, int next, JsonClaims claims) throws IOException {
+		claims.enter(route);
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+
+			int step = token == JsonToken.START_OBJECT ? getStep(name, next) : -1;
+
+			if (step >= 0)
+				readObject(parser, route | (1 << step), step + 1, claims);
+			else if (this.claimNames.contains(name))
+				claims.put(route, name, readValue(parser, token));
+			else
+				parser.skipChildren();
+		}
+	}
+
+	private int getStep(String name, int next) {
+		for (int step = next; step < this.path.length; step++)
+			if (name.equals(this.path[step]))
+				return step;
+
+		return -1;
+	}
+
+	private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+		switch (token) {
+		case VALUE_STRING:
+			return parser.getText();
+		case VALUE_NUMBER_INT:
+			return parser.getNumberValue();
+		case VALUE_NUMBER_FLOAT:
+			return parser.getDecimalValue();
+		case VALUE_TRUE:
+			return Boolean.TRUE;
+		case VALUE_FALSE:
+			return Boolean.FALSE;
+		case START_OBJECT:
+			return new JSONObject(copyStructure(parser));
+		case START_ARRAY:
+			return new JSONArray(copyStructure(parser));
+		default:
+			return JSONObject.NULL;
+		}
+	}
+
+	private static String copyStructure(JsonParser parser) throws IOException {
+		StringWriter writer = new StringWriter();
+
+		try (JsonGenerator generator = jsonFactory.createGenerator(writer)) {
+			generator.copyCurrentStructure(parser);
+		}
+
+		return writer.toString();
+	}
+
+}
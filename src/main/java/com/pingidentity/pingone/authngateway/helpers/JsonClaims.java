@@ -0,0 +1,56 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The claims JsonClaimExtractor found in one JSON document, by the route
+ * taken to the object holding them: a bit per step of the extractor's path,
+ * so with formData then user, 0 is the document, 1 formData, 3 formData.user
+ * and 2 a top-level user.
+ */
+public class JsonClaims {
+
+	private final int pathLength;
+	private final Map<String, Object>[] routes;
+	private final boolean[] present;
+
+	@SuppressWarnings("unchecked")
+	JsonClaims(int pathLength) {
+		this.pathLength = pathLength;
+		this.routes = new Map[1 << pathLength];
+		this.present = new boolean[1 << pathLength];
+	}
+
+	void enter(int route) {
+		this.present[route] = true;
+	}
+
+	void put(int route, String name, Object value) {
+		if (this.routes[route] == null)
+			this.routes[route] = new HashMap<String, Object>();
+
+		this.routes[route].put(name, value);
+	}
+
+	// the claims of the object each step of the path leads to, a step whose object is missing being skipped:
+	// formData.user, else formData, else a top-level user, else the document
+	public Map<String, Object> getClaims() {
+		int route = 0;
+
+		for (int step = 0; step < this.pathLength; step++)
+			if (this.present[route | (1 << step)])
+				route |= 1 << step;
+
+		Map<String, Object> claims = this.routes[route];
+
+		return claims == null ? Collections.emptyMap() : Collections.unmodifiableMap(claims);
+	}
+
+	// a claim of the document itself, e.g. a flow's status
+	public Object getRootValue(String name) {
+		return this.routes[0] == null ? null : this.routes[0].get(name);
+	}
+
+}
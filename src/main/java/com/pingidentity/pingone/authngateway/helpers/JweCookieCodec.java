@@ -0,0 +1,315 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.json.JSONObject;
+
+import com.pingidentity.pingone.authngateway.exceptions.EncryptionException;
+
+/**
+ * Compact JWE with alg "dir" for the retained values cookie, using either
+ * A128CBC-HS256 or A256GCM, an optional kid header and optional DEFLATE
+ * ("zip":"DEF") of the payload.
+ *
+ * Produces the same serialization as jose4j for the same header. Each codec
+ * is bound to one key and one header: the key material is prepared once and
+ * each thread reuses its own Cipher and Mac, so a cookie costs one AES pass
+ * (plus one HMAC for CBC).
+ */
+public class JweCookieCodec {
+
+	public static final String A128CBC_HS256 = "A128CBC-HS256";
+	public static final String A256GCM = "A256GCM";
+
+	private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+	private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+
+	private static final int KeyLength = 32;
+	private static final int CbcIvLength = 16;
+	private static final int GcmIvLength = 12;
+	private static final int TagLength = 16;
+
+	// cookies are at most 4KB, anything that inflates past this is not one of ours
+	private static final int MaxPayloadLength = 16384;
+
+	private static final ThreadLocal<Cipher> cbcCipher = ThreadLocal.withInitial(() -> newCipher("AES/CBC/PKCS5Padding"));
+	private static final ThreadLocal<Cipher> gcmCipher = ThreadLocal.withInitial(() -> newCipher("AES/GCM/NoPadding"));
+
+	private static final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION, true));
+	private static final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	private static final ThreadLocal<Mac> mac = ThreadLocal.withInitial(() -> {
+		try {
+			return Mac.getInstance("HmacSHA256");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private final String encryptionMethod;
+	private final String kid;
+	private final boolean compressed;
+	private final String encodedHeader;
+	private final byte[] additionalData;
+	private final byte[] additionalDataLength;
+
+	private final SecretKeySpec macKey;
+	private final SecretKeySpec encryptionKey;
+	private final SecureRandom secureRandom = new SecureRandom();
+
+	private JweCookieCodec(byte[] key, String encryptionMethod, String kid, boolean compressed) {
+		this.encryptionMethod = encryptionMethod;
+		this.kid = kid;
+		this.compressed = compressed;
+
+		this.encodedHeader = encoder.encodeToString(getHeader(encryptionMethod, kid, compressed).getBytes(StandardCharsets.UTF_8));
+		this.additionalData = this.encodedHeader.getBytes(StandardCharsets.US_ASCII);
+		this.additionalDataLength = ByteBuffer.allocate(8).putLong(this.additionalData.length * 8L).array();
+
+		if (isGcm()) {
+			this.macKey = null;
+			this.encryptionKey = new SecretKeySpec(key, "AES");
+		} else {
+			this.macKey = new SecretKeySpec(key, 0, KeyLength / 2, "HmacSHA256");
+			this.encryptionKey = new SecretKeySpec(key, KeyLength / 2, KeyLength / 2, "AES");
+		}
+	}
+
+	public static JweCookieCodec forKey(byte[] key) {
+		return forKey(key, A128CBC_HS256, null, false);
+	}
+
+	// null when the key cannot be used with the encryption method
+	public static JweCookieCodec forKey(byte[] key, String encryptionMethod, String kid, boolean compressed) {
+		if (key == null || key.length != KeyLength)
+			return null;
+
+		if (!A128CBC_HS256.equals(encryptionMethod) && !A256GCM.equals(encryptionMethod))
+			return null;
+
+		return new JweCookieCodec(key, encryptionMethod, kid, compressed);
+	}
+
+	// the jose4j header serialization: alg, enc, kid, then zip
+	static String getHeader(String encryptionMethod, String kid, boolean compressed) {
+		StringBuilder header = new StringBuilder("{\"alg\":\"dir\",\"enc\":").append(JSONObject.quote(encryptionMethod));
+
+		if (kid != null)
+			header.append(",\"kid\":").append(JSONObject.quote(kid));
+
+		if (compressed)
+			header.append(",\"zip\":\"DEF\"");
+
+		return header.append('}').toString();
+	}
+
+	// the protected header of a compact serialization, used to pick the codec that wrote it
+	public static String getEncodedHeader(String compactSerialization) {
+		int separator = compactSerialization.indexOf('.');
+
+		return separator < 0 ? compactSerialization : compactSerialization.substring(0, separator);
+	}
+
+	public String getEncodedHeader() {
+		return this.encodedHeader;
+	}
+
+	public String getEncryptionMethod() {
+		return this.encryptionMethod;
+	}
+
+	public String getKid() {
+		return this.kid;
+	}
+
+	public boolean isCompressed() {
+		return this.compressed;
+	}
+
+	public String encrypt(String payload) throws EncryptionException {
+		byte[] iv = new byte[isGcm() ? GcmIvLength : CbcIvLength];
+		this.secureRandom.nextBytes(iv);
+
+		byte[] plaintext = payload.getBytes(StandardCharsets.UTF_8);
+
+		if (this.compressed)
+			plaintext = deflate(plaintext);
+
+		byte[] ciphertext;
+		byte[] tag;
+
+		try {
+			if (isGcm()) {
+				Cipher cipher = gcmCipher.get();
+				cipher.init(Cipher.ENCRYPT_MODE, this.encryptionKey, new GCMParameterSpec(TagLength * 8, iv));
+				cipher.updateAAD(this.additionalData);
+
+				byte[] sealed = cipher.doFinal(plaintext);
+
+				ciphertext = Arrays.copyOf(sealed, sealed.length - TagLength);
+				tag = Arrays.copyOfRange(sealed, sealed.length - TagLength, sealed.length);
+			} else {
+				Cipher cipher = cbcCipher.get();
+				cipher.init(Cipher.ENCRYPT_MODE, this.encryptionKey, new IvParameterSpec(iv));
+				ciphertext = cipher.doFinal(plaintext);
+
+				tag = authenticationTag(iv, ciphertext);
+			}
+		} catch (GeneralSecurityException e) {
+			throw new EncryptionException("Unable to encrypt JWT", e);
+		}
+
+		StringBuilder compactSerialization = new StringBuilder(this.encodedHeader.length() + (ciphertext.length + iv.length + TagLength) * 4 / 3 + 8);
+		compactSerialization.append(this.encodedHeader).append("..")
+				.append(encoder.encodeToString(iv)).append('.')
+				.append(encoder.encodeToString(ciphertext)).append('.')
+				.append(encoder.encodeToString(tag));
+
+		return compactSerialization.toString();
+	}
+
+	public String decrypt(String compactSerialization) throws EncryptionException {
+		String[] parts = compactSerialization.split("\\.", -1);
+
+		if (parts.length != 5 || !parts[0].equals(this.encodedHeader))
+			throw new EncryptionException("Unsupported JWE header");
+
+		if (!parts[1].isEmpty())
+			throw new EncryptionException("Malformed JWE compact serialization");
+
+		byte[] iv;
+		byte[] ciphertext;
+		byte[] tag;
+
+		try {
+			iv = decoder.decode(parts[2]);
+			ciphertext = decoder.decode(parts[3]);
+			tag = decoder.decode(parts[4]);
+		} catch (IllegalArgumentException e) {
+			throw new EncryptionException("Malformed JWE compact serialization", e);
+		}
+
+		if (iv.length != (isGcm() ? GcmIvLength : CbcIvLength) || tag.length != TagLength)
+			throw new EncryptionException("Malformed JWE compact serialization");
+
+		byte[] plaintext;
+
+		try {
+			if (isGcm()) {
+				Cipher cipher = gcmCipher.get();
+				cipher.init(Cipher.DECRYPT_MODE, this.encryptionKey, new GCMParameterSpec(TagLength * 8, iv));
+				cipher.updateAAD(this.additionalData);
+
+				byte[] sealed = Arrays.copyOf(ciphertext, ciphertext.length + TagLength);
+				System.arraycopy(tag, 0, sealed, ciphertext.length, TagLength);
+
+				plaintext = cipher.doFinal(sealed);
+			} else {
+				if (!MessageDigest.isEqual(authenticationTag(iv, ciphertext), tag))
+					throw new EncryptionException("JWE authentication tag check failed");
+
+				Cipher cipher = cbcCipher.get();
+				cipher.init(Cipher.DECRYPT_MODE, this.encryptionKey, new IvParameterSpec(iv));
+
+				plaintext = cipher.doFinal(ciphertext);
+			}
+		} catch (GeneralSecurityException e) {
+			throw new EncryptionException("Unable to decrypt JWT", e);
+		}
+
+		if (this.compressed)
+			plaintext = inflate(plaintext);
+
+		return new String(plaintext, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = JweCookieCodec.deflater.get();
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+
+		byte[] buffer = new byte[data.length + 64];
+		int length = 0;
+
+		while (!deflater.finished()) {
+			if (length == buffer.length)
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+
+			length += deflater.deflate(buffer, length, buffer.length - length);
+		}
+
+		return Arrays.copyOf(buffer, length);
+	}
+
+	private static byte[] inflate(byte[] data) throws EncryptionException {
+		Inflater inflater = JweCookieCodec.inflater.get();
+		inflater.reset();
+		inflater.setInput(data);
+
+		byte[] buffer = new byte[Math.min(MaxPayloadLength, data.length * 4 + 64)];
+		int length = 0;
+
+		try {
+			while (!inflater.finished()) {
+				if (length == buffer.length) {
+					if (buffer.length >= MaxPayloadLength)
+						throw new EncryptionException("Compressed JWE payload is too large");
+
+					buffer = Arrays.copyOf(buffer, Math.min(MaxPayloadLength, buffer.length * 2));
+				}
+
+				int inflated = inflater.inflate(buffer, length, buffer.length - length);
+
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new EncryptionException("Malformed compressed JWE payload");
+
+				length += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new EncryptionException("Malformed compressed JWE payload", e);
+		}
+
+		return Arrays.copyOf(buffer, length);
+	}
+
+	private boolean isGcm() {
+		return A256GCM.equals(this.encryptionMethod);
+	}
+
+	// HMAC-SHA-256 over AAD || IV || ciphertext || AL, truncated to the first half (RFC 7518 5.2.2.1)
+	private byte[] authenticationTag(byte[] iv, byte[] ciphertext) throws GeneralSecurityException {
+		Mac mac = JweCookieCodec.mac.get();
+		mac.init(this.macKey);
+		mac.update(this.additionalData);
+		mac.update(iv);
+		mac.update(ciphertext);
+		mac.update(this.additionalDataLength);
+
+		return Arrays.copyOf(mac.doFinal(), TagLength);
+	}
+
+	private static Cipher newCipher(String transformation) {
+		try {
+			return Cipher.getInstance(transformation);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
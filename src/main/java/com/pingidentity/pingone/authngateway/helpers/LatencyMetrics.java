@@ -0,0 +1,64 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyMetrics {
+
+	private final LongAdder count = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final AtomicLong lastNanos = new AtomicLong();
+
+	public void record(long nanos, boolean success) {
+		this.count.increment();
+		this.totalNanos.add(nanos);
+		this.lastNanos.set(nanos);
+		this.maxNanos.accumulateAndGet(nanos, Math::max);
+
+		if (!success)
+			this.failures.increment();
+	}
+
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	public long getFailureCount() {
+		return this.failures.sum();
+	}
+
+	public double getAverageMillis() {
+		long count = this.count.sum();
+
+		return count == 0 ? 0 : this.totalNanos.sum() / 1e6 / count;
+	}
+
+	public double getMaxMillis() {
+		return this.maxNanos.get() / 1e6;
+	}
+
+	public double getLastMillis() {
+		return this.lastNanos.get() / 1e6;
+	}
+
+	public Map<String, Object> snapshot() {
+		Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+		snapshot.put("count", getCount());
+		snapshot.put("failures", getFailureCount());
+		snapshot.put("averageMillis", getAverageMillis());
+		snapshot.put("maxMillis", getMaxMillis());
+		snapshot.put("lastMillis", getLastMillis());
+
+		return snapshot;
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+
+}
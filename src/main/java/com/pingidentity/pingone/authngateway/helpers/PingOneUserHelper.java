@@ -2,27 +2,40 @@ package com.pingidentity.pingone.authngateway.helpers;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
 import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpRequest.Builder;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
-import java.util.Date;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.PostConstruct;
 
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import com.pingidentity.pingone.authngateway.exceptions.CustomAPIErrorException;
 
+/**
+ * Management API (Users) calls made on behalf of a flow.
+ *
+ * Calls go through their own bulkhead and a circuit breaker. At most
+ * ping.userApi.bulkhead.maxConcurrent calls are in flight, out of the
+ * upstream slots of the api host, and up to maxQueued more wait their turn. When the breaker is open or the
+ * bulkhead is full a call fails at once with an UNAVAILABLE error instead of
+ * waiting for the Users API.
+ */
 @Component
 public class PingOneUserHelper {
 
@@ -30,254 +43,380 @@ public class PingOneUserHelper {
 
 	private String attributeName;
 
-	@Value("${ping.authHost}")
-	private String authHost;
-
-	@Value("${ping.apiHost}")
-	private String apiHost;
-
 	@Value("${ping.environmentId}")
 	private String environmentId;
 
-	@Value("${oauth2.worker.clientId}")
-	private String workerClientId;
+	@Value("${ping.userApi.timeoutMillis:10000}")
+	private long timeoutMillis;
+
+	@Value("${ping.userApi.bulkhead.maxConcurrent:4}")
+	private int maxConcurrent;
+
+	@Value("${ping.userApi.bulkhead.maxQueued:100}")
+	private int maxQueued;
+
+	@Value("${ping.userApi.circuitBreaker.enabled:true}")
+	private boolean circuitBreakerEnabled;
+
+	@Value("${ping.userApi.circuitBreaker.failureRatePercent:50}")
+	private int failureRatePercent;
+
+	@Value("${ping.userApi.circuitBreaker.minimumCalls:10}")
+	private int minimumCalls;
+
+	@Value("${ping.userApi.circuitBreaker.windowSize:20}")
+	private int windowSize;
 
-	@Value("${oauth2.worker.clientSecret}")
-	private String workerClientSecret;
+	@Value("${ping.userApi.circuitBreaker.slowCallMillis:5000}")
+	private long slowCallMillis;
 
-	private URI tokenEndpoint;
-	private String userAPIEndpoint;
-	private String accessToken = null;
-	private Long accessTokenExpiresIn = null;
+	@Value("${ping.userApi.circuitBreaker.openMillis:30000}")
+	private long openMillis;
 
-	private HttpClient httpClient;
+	@Value("${ping.userApi.circuitBreaker.halfOpenCalls:3}")
+	private int halfOpenCalls;
+
+	// appended to an address of the api upstream pool for each call
+	private String userAPIPath;
+
+	private Bulkhead bulkhead;
+	private CircuitBreaker circuitBreaker;
+
+	@Autowired
+	private WorkerTokenManager tokenManager;
+
+	@Autowired
+	private UserLookupCache userLookupCache;
+
+	@Autowired
+	private UpstreamClient httpClient;
+
+	@Autowired
+	private UpstreamPools upstreamPools;
 
 	@PostConstruct
 	public void init() throws URISyntaxException {
 		this.attributeName = "enablemfa";
 
-		this.tokenEndpoint = new URI(String.format("https://%s/as/token", this.authHost, this.environmentId));
-		this.userAPIEndpoint = String.format("https://%s/v1/environments/%s/users", this.apiHost, this.environmentId);
+		this.userAPIPath = String.format("/v1/environments/%s/users", this.environmentId);
+
+		this.bulkhead = new Bulkhead(this.maxConcurrent, this.maxQueued);
 
-		this.httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
-				.followRedirects(HttpClient.Redirect.NEVER).build();
+		if (this.circuitBreakerEnabled)
+			this.circuitBreaker = new CircuitBreaker("userApi", this.failureRatePercent, this.minimumCalls, this.windowSize,
+					this.slowCallMillis, this.openMillis, this.halfOpenCalls);
 	}
 
-	public boolean enableMFA(String username, String retainValueKey) throws CustomAPIErrorException {
-		createAccessToken();
-		
-		String userId = getUserId(username, retainValueKey);
+	public long getTimeoutMillis() {
+		return this.timeoutMillis;
+	}
 
-		if (userId == null)
-			return false;
+	public Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("bulkhead", this.bulkhead.getMetrics());
 
-		Builder targetRequestBuilder = null;
+		if (this.circuitBreaker != null)
+			metrics.put("circuitBreaker", this.circuitBreaker.getMetrics());
 
-		String searchEndpoint = this.userAPIEndpoint + "/" + userId + "/mfaEnabled";
+		return metrics;
+	}
 
-		if (log.isDebugEnabled())
-			log.debug("User search endpoint: " + searchEndpoint);
+	public boolean enableMFA(String username, String retainValueKey) throws CustomAPIErrorException {
+		return enableMFA(new UserContext(), username, retainValueKey);
+	}
 
-		String payload = "{\n" + "    \"mfaEnabled\": true\n" + "}";
+	public boolean enableMFA(UserContext userContext, String username, String retainValueKey) throws CustomAPIErrorException {
+		return ConcurrentCalls.await(enableMFAAsync(userContext, username, retainValueKey), this.attributeName);
+	}
 
-		try {
-			targetRequestBuilder = HttpRequest.newBuilder().uri(new URI(searchEndpoint))
-					.PUT(BodyPublishers.ofString(payload));
-		} catch (URISyntaxException e) {
-			throw new CustomAPIErrorException(this.attributeName, "UNKNOWN", "Unknown issue. Please contact support",
-					"UNKNOWN", "Unknown issue. Unable to create http builder for enabling MFA.");
-		}
+	public CompletableFuture<Boolean> enableMFAAsync(UserContext userContext, String username, String retainValueKey) {
+		return getUserIdAsync(userContext, username, retainValueKey).thenCompose(userId -> {
+			if (userId == null)
+				return CompletableFuture.completedFuture(false);
 
-		targetRequestBuilder.setHeader("content-type", "application/json");
-		targetRequestBuilder.setHeader("Authorization", "Bearer " + this.accessToken);
+			String searchEndpoint = this.userAPIPath + "/" + userId + "/mfaEnabled";
 
-		HttpRequest targetRequest = targetRequestBuilder.build();
+			if (log.isDebugEnabled())
+				log.debug("User search endpoint: " + searchEndpoint);
 
-		HttpResponse<String> targetResponse = null;
+			String payload = "{\n" + "    \"mfaEnabled\": true\n" + "}";
 
-		try {
-			targetResponse = httpClient.send(targetRequest, BodyHandlers.ofString());
-		} catch (IOException | InterruptedException e) {
-			log.error("Unknown issue. Bad http response when enabling MFA for user", e);
-			return false;
-		}
+			Builder targetRequestBuilder = null;
 
-		if (targetResponse.statusCode() != 200) {
-			log.error("Bad status code when enabling MFA: " + 200);
-			return false;
-		}
+			try {
+				targetRequestBuilder = newRequestBuilder(searchEndpoint).PUT(BodyPublishers.ofString(payload));
+			} catch (URISyntaxException e) {
+				return ConcurrentCalls.failed(new CustomAPIErrorException(this.attributeName, "UNKNOWN", "Unknown issue. Please contact support",
+						"UNKNOWN", "Unknown issue. Unable to create http builder for enabling MFA."));
+			}
+
+			return sendAsync(targetRequestBuilder).handle((targetResponse, e) -> {
+				if (e != null) {
+					throwIfCustomAPIError(e);
+
+					log.error("Unknown issue. Bad http response when enabling MFA for user", e);
+					return false;
+				}
+
+				if (targetResponse.statusCode() != 200) {
+					log.error("Bad status code when enabling MFA: " + 200);
+					return false;
+				}
 
-		return true;
+				this.userLookupCache.invalidate(userId);
 
+				return true;
+			});
+		});
 	}
 
 	public String getUserId(String searchValue, String searchKey) throws CustomAPIErrorException {
-		createAccessToken();
-		
-		return getUser(searchValue, searchKey).getString("id");
+		return getUserId(new UserContext(), searchValue, searchKey);
+	}
+
+	public String getUserId(UserContext userContext, String searchValue, String searchKey) throws CustomAPIErrorException {
+		return ConcurrentCalls.await(getUserIdAsync(userContext, searchValue, searchKey), this.attributeName);
+	}
+
+	public CompletableFuture<String> getUserIdAsync(UserContext userContext, String searchValue, String searchKey) {
+		return getUserAsync(userContext, searchValue, searchKey).thenApply(user -> user == null ? null : user.getString("id"));
+	}
+
+	// after a flow that may have created the user, so earlier searches that found no one are not reused
+	public void invalidateMissingUser(UserContext userContext, String searchValue, String searchKey) {
+		userContext.removeNotFound(searchKey, searchValue);
+
+		this.userLookupCache.invalidateMissing(searchKey, searchValue);
 	}
 
 	public String getUserName(String searchValue, String searchKey) throws CustomAPIErrorException {
-		createAccessToken();
-		
-		return getUser(searchValue, searchKey).getString("username");
+		return getUserName(new UserContext(), searchValue, searchKey);
+	}
+
+	public String getUserName(UserContext userContext, String searchValue, String searchKey) throws CustomAPIErrorException {
+		JSONObject user = getUser(userContext, searchValue, searchKey);
+
+		return user == null ? null : user.getString("username");
 	}
 
 	public JSONObject getUser(String searchValue, String searchKey) throws CustomAPIErrorException {
-		createAccessToken();
-		
+		return getUser(new UserContext(), searchValue, searchKey);
+	}
+
+	public JSONObject getUser(UserContext userContext, String searchValue, String searchKey) throws CustomAPIErrorException {
+		return ConcurrentCalls.await(getUserAsync(userContext, searchValue, searchKey), this.attributeName);
+	}
+
+	public CompletableFuture<JSONObject> getUserAsync(UserContext userContext, String searchValue, String searchKey) {
+		if (userContext.hasUser(searchKey, searchValue))
+			return CompletableFuture.completedFuture(userContext.getUser(searchKey, searchValue));
+
+		return this.userLookupCache.get(searchKey, searchValue, () -> searchUserAsync(searchValue, searchKey))
+				.thenApply(user -> {
+					userContext.putUser(searchKey, searchValue, user);
+					return user;
+				});
+	}
+
+	private CompletableFuture<JSONObject> searchUserAsync(String searchValue, String searchKey) {
 		String filter = null;
 		try {
 			filter = "filter=" + URLEncoder.encode(String.format(searchKey + " eq \"%s\"", searchValue), "UTF-8");
 		} catch (UnsupportedEncodingException e) {
-			throw new CustomAPIErrorException(this.attributeName, "UNKNOWN", "Unknown issue. Please contact support",
-					"UNKNOWN", "Unknown issue. Unable to create search filter for user.");
+			return ConcurrentCalls.failed(new CustomAPIErrorException(this.attributeName, "UNKNOWN", "Unknown issue. Please contact support",
+					"UNKNOWN", "Unknown issue. Unable to create search filter for user."));
 		}
 
-		String searchEndpoint = this.userAPIEndpoint + "?" + filter;
+		String searchEndpoint = this.userAPIPath + "?" + filter;
 
 		if (log.isDebugEnabled())
 			log.debug("User search endpoint: " + searchEndpoint);
 
-		JSONObject userResponse = loadObject(searchEndpoint);
+		return loadObjectAsync(searchEndpoint).thenApply(userResponse -> {
+			if (userResponse == null)
+				return null;
 
-		if (userResponse == null)
-			return null;
-
-		Object idObject = userResponse.query("/_embedded/users/0");
+			Object idObject = userResponse.query("/_embedded/users/0");
 
-		return (JSONObject) idObject;
+			return (JSONObject) idObject;
+		});
 	}
 
 	public JSONObject getUserDevices(String userId) throws CustomAPIErrorException {
-		createAccessToken();
-		
-		String endpoint = String.format("%s/%s/devices", this.userAPIEndpoint, userId);
+		return getUserDevices(new UserContext(), userId);
+	}
 
-		String searchEndpoint = endpoint;
+	public JSONObject getUserDevices(UserContext userContext, String userId) throws CustomAPIErrorException {
+		return ConcurrentCalls.await(getUserDevicesAsync(userContext, userId), this.attributeName);
+	}
+
+	public CompletableFuture<JSONObject> getUserDevicesAsync(UserContext userContext, String userId) {
+		if (userContext.hasDevices(userId))
+			return CompletableFuture.completedFuture(userContext.getDevices());
+
+		String endpoint = String.format("%s/%s/devices", this.userAPIPath, userId);
 
 		if (log.isDebugEnabled())
-			log.debug("User device search endpoint: " + searchEndpoint);
+			log.debug("User device search endpoint: " + endpoint);
 
-		return loadObject(endpoint);
+		return loadObjectAsync(endpoint).thenApply(userDevices -> {
+			userContext.setDevices(userId, userDevices);
+			return userDevices;
+		});
 	}
 
 	public boolean registerEmailDevice(String username, String emailAttribute) throws CustomAPIErrorException {
-		createAccessToken();
-		
-		String userId = getUserId(username, "username");
+		return registerEmailDevice(new UserContext(), username, emailAttribute);
+	}
 
-		if (userId == null)
-			throw new CustomAPIErrorException(this.attributeName, "UNKNOWN",
-					"Unknown issue registering email mfa. Please contact support", "UNKNOWN",
-					"Unknown issue registering email mfa. UserId is null.");
+	public boolean registerEmailDevice(UserContext userContext, String username, String emailAttribute) throws CustomAPIErrorException {
+		return ConcurrentCalls.await(registerEmailDeviceAsync(userContext, username, emailAttribute), this.attributeName);
+	}
 
-		JSONObject userDevices = getUserDevices(userId);
+	public CompletableFuture<Boolean> registerEmailDeviceAsync(UserContext userContext, String username, String emailAttribute) {
+		return registerEmailDeviceAsync(userContext, username, emailAttribute, false);
+	}
 
+	// failOnError: a device that could not be created fails the future instead of completing it with false, so it can be retried
+	public CompletableFuture<Boolean> registerEmailDeviceAsync(UserContext userContext, String username, String emailAttribute,
+			boolean failOnError) {
+		if (userContext.isDeviceRegistered()) {
+			if (log.isDebugEnabled())
+				log.debug("Skipping mfa enrolment because a device was already registered for this request.");
+
+			return CompletableFuture.completedFuture(false);
+		}
+
+		return getUserIdAsync(userContext, username, "username")
+				.thenCompose(userId -> {
+					if (userId == null)
+						return ConcurrentCalls.<Boolean>failed(new CustomAPIErrorException(this.attributeName, "UNKNOWN",
+								"Unknown issue registering email mfa. Please contact support", "UNKNOWN",
+								"Unknown issue registering email mfa. UserId is null."));
+
+					return getUserDevicesAsync(userContext, userId)
+							.thenCompose(userDevices -> createEmailDeviceAsync(userContext, userId, userDevices, emailAttribute, failOnError));
+				});
+	}
+
+	private CompletableFuture<Boolean> createEmailDeviceAsync(UserContext userContext, String userId, JSONObject userDevices, String emailAttribute,
+			boolean failOnError) {
 		if (userDevices != null) {
 			if (log.isDebugEnabled())
 				log.debug("Skipping mfa enrolment because the user already has a device enabled.");
 
-			return false;
+			return CompletableFuture.completedFuture(false);
 		}
 
 		String payload = "{\n" + "    \"type\": \"EMAIL\",\n" + "    \"email\": \"" + emailAttribute + "\"\n" + "}";
 
 		Builder targetRequestBuilder = null;
 
-		String endpoint = String.format("%s/%s/devices", this.userAPIEndpoint, userId);
+		String endpoint = String.format("%s/%s/devices", this.userAPIPath, userId);
 
 		try {
-			targetRequestBuilder = HttpRequest.newBuilder().uri(new URI(endpoint))
-					.POST(BodyPublishers.ofString(payload));
+			targetRequestBuilder = newRequestBuilder(endpoint).POST(BodyPublishers.ofString(payload));
 		} catch (URISyntaxException e) {
-			throw new CustomAPIErrorException(this.attributeName, "UNKNOWN", "Unknown issue. Please contact support",
-					"UNKNOWN", "Unknown issue. Unable to create http builder for enabling MFA.");
+			return ConcurrentCalls.failed(new CustomAPIErrorException(this.attributeName, "UNKNOWN", "Unknown issue. Please contact support",
+					"UNKNOWN", "Unknown issue. Unable to create http builder for enabling MFA."));
 		}
 
-		targetRequestBuilder.setHeader("content-type", "application/json");
-		targetRequestBuilder.setHeader("Authorization", "Bearer " + this.accessToken);
+		return sendAsync(targetRequestBuilder).handle((targetResponse, e) -> {
+			if (e != null) {
+				throwIfCustomAPIError(e);
 
-		HttpRequest targetRequest = targetRequestBuilder.build();
+				log.error("Unknown issue. Bad http response when enabling MFA for user", e);
 
-		HttpResponse<String> targetResponse = null;
+				if (failOnError)
+					throw new CompletionException(ConcurrentCalls.noResponse(this.attributeName, "Bad http response when adding MFA device.", e));
 
-		try {
-			targetResponse = httpClient.send(targetRequest, BodyHandlers.ofString());
-		} catch (IOException | InterruptedException e) {
-			log.error("Unknown issue. Bad http response when enabling MFA for user", e);
-			return false;
-		}
+				return false;
+			}
 
-		if (targetResponse.statusCode() != 201) {
-			log.error("Bad status code when adding MFA device: " + 201);
-			return false;
-		}
+			if (targetResponse.statusCode() != 201) {
+				log.error("Bad status code when adding MFA device: " + targetResponse.statusCode());
+
+				if (failOnError)
+					throw new CompletionException(ConcurrentCalls.badStatus(this.attributeName, "Bad status code when adding MFA device",
+							targetResponse.statusCode()));
+
+				return false;
+			}
 
-		return true;
+			userContext.setDeviceRegistered(true);
+
+			this.userLookupCache.invalidate(userId);
+
+			return true;
+		});
 	}
 
-	private void createAccessToken() throws CustomAPIErrorException {
+	private Builder newRequestBuilder(String path) throws URISyntaxException {
+		return this.httpClient.newRequestBuilder(this.upstreamPools.getApiPool().choose().getUri(path))
+				.timeout(Duration.ofMillis(this.timeoutMillis));
+	}
 
-		if (this.accessToken != null && this.accessTokenExpiresIn != null
-				&& this.accessTokenExpiresIn > (new Date()).getTime()) {
+	private CompletableFuture<HttpResponse<String>> sendAsync(Builder targetRequestBuilder) {
+		CompletableFuture<HttpResponse<String>> call = this.bulkhead.submit(() -> guardedSendAsync(targetRequestBuilder));
 
-			if(log.isDebugEnabled())
-				log.debug("Using existing accessToken");
-			return;
-		}
+		return call != null ? call : ConcurrentCalls.failed(unavailable("Too many user API calls waiting."));
+	}
 
-		String payload = String.format("grant_type=client_credentials&client_id=%s&client_secret=%s",
-				this.workerClientId, this.workerClientSecret);
+	// runs with a bulkhead slot, often on the thread completing the previous call, so nothing here may block
+	private CompletableFuture<HttpResponse<String>> guardedSendAsync(Builder targetRequestBuilder) {
+		if (this.circuitBreaker != null && !this.circuitBreaker.tryAcquire())
+			return ConcurrentCalls.failed(unavailable("User API circuit breaker is open."));
 
-		Builder targetRequestBuilder = HttpRequest.newBuilder().uri(this.tokenEndpoint)
-				.POST(BodyPublishers.ofString(payload));
+		// the upstream call once sent, cancelled along with the call
+		AtomicReference<CompletableFuture<HttpResponse<String>>> sent = new AtomicReference<CompletableFuture<HttpResponse<String>>>();
 
-		targetRequestBuilder.header("content-type", "application/x-www-form-urlencoded");
-		HttpRequest targetRequest = targetRequestBuilder.build();
+		CompletableFuture<HttpResponse<String>> call = this.tokenManager.getAccessTokenAsync().thenCompose(accessToken -> {
+			targetRequestBuilder.setHeader("content-type", "application/json");
+			targetRequestBuilder.setHeader("Authorization", "Bearer " + accessToken);
 
-		HttpResponse<String> targetResponse = null;
+			long start = System.nanoTime();
 
-		try {
-			targetResponse = httpClient.send(targetRequest, BodyHandlers.ofString());
-		} catch (IOException | InterruptedException e) {
-			throw new CustomAPIErrorException(this.attributeName, "UNKNOWN", "Unknown issue. Please contact support",
-					"UNKNOWN", "Unknown issue.");
+			CompletableFuture<HttpResponse<String>> upstreamCall = httpClient.sendAsync(this.upstreamPools.getApiPool(), targetRequestBuilder.build(), BodyHandlers.ofString());
+			sent.set(upstreamCall);
 
-		}
+			return upstreamCall.whenComplete((response, e) -> recordOutcome(start, response, e));
+		});
 
-		if (targetResponse.statusCode() != 200)
-			throw new CustomAPIErrorException(this.attributeName, "UNKNOWN", "Unknown issue. Please contact support",
-					"UNKNOWN",
-					"Unknown issue. Bad http response when retrieving access token: " + targetResponse.statusCode());
+		call.whenComplete((response, e) -> {
+			CompletableFuture<HttpResponse<String>> upstreamCall = sent.get();
 
-		String responsePayload = null;
+			if (upstreamCall != null && call.isCancelled())
+				upstreamCall.cancel(true);
 
-		try {
-			responsePayload = getResponsePayload(targetResponse);
-		} catch (UnsupportedOperationException | IOException e) {
-			throw new CustomAPIErrorException(this.attributeName, "UNKNOWN", "Unknown issue. Please contact support",
-					"UNKNOWN", "Unknown issue. Cannot receive access token response");
-		}
+			// no worker token, or cancelled before it was sent: says nothing about the user API
+			if (upstreamCall == null && this.circuitBreaker != null)
+				this.circuitBreaker.onIgnored();
+		});
 
-		if (log.isDebugEnabled())
-			log.debug("AT response: " + responsePayload);
+		return call;
+	}
 
-		JSONObject atResponse = new JSONObject(responsePayload);
+	private void recordOutcome(long start, HttpResponse<String> response, Throwable e) {
+		if (this.circuitBreaker == null)
+			return;
 
-		if (!atResponse.has("access_token"))
-			throw new CustomAPIErrorException(this.attributeName, "UNKNOWN", "Unknown issue. Please contact support",
-					"UNKNOWN", "Unknown issue. Cannot locate access_token.");
+		// cancelled by the caller (e.g. another call of the request failed), not the user API's doing
+		if (ConcurrentCalls.unwrap(e) instanceof CancellationException)
+			this.circuitBreaker.onIgnored();
+		else if (e != null || response.statusCode() >= 500)
+			this.circuitBreaker.onFailure();
+		else
+			this.circuitBreaker.onSuccess(System.nanoTime() - start);
+	}
 
-		if (atResponse.has("expires_in")) {
-			Integer accessTokenExpires = atResponse.getInt("expires_in");
-			if (accessTokenExpires != null) {
-				// 750 = 1000ms less 25%
-				this.accessTokenExpiresIn = (new Date()).getTime() + (accessTokenExpires * 750);
-			}
-		}
+	private CustomAPIErrorException unavailable(String detailedMessage) {
+		return new CustomAPIErrorException(this.attributeName, "UNKNOWN", "Unknown issue. Please contact support",
+				"UNAVAILABLE", "Unknown issue. " + detailedMessage);
+	}
 
-		this.accessToken = atResponse.getString("access_token");
+	private static void throwIfCustomAPIError(Throwable e) {
+		if (ConcurrentCalls.unwrap(e) instanceof CustomAPIErrorException)
+			throw new CompletionException(ConcurrentCalls.unwrap(e));
 	}
 
 	private String getResponsePayload(HttpResponse<String> response) throws UnsupportedOperationException, IOException {
@@ -303,7 +442,7 @@ public class PingOneUserHelper {
 
 	}
 
-	private JSONObject loadObject(String endpoint) throws CustomAPIErrorException {
+	private CompletableFuture<JSONObject> loadObjectAsync(String endpoint) {
 
 		Builder targetRequestBuilder = null;
 
@@ -313,26 +452,29 @@ public class PingOneUserHelper {
 			log.debug("Search endpoint: " + searchEndpoint);
 
 		try {
-			targetRequestBuilder = HttpRequest.newBuilder().uri(new URI(searchEndpoint)).GET();
+			targetRequestBuilder = newRequestBuilder(searchEndpoint).GET();
 		} catch (URISyntaxException e) {
-			throw new CustomAPIErrorException(this.attributeName, "UNKNOWN", "Unknown issue. Please contact support",
-					"UNKNOWN", "Unknown issue. Unable to create http builder for user.");
+			return ConcurrentCalls.failed(new CustomAPIErrorException(this.attributeName, "UNKNOWN", "Unknown issue. Please contact support",
+					"UNKNOWN", "Unknown issue. Unable to create http builder for user."));
 		}
 
-		targetRequestBuilder.setHeader("content-type", "application/json");
-		targetRequestBuilder.setHeader("Authorization", "Bearer " + this.accessToken);
-
-		HttpRequest targetRequest = targetRequestBuilder.build();
+		return sendAsync(targetRequestBuilder).handle((targetResponse, e) -> {
+			if (e != null) {
+				throw new CompletionException(ConcurrentCalls.noResponse(this.attributeName, "Bad http response trying to search for user.", e));
+			}
 
-		HttpResponse<String> targetResponse = null;
+			try {
+				return readObject(targetResponse);
+			} catch (CustomAPIErrorException ce) {
+				throw new CompletionException(ce);
+			}
+		});
+	}
 
-		try {
-			targetResponse = httpClient.send(targetRequest, BodyHandlers.ofString());
-		} catch (IOException | InterruptedException e) {
-			throw new CustomAPIErrorException(this.attributeName, "UNKNOWN", "Unknown issue. Please contact support",
-					"UNKNOWN", "Unknown issue trying to search for user.");
+	private JSONObject readObject(HttpResponse<String> targetResponse) throws CustomAPIErrorException {
 
-		}
+		if (targetResponse.statusCode() != 200)
+			throw ConcurrentCalls.badStatus(this.attributeName, "Bad status code from the user API", targetResponse.statusCode());
 
 		String responsePayload = null;
 
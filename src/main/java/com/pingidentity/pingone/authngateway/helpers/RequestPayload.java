@@ -0,0 +1,42 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A flow request body, parsed once when the request arrives and shared by
+ * retained value handling and the validators.
+ *
+ * The user attributes are the body's "user" object when it has one, else
+ * the body itself, and are exposed as a read-only view rather than a copy.
+ */
+public class RequestPayload {
+
+	private static final String UserAttribute = "user";
+
+	private final JSONObject userPayload;
+
+	private final Map<String, Object> userPayloadMap;
+
+	public RequestPayload(String body) throws JSONException {
+		JSONObject payload = new JSONObject(body);
+
+		this.userPayload = payload.has(UserAttribute) ? payload.getJSONObject(UserAttribute) : payload;
+		this.userPayloadMap = new JSONObjectMap(this.userPayload);
+	}
+
+	public boolean has(String attributeName) {
+		return this.userPayload.has(attributeName);
+	}
+
+	public Object get(String attributeName) throws JSONException {
+		return this.userPayload.get(attributeName);
+	}
+
+	public Map<String, Object> getUserPayload() {
+		return this.userPayloadMap;
+	}
+
+}
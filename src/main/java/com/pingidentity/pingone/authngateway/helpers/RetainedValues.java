@@ -0,0 +1,95 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The retained values of one flow, as read from its ST-RC cookie and updated
+ * while the request is handled.
+ *
+ * Tracks whether a claim was added, changed or removed since the values were
+ * read, so the controller only encrypts and sets the cookie again when the
+ * flow's values actually changed. Values are compared as strings, the form
+ * they take once written to the cookie.
+ *
+ * The handle is the cookie value the values were loaded with: the encrypted
+ * values themselves or, with a server-side store, a reference to them.
+ */
+public class RetainedValues extends JSONObject {
+
+	private final String handle;
+
+	private boolean dirty;
+
+	public RetainedValues() {
+		this(null);
+	}
+
+	// handle: the cookie value the client already holds for these values
+	public RetainedValues(String handle) {
+		super();
+
+		this.handle = handle;
+		this.dirty = false;
+	}
+
+	@Override
+	public JSONObject put(String key, Object value) throws JSONException {
+		Object current = opt(key);
+
+		if (!Objects.equals(toClaimValue(current), toClaimValue(value)))
+			this.dirty = true;
+
+		return super.put(key, value);
+	}
+
+	@Override
+	public Object remove(String key) {
+		Object removed = super.remove(key);
+
+		if (removed != null)
+			this.dirty = true;
+
+		return removed;
+	}
+
+	public boolean isIssued() {
+		return this.handle != null;
+	}
+
+	public String getHandle() {
+		return this.handle;
+	}
+
+	// the named claims that have a value, as strings
+	public Map<String, String> getClaims(String[] claimNames) {
+		Map<String, String> claims = new HashMap<String, String>();
+
+		for (String claimName : claimNames) {
+			String value = toClaimValue(opt(claimName));
+
+			if (value != null)
+				claims.put(claimName, value);
+		}
+
+		return claims;
+	}
+
+	public boolean isDirty() {
+		return this.dirty;
+	}
+
+	// the client holds these values now
+	public void clean() {
+		this.dirty = false;
+	}
+
+	private static String toClaimValue(Object value) {
+		return value == null || JSONObject.NULL.equals(value) ? null : String.valueOf(value);
+	}
+
+}
@@ -0,0 +1,188 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One host (with an optional port) of a PingOne upstream, and what
+ * UpstreamPool needs to choose between addresses: a moving average of its
+ * latency, the requests it has in flight and whether it can take traffic.
+ *
+ * Passive outlier detection ejects the address after maxFailures requests in
+ * a row fail (no response or a 5xx). Each ejection that follows another
+ * without a success in between lasts longer, up to maxEjectionMillis. Active
+ * health checks mark it unhealthy after unhealthyThreshold failed probes and
+ * healthy again after the first probe that succeeds.
+ */
+public final class UpstreamAddress {
+
+	private static Logger log = LoggerFactory.getLogger(UpstreamAddress.class);
+
+	private static final String Scheme = "https://";
+
+	private final int index;
+	private final String authority;
+	private final String origin;
+
+	private final double ewmaWeight;
+	private final int maxFailures;
+	private final long ejectionNanos;
+	private final long maxEjectionNanos;
+	private final int unhealthyThreshold;
+
+	private final AtomicLong ewmaNanos = new AtomicLong();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private final AtomicInteger ejections = new AtomicInteger();
+	private final LatencyMetrics requestMetrics = new LatencyMetrics();
+
+	private volatile long ejectedUntil = System.nanoTime();
+	private volatile boolean healthy = true;
+
+	// only written by the health check thread
+	private int failedHealthChecks;
+
+	public UpstreamAddress(int index, String host, double ewmaWeight, int maxFailures, long ejectionMillis,
+			long maxEjectionMillis, int unhealthyThreshold) throws URISyntaxException {
+		URI originUri = new URI(Scheme + host + "/");
+
+		if (originUri.getHost() == null || originUri.getRawUserInfo() != null || !"/".equals(originUri.getRawPath())
+				|| originUri.getRawQuery() != null || originUri.getRawFragment() != null)
+			throw new URISyntaxException(host, "Upstream host must be a host name with an optional port");
+
+		this.index = index;
+		this.authority = originUri.getRawAuthority();
+		this.origin = Scheme + this.authority;
+
+		this.ewmaWeight = ewmaWeight;
+		this.maxFailures = Math.max(1, maxFailures);
+		this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(ejectionMillis);
+		this.maxEjectionNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(ejectionMillis, maxEjectionMillis));
+		this.unhealthyThreshold = Math.max(1, unhealthyThreshold);
+	}
+
+	// position among all the gateway's upstream addresses
+	public int getIndex() {
+		return this.index;
+	}
+
+	public String getAuthority() {
+		return this.authority;
+	}
+
+	public String getOrigin() {
+		return this.origin;
+	}
+
+	// pathAndQuery starts with /
+	public URI getUri(String pathAndQuery) throws URISyntaxException {
+		return new URI(this.origin.concat(pathAndQuery));
+	}
+
+	public boolean isAvailable(long now) {
+		return this.healthy && now - this.ejectedUntil >= 0;
+	}
+
+	public boolean isHealthy() {
+		return this.healthy;
+	}
+
+	// expected latency of one more request, an address without samples yet costs nothing so it is tried first
+	public long getCost() {
+		return this.ewmaNanos.get() * (this.inFlight.get() + 1);
+	}
+
+	public void started() {
+		this.inFlight.incrementAndGet();
+	}
+
+	// success is false when the request got no response or a 5xx
+	public void finished(long nanos, boolean success) {
+		this.inFlight.decrementAndGet();
+		this.requestMetrics.record(nanos, success);
+
+		long previous;
+		long next;
+
+		do {
+			previous = this.ewmaNanos.get();
+
+			// a failure counts as at least twice the average so a fast-failing address does not look attractive
+			long sample = success ? nanos : Math.max(nanos, previous * 2);
+			next = previous == 0 ? sample : previous + (long) ((sample - previous) * this.ewmaWeight);
+		} while (!this.ewmaNanos.compareAndSet(previous, next));
+
+		if (success) {
+			if (this.consecutiveFailures.get() != 0)
+				this.consecutiveFailures.set(0);
+
+			if (this.ejections.get() != 0 && System.nanoTime() - this.ejectedUntil >= 0)
+				this.ejections.set(0);
+
+			return;
+		}
+
+		// only the request that reaches the threshold ejects
+		if (this.consecutiveFailures.incrementAndGet() == this.maxFailures)
+			eject();
+	}
+
+	public void healthChecked(boolean success) {
+		if (success) {
+			this.failedHealthChecks = 0;
+
+			if (!this.healthy) {
+				this.healthy = true;
+				log.info(String.format("Upstream %s passed its health check and is back in the pool", this.authority));
+			}
+
+			return;
+		}
+
+		if (++this.failedHealthChecks >= this.unhealthyThreshold && this.healthy) {
+			this.healthy = false;
+			log.warn(String.format("Upstream %s failed %s health checks and is out of the pool", this.authority,
+					this.failedHealthChecks));
+		}
+	}
+
+	public Map<String, Object> getMetrics() {
+		long now = System.nanoTime();
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("available", isAvailable(now));
+		metrics.put("healthy", this.healthy);
+		metrics.put("ejectedMillis", Math.max(0, TimeUnit.NANOSECONDS.toMillis(this.ejectedUntil - now)));
+		metrics.put("ejections", this.ejections.get());
+		metrics.put("inFlight", this.inFlight.get());
+		metrics.put("ewmaMillis", this.ewmaNanos.get() / 1e6);
+		metrics.put("requests", this.requestMetrics.snapshot());
+
+		return metrics;
+	}
+
+	@Override
+	public String toString() {
+		return this.authority;
+	}
+
+	private void eject() {
+		int ejections = this.ejections.incrementAndGet();
+		long duration = Math.min(this.ejectionNanos * ejections, this.maxEjectionNanos);
+
+		this.ejectedUntil = System.nanoTime() + duration;
+		this.consecutiveFailures.set(0);
+
+		log.warn(String.format("Ejecting upstream %s for %sms after %s failed requests in a row", this.authority,
+				TimeUnit.NANOSECONDS.toMillis(duration), this.maxFailures));
+	}
+
+}
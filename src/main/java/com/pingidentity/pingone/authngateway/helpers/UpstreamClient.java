@@ -0,0 +1,539 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.pingidentity.pingone.authngateway.config.ThreadingConfig;
+
+/**
+ * The one HttpClient used for every call to PingOne (flow proxy, Users API and
+ * worker token).
+ *
+ * Requests in flight are capped per host, so one slow host cannot take the
+ * slots of the others. HttpClient opens a connection for each concurrent
+ * HTTP/1.1 request, so a host is held to ping.maxConnections requests until
+ * one of its responses comes back over HTTP/2. HTTP/2 requests share one
+ * multiplexed connection, and the host is then allowed
+ * ping.upstream.http2MaxInFlight (dropping back should it answer over
+ * HTTP/1.1 again). ping.connectionTimeout is the connect timeout and also the
+ * longest a request waits for a free slot. Asynchronous requests over the
+ * cap wait in a bounded queue per host instead of holding a thread. A
+ * response whose body is an InputStream keeps its slot until the stream is
+ * closed, so streamed responses are capped like any other.
+ *
+ * Idle connections are not evicted here. HttpClient closes them after its
+ * JVM-wide keep-alive timeout, -Djdk.httpclient.keepalive.timeout (seconds).
+ *
+ * Each request's latency and outcome is reported to the UpstreamPools
+ * address it was sent to. A request sent with the pool its address was
+ * chosen from is retried once, in the same slot, on another available
+ * address of that pool when it could not connect. A request sent without a
+ * pool, e.g. one for a flow held by its address, is not retried elsewhere.
+ */
+@Component
+public class UpstreamClient {
+
+	private static Logger log = LoggerFactory.getLogger(UpstreamClient.class);
+
+	@Value("${ping.connectionTimeout:30000}")
+	private long connectionTimeout;
+
+	@Value("${ping.maxConnections:10}")
+	private int maxConnections;
+
+	@Value("${ping.upstream.requestTimeoutMillis:30000}")
+	private long requestTimeoutMillis;
+
+	@Value("${ping.upstream.threads:8}")
+	private int threads;
+
+	@Value("${ping.upstream.http2MaxInFlight:100}")
+	private int http2MaxInFlight;
+
+	// per host
+	@Value("${ping.upstream.maxPending:1000}")
+	private int maxPending;
+
+	@Autowired
+	private ThreadingConfig threadingConfig;
+
+	@Autowired
+	private UpstreamPools upstreamPools;
+
+	private HttpClient httpClient;
+	private ExecutorService executor = null;
+
+	private int http1MaxInFlight;
+	private final ConcurrentHashMap<String, HostSlots> hostSlots = new ConcurrentHashMap<String, HostSlots>();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger peakInFlight = new AtomicInteger();
+	private final LongAdder queued = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LatencyMetrics requestMetrics = new LatencyMetrics();
+	private final LatencyMetrics queueWaitMetrics = new LatencyMetrics();
+
+	// permits can be taken away as well as added, when a host's limit changes with its protocol
+	private static final class ResizableSemaphore extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		private ResizableSemaphore(int permits) {
+			super(permits);
+		}
+
+		private void reduce(int reduction) {
+			reducePermits(reduction);
+		}
+	}
+
+	// the requests in flight to one host, and those waiting for a slot
+	private final class HostSlots {
+		private final String host;
+		private final ResizableSemaphore permits = new ResizableSemaphore(UpstreamClient.this.http1MaxInFlight);
+		private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+		private final AtomicInteger pendingCount = new AtomicInteger();
+		// drain requests not yet served, only the thread that takes it from 0 drains, as in Bulkhead
+		private final AtomicInteger drainRequests = new AtomicInteger();
+		private final AtomicBoolean http2 = new AtomicBoolean();
+
+		private HostSlots(String host) {
+			this.host = host;
+		}
+
+		private int getMaxInFlight() {
+			return this.http2.get() ? UpstreamClient.this.http2MaxInFlight : UpstreamClient.this.http1MaxInFlight;
+		}
+
+		// the limit follows the protocol the host last answered with
+		private void responded(HttpClient.Version version) {
+			boolean isHttp2 = version == HttpClient.Version.HTTP_2;
+			int difference = UpstreamClient.this.http2MaxInFlight - UpstreamClient.this.http1MaxInFlight;
+
+			if (this.http2.get() == isHttp2 || !this.http2.compareAndSet(!isHttp2, isHttp2) || difference == 0)
+				return;
+
+			if (log.isDebugEnabled())
+				log.debug(String.format("Upstream %s answered over %s, in-flight limit now %s", this.host, version, getMaxInFlight()));
+
+			if (isHttp2 == difference > 0) {
+				this.permits.release(Math.abs(difference));
+				drain();
+			} else
+				this.permits.reduce(Math.abs(difference));
+		}
+
+		private void release() {
+			this.permits.release();
+			drain();
+		}
+
+		private void drain() {
+			if (this.drainRequests.getAndIncrement() != 0)
+				return;
+
+			do {
+				while (!this.pending.isEmpty() && this.permits.tryAcquire()) {
+					Runnable next = this.pending.poll();
+
+					if (next == null) {
+						this.permits.release();
+						continue;
+					}
+
+					this.pendingCount.decrementAndGet();
+					next.run();
+				}
+			} while (this.drainRequests.decrementAndGet() != 0);
+		}
+	}
+
+	// one request's slot, released once: when the response completes, or when its body stream is closed
+	private static final class Slot {
+		private final HostSlots hostSlots;
+		private final AtomicBoolean released = new AtomicBoolean();
+		private volatile boolean streaming = false;
+
+		private Slot(HostSlots hostSlots) {
+			this.hostSlots = hostSlots;
+		}
+
+		private void release() {
+			if (this.released.compareAndSet(false, true))
+				this.hostSlots.release();
+		}
+
+		// a streamed body keeps the slot until it is closed
+		private void releaseUnlessStreaming() {
+			if (!this.streaming)
+				release();
+		}
+	}
+
+	private static final class SlotInputStream extends FilterInputStream {
+		private final Slot slot;
+
+		private SlotInputStream(InputStream in, Slot slot) {
+			super(in);
+			this.slot = slot;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				this.slot.release();
+			}
+		}
+	}
+
+	@PostConstruct
+	public void init() {
+		// the JDK keep-alive and HTTP/1.1 pool size are JVM-wide, set with -Djdk.httpclient.* at launch if needed
+		this.http1MaxInFlight = Math.max(1, this.maxConnections);
+		this.http2MaxInFlight = Math.max(1, this.http2MaxInFlight);
+
+		HttpClient.Builder httpClientBuilder = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NEVER)
+				.connectTimeout(Duration.ofMillis(this.connectionTimeout));
+
+		if (threadingConfig.getUpstreamExecutor() != null)
+			httpClientBuilder.executor(threadingConfig.getUpstreamExecutor());
+		else {
+			AtomicInteger threadCount = new AtomicInteger();
+
+			this.executor = Executors.newFixedThreadPool(this.threads, runnable -> {
+				Thread thread = new Thread(runnable, "upstream-http-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+
+			httpClientBuilder.executor(this.executor);
+		}
+
+		this.httpClient = httpClientBuilder.build();
+
+		if (log.isDebugEnabled())
+			log.debug(String.format("Upstream client: connectTimeout=%sms, maxInFlightPerHost=%s (HTTP/1.1) %s (HTTP/2), requestTimeout=%sms",
+					this.connectionTimeout, this.http1MaxInFlight, this.http2MaxInFlight, this.requestTimeoutMillis));
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (this.executor != null)
+			this.executor.shutdown();
+	}
+
+	public HttpRequest.Builder newRequestBuilder(URI uri) {
+		return HttpRequest.newBuilder().uri(uri).timeout(Duration.ofMillis(this.requestTimeoutMillis));
+	}
+
+	// pool is the one the request's address was chosen from, null to send it to that address only
+	public <T> HttpResponse<T> send(UpstreamPool pool, HttpRequest request, BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
+		HostSlots hostSlots = getHostSlots(request);
+		long queuedAt = System.nanoTime();
+
+		if (!hostSlots.permits.tryAcquire()) {
+			this.queued.increment();
+
+			if (!hostSlots.permits.tryAcquire(this.connectionTimeout, TimeUnit.MILLISECONDS)) {
+				this.queueWaitMetrics.record(System.nanoTime() - queuedAt, false);
+				throw reject(new HttpConnectTimeoutException("Timed out waiting for an upstream connection: " + hostSlots.host));
+			}
+		}
+
+		this.queueWaitMetrics.record(System.nanoTime() - queuedAt, true);
+
+		Slot slot = new Slot(hostSlots);
+
+		try {
+			return attempt(request, holdWhileStreaming(bodyHandler, slot), pool);
+		} finally {
+			slot.releaseUnlessStreaming();
+		}
+	}
+
+	public <T> CompletableFuture<HttpResponse<T>> sendAsync(UpstreamPool pool, HttpRequest request, BodyHandler<T> bodyHandler) {
+		HostSlots hostSlots = getHostSlots(request);
+		CompletableFuture<HttpResponse<T>> result = new CompletableFuture<HttpResponse<T>>();
+		long queuedAt = System.nanoTime();
+
+		Runnable dispatch = () -> dispatch(pool, request, bodyHandler, new Slot(hostSlots), result, queuedAt);
+
+		if (hostSlots.permits.tryAcquire()) {
+			dispatch.run();
+			return result;
+		}
+
+		if (hostSlots.pendingCount.incrementAndGet() > this.maxPending) {
+			hostSlots.pendingCount.decrementAndGet();
+			result.completeExceptionally(reject(new IOException("Upstream request queue is full: " + hostSlots.host)));
+			return result;
+		}
+
+		this.queued.increment();
+
+		if (log.isDebugEnabled())
+			log.debug("Upstream connections saturated, queueing request: " + hostSlots.pendingCount.get() + " pending for " + hostSlots.host);
+
+		hostSlots.pending.add(dispatch);
+
+		// cancelled or timed out by the caller while queued
+		result.whenComplete((response, e) -> {
+			if (e != null && hostSlots.pending.remove(dispatch))
+				hostSlots.pendingCount.decrementAndGet();
+		});
+
+		// a permit may have been released between tryAcquire and add
+		hostSlots.drain();
+
+		return result;
+	}
+
+	public Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("maxInFlightPerHost", getMaxInFlightPerHost());
+		metrics.put("inFlight", this.inFlight.get());
+		metrics.put("peakInFlight", this.peakInFlight.get());
+		metrics.put("pending", getPendingCount());
+		metrics.put("queued", this.queued.sum());
+		metrics.put("rejected", this.rejected.sum());
+		metrics.put("requests", this.requestMetrics.snapshot());
+		metrics.put("queueWait", this.queueWaitMetrics.snapshot());
+		metrics.put("pools", this.upstreamPools.getMetrics());
+
+		return metrics;
+	}
+
+	private Map<String, Object> getMaxInFlightPerHost() {
+		Map<String, Object> maxInFlight = new LinkedHashMap<String, Object>();
+
+		for (HostSlots hostSlots : this.hostSlots.values())
+			maxInFlight.put(hostSlots.host, hostSlots.getMaxInFlight());
+
+		return maxInFlight;
+	}
+
+	private int getPendingCount() {
+		int pending = 0;
+
+		for (HostSlots hostSlots : this.hostSlots.values())
+			pending += hostSlots.pendingCount.get();
+
+		return pending;
+	}
+
+	private HostSlots getHostSlots(HttpRequest request) {
+		return this.hostSlots.computeIfAbsent(request.uri().getRawAuthority(), HostSlots::new);
+	}
+
+	// an InputStream body is handed to the caller with the slot, which is released when the stream is closed
+	@SuppressWarnings("unchecked")
+	private static <T> BodyHandler<T> holdWhileStreaming(BodyHandler<T> bodyHandler, Slot slot) {
+		return responseInfo -> BodySubscribers.mapping(bodyHandler.apply(responseInfo), body -> {
+			if (!(body instanceof InputStream))
+				return body;
+
+			slot.streaming = true;
+
+			return (T) new SlotInputStream((InputStream) body, slot);
+		});
+	}
+
+	private <T> void dispatch(UpstreamPool pool, HttpRequest request, BodyHandler<T> bodyHandler, Slot slot, CompletableFuture<HttpResponse<T>> result, long queuedAt) {
+		long waitNanos = System.nanoTime() - queuedAt;
+
+		// cancelled by the caller (e.g. a ConcurrentCalls timeout) while queued
+		if (result.isDone()) {
+			slot.release();
+			return;
+		}
+
+		if (waitNanos > TimeUnit.MILLISECONDS.toNanos(this.connectionTimeout)) {
+			this.queueWaitMetrics.record(waitNanos, false);
+			slot.release();
+			result.completeExceptionally(reject(new HttpConnectTimeoutException("Timed out waiting for an upstream connection: " + slot.hostSlots.host)));
+			return;
+		}
+
+		this.queueWaitMetrics.record(waitNanos, true);
+
+		attemptAsync(request, holdWhileStreaming(bodyHandler, slot), slot, result, pool);
+	}
+
+	// failoverPool is null once the request has been retried
+	private <T> HttpResponse<T> attempt(HttpRequest request, BodyHandler<T> bodyHandler, UpstreamPool failoverPool) throws IOException, InterruptedException {
+		UpstreamAddress address = this.upstreamPools.getAddress(request.uri());
+		long start = started(address);
+
+		HttpResponse<T> response = null;
+		IOException failure = null;
+
+		try {
+			response = this.httpClient.send(request, bodyHandler);
+		} catch (IOException e) {
+			failure = e;
+		} finally {
+			finished(start, address, response);
+		}
+
+		if (failure == null)
+			return response;
+
+		HttpRequest retry = failoverPool != null ? failover(failoverPool, request, address, failure) : null;
+
+		if (retry == null)
+			throw failure;
+
+		return attempt(retry, bodyHandler, null);
+	}
+
+	private <T> void attemptAsync(HttpRequest request, BodyHandler<T> bodyHandler, Slot slot, CompletableFuture<HttpResponse<T>> result, UpstreamPool failoverPool) {
+		UpstreamAddress address = this.upstreamPools.getAddress(request.uri());
+		long start = started(address);
+
+		CompletableFuture<HttpResponse<T>> call;
+		try {
+			call = this.httpClient.sendAsync(request, bodyHandler);
+		} catch (RuntimeException e) {
+			finished(start, address, null);
+			slot.release();
+			result.completeExceptionally(e);
+			return;
+		}
+
+		call.whenComplete((response, e) -> {
+			finished(start, address, response);
+
+			HttpRequest retry = e != null && failoverPool != null && !result.isDone() ? failover(failoverPool, request, address, e) : null;
+
+			if (retry != null) {
+				attemptAsync(retry, bodyHandler, slot, result, null);
+				return;
+			}
+
+			// a response that was not handed to the caller cannot release a streamed body's slot
+			if (e != null || result.isDone())
+				slot.release();
+			else
+				slot.releaseUnlessStreaming();
+
+			if (e != null)
+				result.completeExceptionally(e);
+			else
+				result.complete(response);
+		});
+
+		result.whenComplete((response, e) -> {
+			if (result.isCancelled())
+				call.cancel(true);
+		});
+	}
+
+	// the request copied onto another address of the pool when it failed to connect to this one, otherwise null
+	private HttpRequest failover(UpstreamPool pool, HttpRequest request, UpstreamAddress failed, Throwable e) {
+		if (failed == null || !pool.contains(failed) || !isConnectFailure(e))
+			return null;
+
+		UpstreamAddress next = pool.chooseOther(failed);
+
+		if (next == null)
+			return null;
+
+		String query = request.uri().getRawQuery();
+
+		HttpRequest.Builder retry;
+		try {
+			retry = HttpRequest.newBuilder(next.getUri(query == null ? request.uri().getRawPath() : request.uri().getRawPath() + '?' + query));
+		} catch (URISyntaxException use) {
+			return null;
+		}
+
+		retry.method(request.method(), request.bodyPublisher().orElse(HttpRequest.BodyPublishers.noBody()))
+				.expectContinue(request.expectContinue());
+
+		request.timeout().ifPresent(retry::timeout);
+		request.version().ifPresent(retry::version);
+		request.headers().map().forEach((name, values) -> values.forEach(value -> retry.header(name, value)));
+
+		log.warn(String.format("Unable to connect to upstream %s, retrying %s %s on %s", failed, request.method(),
+				request.uri().getRawPath(), next));
+
+		return retry.build();
+	}
+
+	private static boolean isConnectFailure(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause())
+			if (cause instanceof ConnectException || cause instanceof HttpConnectTimeoutException)
+				return true;
+
+		return false;
+	}
+
+	private long started(UpstreamAddress address) {
+		int current = this.inFlight.incrementAndGet();
+		this.peakInFlight.accumulateAndGet(current, Math::max);
+
+		if (address != null)
+			address.started();
+
+		return System.nanoTime();
+	}
+
+	// response is null when the request failed
+	private void finished(long start, UpstreamAddress address, HttpResponse<?> response) {
+		long nanos = System.nanoTime() - start;
+
+		this.inFlight.decrementAndGet();
+		this.requestMetrics.record(nanos, response != null);
+
+		if (address != null)
+			address.finished(nanos, response != null && response.statusCode() < 500);
+
+		HostSlots hostSlots = response == null ? null : this.hostSlots.get(response.uri().getRawAuthority());
+
+		if (hostSlots != null)
+			hostSlots.responded(response.version());
+	}
+
+	private <E extends IOException> E reject(E e) {
+		this.rejected.increment();
+
+		log.warn(e.getMessage() + " " + getMetrics());
+
+		return e;
+	}
+
+}
@@ -0,0 +1,158 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The addresses of one logical PingOne upstream (auth or api), e.g. the hosts
+ * of a regional deployment or several instances of a local stand-in.
+ *
+ * Each request goes to the cheaper of two randomly picked available
+ * addresses, cost being the moving average latency scaled by the requests
+ * already in flight (power of two choices). That keeps most traffic on the
+ * fastest address without herding onto it. When no address is available
+ * (all unhealthy or ejected) the pool still picks one rather than failing
+ * requests that might succeed.
+ *
+ * Requests that belong to a PingOne flow must reach the address holding that
+ * flow, so choose(affinityKey) ranks the addresses by a hash of the key and
+ * each address (rendezvous hashing) and takes the highest ranked available
+ * one. A key stays on its address until that address is ejected or
+ * unhealthy, and only the keys of an address that drops out move.
+ */
+public final class UpstreamPool {
+
+	private final String name;
+	private final UpstreamAddress[] addresses;
+
+	public UpstreamPool(String name, List<UpstreamAddress> addresses) {
+		if (addresses.isEmpty())
+			throw new IllegalArgumentException("Upstream pool " + name + " has no addresses");
+
+		this.name = name;
+		this.addresses = addresses.toArray(new UpstreamAddress[0]);
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public List<UpstreamAddress> getAddresses() {
+		return Collections.unmodifiableList(Arrays.asList(this.addresses));
+	}
+
+	public boolean contains(UpstreamAddress address) {
+		for (UpstreamAddress candidate : this.addresses)
+			if (candidate == address)
+				return true;
+
+		return false;
+	}
+
+	public UpstreamAddress choose() {
+		if (this.addresses.length == 1)
+			return this.addresses[0];
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long now = System.nanoTime();
+
+		int first = random.nextInt(this.addresses.length);
+		int second = random.nextInt(this.addresses.length - 1);
+
+		if (second >= first)
+			second++;
+
+		UpstreamAddress a = this.addresses[first];
+		UpstreamAddress b = this.addresses[second];
+
+		boolean aAvailable = a.isAvailable(now);
+		boolean bAvailable = b.isAvailable(now);
+
+		if (aAvailable && bAvailable)
+			return a.getCost() <= b.getCost() ? a : b;
+
+		if (aAvailable)
+			return a;
+
+		if (bAvailable)
+			return b;
+
+		UpstreamAddress available = cheapestAvailable(null, now);
+
+		return available != null ? available : a.getCost() <= b.getCost() ? a : b;
+	}
+
+	// the address for a request that must follow the others with the same key, e.g. a flow id
+	public UpstreamAddress choose(String affinityKey) {
+		if (affinityKey == null)
+			return choose();
+
+		if (this.addresses.length == 1)
+			return this.addresses[0];
+
+		long now = System.nanoTime();
+		int keyHash = affinityKey.hashCode();
+
+		UpstreamAddress best = null;
+		UpstreamAddress bestAvailable = null;
+		long bestScore = 0;
+		long bestAvailableScore = 0;
+
+		for (UpstreamAddress address : this.addresses) {
+			long score = score(keyHash, address);
+
+			if (best == null || score > bestScore) {
+				best = address;
+				bestScore = score;
+			}
+
+			if (address.isAvailable(now) && (bestAvailable == null || score > bestAvailableScore)) {
+				bestAvailable = address;
+				bestAvailableScore = score;
+			}
+		}
+
+		return bestAvailable != null ? bestAvailable : best;
+	}
+
+	// where to retry a request that could not connect to failed, null when there is nowhere else to go
+	public UpstreamAddress chooseOther(UpstreamAddress failed) {
+		return this.addresses.length == 1 ? null : cheapestAvailable(failed, System.nanoTime());
+	}
+
+	@Override
+	public String toString() {
+		return this.name + Arrays.toString(this.addresses);
+	}
+
+	// the authority rather than the index, so every gateway instance ranks the addresses the same way
+	private static long score(int keyHash, UpstreamAddress address) {
+		long h = ((long) keyHash << 32) ^ (address.getAuthority().hashCode() & 0xffffffffL);
+
+		// murmur3 finalizer
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+
+		return h;
+	}
+
+	private UpstreamAddress cheapestAvailable(UpstreamAddress excluded, long now) {
+		UpstreamAddress cheapest = null;
+
+		for (UpstreamAddress address : this.addresses) {
+			if (address == excluded || !address.isAvailable(now))
+				continue;
+
+			if (cheapest == null || address.getCost() < cheapest.getCost())
+				cheapest = address;
+		}
+
+		return cheapest;
+	}
+
+}
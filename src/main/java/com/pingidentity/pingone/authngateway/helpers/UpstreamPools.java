@@ -0,0 +1,199 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * The auth (ping.authHost) and api (ping.apiHost) upstream pools. Either
+ * setting can list several comma-separated hosts, each with an optional port.
+ * A host listed in both pools is one address with one set of statistics,
+ * so callers pass UpstreamClient the pool they chose an address from rather
+ * than it being looked up from the address.
+ *
+ * Pools with more than one address are health checked in the background
+ * with a GET of ping.upstream.pool.healthCheck.path on each address; any
+ * response below 500 is healthy. A single-address pool is not checked, and
+ * its address keeps its traffic even when ejected, there being nowhere else
+ * to send it.
+ */
+@Component
+public class UpstreamPools {
+
+	private static Logger log = LoggerFactory.getLogger(UpstreamPools.class);
+
+	public static final String AuthPool = "auth";
+	public static final String ApiPool = "api";
+
+	@Value("${ping.authHost}")
+	private String[] authHosts;
+
+	@Value("${ping.apiHost}")
+	private String[] apiHosts;
+
+	@Value("${ping.upstream.pool.ewmaWeight:0.3}")
+	private double ewmaWeight;
+
+	@Value("${ping.upstream.pool.maxFailures:5}")
+	private int maxFailures;
+
+	@Value("${ping.upstream.pool.ejectionMillis:30000}")
+	private long ejectionMillis;
+
+	@Value("${ping.upstream.pool.maxEjectionMillis:300000}")
+	private long maxEjectionMillis;
+
+	@Value("${ping.upstream.pool.healthCheck.intervalMillis:10000}")
+	private long healthCheckIntervalMillis;
+
+	@Value("${ping.upstream.pool.healthCheck.timeoutMillis:2000}")
+	private long healthCheckTimeoutMillis;
+
+	@Value("${ping.upstream.pool.healthCheck.path:/}")
+	private String healthCheckPath;
+
+	@Value("${ping.upstream.pool.healthCheck.unhealthyThreshold:2}")
+	private int unhealthyThreshold;
+
+	private UpstreamPool authPool;
+	private UpstreamPool apiPool;
+
+	private final Map<String, UpstreamAddress> addresses = new HashMap<String, UpstreamAddress>();
+	private final Map<UpstreamAddress, URI> healthCheckUris = new LinkedHashMap<UpstreamAddress, URI>();
+
+	private HttpClient healthCheckClient;
+	private ScheduledExecutorService healthCheckScheduler;
+
+	@PostConstruct
+	public void init() throws URISyntaxException {
+		if (!this.healthCheckPath.startsWith("/"))
+			this.healthCheckPath = "/" + this.healthCheckPath;
+
+		this.authPool = newPool(AuthPool, this.authHosts);
+		this.apiPool = newPool(ApiPool, this.apiHosts);
+
+		if (log.isDebugEnabled())
+			log.debug(String.format("Upstream pools: %s, %s", this.authPool, this.apiPool));
+
+		if (this.healthCheckUris.isEmpty())
+			return;
+
+		this.healthCheckClient = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NEVER)
+				.connectTimeout(Duration.ofMillis(this.healthCheckTimeoutMillis)).build();
+
+		this.healthCheckScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "upstream-health-check");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		this.healthCheckScheduler.scheduleWithFixedDelay(this::checkHealth, this.healthCheckIntervalMillis,
+				this.healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (this.healthCheckScheduler != null)
+			this.healthCheckScheduler.shutdownNow();
+	}
+
+	public UpstreamPool getAuthPool() {
+		return this.authPool;
+	}
+
+	public UpstreamPool getApiPool() {
+		return this.apiPool;
+	}
+
+	// the pool address a request is being sent to, null for any other host
+	public UpstreamAddress getAddress(URI uri) {
+		return this.addresses.get(uri.getRawAuthority());
+	}
+
+	// every address across both pools, indexed by UpstreamAddress.getIndex()
+	public int getAddressCount() {
+		return this.addresses.size();
+	}
+
+	public Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+
+		for (UpstreamPool pool : new UpstreamPool[] { this.authPool, this.apiPool }) {
+			Map<String, Object> poolMetrics = new LinkedHashMap<String, Object>();
+
+			for (UpstreamAddress address : pool.getAddresses())
+				poolMetrics.put(address.getAuthority(), address.getMetrics());
+
+			metrics.put(pool.getName(), poolMetrics);
+		}
+
+		return metrics;
+	}
+
+	private UpstreamPool newPool(String name, String[] hosts) throws URISyntaxException {
+		List<UpstreamAddress> poolAddresses = new ArrayList<UpstreamAddress>();
+
+		for (String host : hosts) {
+			host = host.trim();
+
+			if (host.isEmpty())
+				continue;
+
+			UpstreamAddress address = new UpstreamAddress(this.addresses.size(), host, this.ewmaWeight, this.maxFailures,
+					this.ejectionMillis, this.maxEjectionMillis, this.unhealthyThreshold);
+
+			UpstreamAddress existing = this.addresses.putIfAbsent(address.getAuthority(), address);
+
+			poolAddresses.add(existing != null ? existing : address);
+		}
+
+		UpstreamPool pool = new UpstreamPool(name, poolAddresses);
+
+		if (poolAddresses.size() > 1)
+			for (UpstreamAddress address : poolAddresses)
+				this.healthCheckUris.put(address, address.getUri(this.healthCheckPath));
+
+		return pool;
+	}
+
+	private void checkHealth() {
+		for (Map.Entry<UpstreamAddress, URI> healthCheck : this.healthCheckUris.entrySet()) {
+			UpstreamAddress address = healthCheck.getKey();
+
+			HttpRequest request = HttpRequest.newBuilder(healthCheck.getValue()).GET()
+					.timeout(Duration.ofMillis(this.healthCheckTimeoutMillis)).build();
+
+			try {
+				// completed on the scheduler thread, which is the only one to update health
+				this.healthCheckClient.sendAsync(request, BodyHandlers.discarding()).whenCompleteAsync((response, e) -> {
+					if (e != null && log.isDebugEnabled())
+						log.debug("Upstream health check failed: " + address + ": " + e);
+
+					address.healthChecked(e == null && response.statusCode() < 500);
+				}, this.healthCheckScheduler);
+			} catch (RuntimeException e) {
+				log.warn("Unable to health check upstream " + address, e);
+			}
+		}
+	}
+
+}
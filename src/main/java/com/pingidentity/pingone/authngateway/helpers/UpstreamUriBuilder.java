@@ -0,0 +1,246 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Builds the PingOne URI for a proxied request from its raw path and query,
+ * on an address chosen from the auth upstream pool.
+ *
+ * Each address's origin (https://host[:port]) is checked and built once at
+ * startup by UpstreamPools. Each path and query is checked in a single pass
+ * over its characters and then appended to the origin, so the URI is parsed
+ * once. Paths that
+ * would leave the origin are rejected with a URISyntaxException. These are
+ * paths with dot segments (also percent-encoded), encoded slashes or
+ * backslashes, NUL, or characters outside RFC 3986, and paths that do not
+ * start with a single slash, which could otherwise move the host.
+ *
+ * A flow lives on the address that created it, so flow requests are sent
+ * with getFlowUri. The address that answered /as/authorize is recorded for
+ * the flow id it redirected to (up to ping.upstream.pool.flowAffinityEntries
+ * flows, least recently used dropped first). A flow not recorded here, e.g.
+ * one started through another gateway instance, goes to the address its id
+ * hashes to. Either way a flow only moves while its address is ejected or
+ * unhealthy. Other requests are stateless and balanced request by request.
+ *
+ * URIs of hosted-UI pages and assets, which are requested over and over,
+ * are kept in a small cache so they are not parsed again.
+ */
+@Component
+public class UpstreamUriBuilder {
+
+	private static Logger log = LoggerFactory.getLogger(UpstreamUriBuilder.class);
+
+	// RFC 3986 pchar without percent-encoding (checked separately), plus '/' between segments
+	private static final boolean[] PathChars = new boolean[128];
+	// query adds '?' and, as java.net.URI does, '[' and ']'
+	private static final boolean[] QueryChars = new boolean[128];
+
+	static {
+		String pathChars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789-._~!$&'()*+,;=:@/";
+
+		for (int i = 0; i < pathChars.length(); i++) {
+			PathChars[pathChars.charAt(i)] = true;
+			QueryChars[pathChars.charAt(i)] = true;
+		}
+
+		QueryChars['?'] = true;
+		QueryChars['['] = true;
+		QueryChars[']'] = true;
+	}
+
+	@Value("${ping.upstream.uriCacheEntries:1024}")
+	private int maxCacheEntries;
+
+	@Value("${ping.upstream.pool.flowAffinityEntries:10000}")
+	private int maxFlowEntries;
+
+	@Autowired
+	private UpstreamPools upstreamPools;
+
+	// flow id to the address that started it, guarded by itself
+	private Map<String, UpstreamAddress> flowAddresses;
+
+	// one per upstream address, by UpstreamAddress.getIndex()
+	private final List<ConcurrentHashMap<String, URI>> caches = new ArrayList<ConcurrentHashMap<String, URI>>();
+
+	@PostConstruct
+	public void init() {
+		for (int i = 0; i < this.upstreamPools.getAddressCount(); i++)
+			this.caches.add(new ConcurrentHashMap<String, URI>());
+
+		this.flowAddresses = new LinkedHashMap<String, UpstreamAddress>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, UpstreamAddress> eldest) {
+				return size() > UpstreamUriBuilder.this.maxFlowEntries;
+			}
+		};
+
+		if (log.isDebugEnabled())
+			log.debug(String.format("Upstream pool: %s, uri cache entries: %s", this.upstreamPools.getAuthPool(),
+					this.maxCacheEntries));
+	}
+
+	// the pool the URIs' addresses are chosen from
+	public UpstreamPool getPool() {
+		return this.upstreamPools.getAuthPool();
+	}
+
+	public URI getUri(String path, String query) throws URISyntaxException {
+		return getUri(path, query, false);
+	}
+
+	// cacheable for paths that repeat across requests, not for those carrying a flow or user id
+	public URI getUri(String path, String query, boolean cacheable) throws URISyntaxException {
+		return getUri(this.upstreamPools.getAuthPool().choose(), path, query, cacheable);
+	}
+
+	// a request of flowId, sent to the address holding the flow
+	public URI getFlowUri(String flowId, String path, String query) throws URISyntaxException {
+		return getUri(getFlowAddress(flowId), path, query, false);
+	}
+
+	// records the address that answered uri, usually /as/authorize, as the one holding flowId
+	public void setFlowAddress(String flowId, URI uri) {
+		UpstreamAddress address = this.upstreamPools.getAddress(uri);
+
+		if (flowId == null || address == null)
+			return;
+
+		synchronized (this.flowAddresses) {
+			this.flowAddresses.put(flowId, address);
+		}
+	}
+
+	public UpstreamAddress getFlowAddress(String flowId) {
+		UpstreamAddress address;
+
+		synchronized (this.flowAddresses) {
+			address = this.flowAddresses.get(flowId);
+		}
+
+		if (address != null && address.isAvailable(System.nanoTime()))
+			return address;
+
+		return this.upstreamPools.getAuthPool().choose(flowId);
+	}
+
+	public URI getUri(UpstreamAddress address, String path, String query, boolean cacheable) throws URISyntaxException {
+		boolean hasQuery = query != null && !query.trim().isEmpty();
+		String pathAndQuery = hasQuery ? path + '?' + query : path;
+
+		ConcurrentHashMap<String, URI> cache = this.caches.get(address.getIndex());
+		URI uri = cacheable ? cache.get(pathAndQuery) : null;
+
+		if (uri != null)
+			return uri;
+
+		checkPath(path);
+
+		if (hasQuery)
+			checkChars(query, QueryChars, "query");
+
+		uri = address.getUri(pathAndQuery);
+
+		// belt and braces, checkPath should not let anything through that changes the authority
+		if (!address.getAuthority().equals(uri.getRawAuthority()))
+			throw new URISyntaxException(pathAndQuery, "Path changes the upstream host");
+
+		if (cacheable) {
+			// a full cache is emptied rather than tracked for recency, hot paths come straight back
+			if (cache.size() >= this.maxCacheEntries)
+				cache.clear();
+
+			cache.put(pathAndQuery, uri);
+		}
+
+		return uri;
+	}
+
+	private static void checkPath(String path) throws URISyntaxException {
+		if (path == null || path.isEmpty() || path.charAt(0) != '/')
+			throw new URISyntaxException(String.valueOf(path), "Path must start with /");
+
+		if (path.length() > 1 && path.charAt(1) == '/')
+			throw new URISyntaxException(path, "Path must not start with //");
+
+		checkChars(path, PathChars, "path");
+
+		// each segment, looking for . and .. written plainly or as %2e
+		int segmentStart = 1;
+
+		for (int i = 1; i <= path.length(); i++) {
+			if (i < path.length() && path.charAt(i) != '/')
+				continue;
+
+			if (isDotSegment(path, segmentStart, i))
+				throw new URISyntaxException(path, "Path must not contain . or .. segments");
+
+			segmentStart = i + 1;
+		}
+	}
+
+	private static void checkChars(String value, boolean[] allowed, String part) throws URISyntaxException {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			if (c == '%') {
+				if (i + 2 >= value.length() || !isHex(value.charAt(i + 1)) || !isHex(value.charAt(i + 2)))
+					throw new URISyntaxException(value, "Malformed escape in " + part, i);
+
+				char escaped = (char) (Character.digit(value.charAt(i + 1), 16) << 4 | Character.digit(value.charAt(i + 2), 16));
+
+				// an encoded separator or NUL in the path would be decoded into one upstream
+				if (allowed == PathChars && (escaped == '/' || escaped == '\\' || escaped == 0))
+					throw new URISyntaxException(value, "Encoded separator or NUL in " + part, i);
+
+				i += 2;
+				continue;
+			}
+
+			// java.net.URI accepts other (non-ASCII, non-control, non-space) characters as they are
+			boolean valid = c < 128 ? allowed[c] : !Character.isISOControl(c) && !Character.isSpaceChar(c);
+
+			if (!valid)
+				throw new URISyntaxException(value, "Illegal character in " + part, i);
+		}
+	}
+
+	private static boolean isDotSegment(String path, int start, int end) {
+		int dots = 0;
+
+		for (int i = start; i < end; i++) {
+			if (path.charAt(i) == '.')
+				dots++;
+			else if (path.charAt(i) == '%' && i + 2 < end && path.charAt(i + 1) == '2'
+					&& (path.charAt(i + 2) == 'e' || path.charAt(i + 2) == 'E')) {
+				dots++;
+				i += 2;
+			} else
+				return false;
+		}
+
+		return dots == 1 || dots == 2;
+	}
+
+	private static boolean isHex(char c) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+
+}
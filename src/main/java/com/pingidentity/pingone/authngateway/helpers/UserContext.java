@@ -0,0 +1,91 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONObject;
+
+/**
+ * Users API state resolved while handling one gateway request.
+ *
+ * Created by the controller per request and passed to PingOneUserHelper so
+ * the user, their id/username and their device list are loaded once and
+ * reused by enableMFA, registerEmailDevice and getUserName. Safe to share
+ * between the threads working on the same request.
+ */
+public class UserContext {
+
+	private static final JSONObject NotFound = new JSONObject();
+
+	private final Map<String, JSONObject> usersBySearch = new ConcurrentHashMap<String, JSONObject>();
+
+	private volatile JSONObject user = null;
+	private volatile JSONObject devices = null;
+	private volatile String devicesUserId = null;
+	private volatile boolean deviceRegistered = false;
+
+	public boolean hasUser(String searchKey, String searchValue) {
+		return this.usersBySearch.containsKey(getSearchKey(searchKey, searchValue));
+	}
+
+	public JSONObject getUser(String searchKey, String searchValue) {
+		JSONObject user = this.usersBySearch.get(getSearchKey(searchKey, searchValue));
+
+		return user == NotFound ? null : user;
+	}
+
+	public void putUser(String searchKey, String searchValue, JSONObject user) {
+		this.usersBySearch.put(getSearchKey(searchKey, searchValue), user == null ? NotFound : user);
+
+		if (user == null)
+			return;
+
+		this.user = user;
+
+		// later lookups by username for the same user are answered from the context
+		if (user.has("username"))
+			this.usersBySearch.putIfAbsent(getSearchKey("username", user.getString("username")), user);
+	}
+
+	public void removeNotFound(String searchKey, String searchValue) {
+		this.usersBySearch.remove(getSearchKey(searchKey, searchValue), NotFound);
+	}
+
+	public String getUserId() {
+		JSONObject user = this.user;
+
+		return user == null ? null : user.optString("id", null);
+	}
+
+	public String getUsername() {
+		JSONObject user = this.user;
+
+		return user == null ? null : user.optString("username", null);
+	}
+
+	public boolean hasDevices(String userId) {
+		return userId != null && userId.equals(this.devicesUserId);
+	}
+
+	public JSONObject getDevices() {
+		return this.devices;
+	}
+
+	public void setDevices(String userId, JSONObject devices) {
+		this.devices = devices;
+		this.devicesUserId = userId;
+	}
+
+	public boolean isDeviceRegistered() {
+		return this.deviceRegistered;
+	}
+
+	public void setDeviceRegistered(boolean deviceRegistered) {
+		this.deviceRegistered = deviceRegistered;
+	}
+
+	private static String getSearchKey(String searchKey, String searchValue) {
+		return searchKey + '\u0000' + searchValue;
+	}
+
+}
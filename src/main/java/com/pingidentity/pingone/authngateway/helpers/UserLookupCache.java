@@ -0,0 +1,229 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Short-lived cache of Users API searches keyed by (searchKey, searchValue).
+ *
+ * Searches that found no single user are cached as well, for a shorter time,
+ * and dropped as soon as the user turns up: when a search by another key
+ * finds them or when the gateway has seen a flow create them. Found users are
+ * indexed by id so invalidate only touches that user's entries. Concurrent
+ * lookups of the same key share one upstream search. Cached JSONObjects are
+ * shared between callers and must be treated as read-only.
+ */
+@Component
+public class UserLookupCache {
+
+	private static Logger log = LoggerFactory.getLogger(UserLookupCache.class);
+
+	@Value("${ping.userCache.enabled:true}")
+	private boolean enabled;
+
+	@Value("${ping.userCache.ttlSeconds:30}")
+	private long ttlSeconds;
+
+	@Value("${ping.userCache.negativeTtlSeconds:5}")
+	private long negativeTtlSeconds;
+
+	@Value("${ping.userCache.maxEntries:10000}")
+	private int maxEntries;
+
+	// guarded by entries, like keysByUserId
+	private final LinkedHashMap<String, CachedUser> entries = new LinkedHashMap<String, CachedUser>(64, 0.75f, true);
+	private final Map<String, Set<String>> keysByUserId = new HashMap<String, Set<String>>();
+
+	// every search key used so far, to find the searches that missed a user another search found
+	private final Set<String> searchKeys = ConcurrentHashMap.newKeySet();
+	private final ConcurrentHashMap<String, CompletableFuture<JSONObject>> inFlight = new ConcurrentHashMap<String, CompletableFuture<JSONObject>>();
+
+	// bumped on every invalidation so a search that started before a write is not cached after it
+	private final AtomicLong generation = new AtomicLong();
+
+	public interface UserLoader {
+		public CompletableFuture<JSONObject> load();
+	}
+
+	private static final class CachedUser {
+		private final JSONObject user;
+		private final String userId;
+		private final long expiresAt;
+
+		private CachedUser(JSONObject user, long expiresAt) {
+			this.user = user;
+			this.userId = user == null ? null : user.optString("id", null);
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	public CompletableFuture<JSONObject> get(String searchKey, String searchValue, UserLoader loader) {
+		if (!this.enabled)
+			return loader.load();
+
+		String key = getKey(searchKey, searchValue);
+
+		this.searchKeys.add(searchKey);
+
+		CachedUser cachedUser = getEntry(key);
+		if (cachedUser != null) {
+			if (log.isDebugEnabled())
+				log.debug(String.format("User cache hit: %s", searchKey));
+
+			return CompletableFuture.completedFuture(cachedUser.user);
+		}
+
+		CompletableFuture<JSONObject> loading = new CompletableFuture<JSONObject>();
+		CompletableFuture<JSONObject> existing = this.inFlight.putIfAbsent(key, loading);
+
+		// each caller gets its own copy so cancelling one does not cancel the shared search
+		if (existing != null)
+			return existing.copy();
+
+		long startGeneration = this.generation.get();
+
+		CompletableFuture<JSONObject> search;
+		try {
+			search = loader.load();
+		} catch (RuntimeException e) {
+			search = new CompletableFuture<JSONObject>();
+			search.completeExceptionally(e);
+		}
+
+		search.whenComplete((user, e) -> {
+			if (e == null && this.generation.get() == startGeneration)
+				putEntry(key, user);
+
+			this.inFlight.remove(key, loading);
+
+			if (e != null)
+				loading.completeExceptionally(e);
+			else
+				loading.complete(user);
+		});
+
+		return loading.copy();
+	}
+
+	public void invalidate(String userId) {
+		if (userId == null)
+			return;
+
+		this.generation.incrementAndGet();
+
+		synchronized (this.entries) {
+			Set<String> keys = this.keysByUserId.remove(userId);
+
+			if (keys != null)
+				for (String key : keys)
+					this.entries.remove(key);
+		}
+
+		if (log.isDebugEnabled())
+			log.debug("Invalidated cached user: " + userId);
+	}
+
+	// the user may have just been created, a search that found no one must not hide them
+	public void invalidateMissing(String searchKey, String searchValue) {
+		if (searchValue == null)
+			return;
+
+		String key = getKey(searchKey, searchValue);
+
+		// only a search already running may have missed the user
+		if (this.inFlight.containsKey(key))
+			this.generation.incrementAndGet();
+
+		synchronized (this.entries) {
+			removeMissing(key);
+		}
+	}
+
+	private CachedUser getEntry(String key) {
+		synchronized (this.entries) {
+			CachedUser cachedUser = this.entries.get(key);
+
+			if (cachedUser == null)
+				return null;
+
+			if (cachedUser.expiresAt <= System.currentTimeMillis()) {
+				removeEntry(key);
+				return null;
+			}
+
+			return cachedUser;
+		}
+	}
+
+	private void putEntry(String key, JSONObject user) {
+		long ttl = TimeUnit.SECONDS.toMillis(user == null ? this.negativeTtlSeconds : this.ttlSeconds);
+
+		if (ttl <= 0)
+			return;
+
+		CachedUser cachedUser = new CachedUser(user, System.currentTimeMillis() + ttl);
+
+		synchronized (this.entries) {
+			unindex(key, this.entries.put(key, cachedUser));
+
+			if (cachedUser.userId != null) {
+				this.keysByUserId.computeIfAbsent(cachedUser.userId, userId -> new HashSet<String>(4)).add(key);
+
+				// the user exists, earlier searches by their other attributes that found no one are stale
+				for (String searchKey : this.searchKeys) {
+					Object searchValue = user.opt(searchKey);
+
+					if (searchValue != null)
+						removeMissing(getKey(searchKey, String.valueOf(searchValue)));
+				}
+			}
+
+			Iterator<Map.Entry<String, CachedUser>> eldest = this.entries.entrySet().iterator();
+			while (this.entries.size() > this.maxEntries && eldest.hasNext()) {
+				Map.Entry<String, CachedUser> entry = eldest.next();
+				eldest.remove();
+				unindex(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private void removeMissing(String key) {
+		CachedUser cachedUser = this.entries.get(key);
+
+		if (cachedUser != null && cachedUser.user == null)
+			this.entries.remove(key);
+	}
+
+	private void removeEntry(String key) {
+		unindex(key, this.entries.remove(key));
+	}
+
+	private void unindex(String key, CachedUser cachedUser) {
+		if (cachedUser == null || cachedUser.userId == null)
+			return;
+
+		Set<String> keys = this.keysByUserId.get(cachedUser.userId);
+
+		if (keys != null && keys.remove(key) && keys.isEmpty())
+			this.keysByUserId.remove(cachedUser.userId);
+	}
+
+	private static String getKey(String searchKey, String searchValue) {
+		return searchKey + '\u0000' + searchValue;
+	}
+
+}
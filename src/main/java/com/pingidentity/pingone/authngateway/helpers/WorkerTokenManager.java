@@ -0,0 +1,333 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpRequest.Builder;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.pingidentity.pingone.authngateway.exceptions.CustomAPIErrorException;
+
+/**
+ * Holds the worker (client_credentials) access token used for the Management
+ * API.
+ *
+ * The token and its expiry are published together as one immutable value.
+ * A background task refreshes the token ahead of expiry, so calls normally
+ * never wait on /as/token. When they do, only one refresh is in flight and
+ * every caller is given that same future, so they all get its token or all
+ * fail together. After a failed refresh, callers fail at once for
+ * ping.workerToken.failureBackoffMillis rather than queueing up on a token
+ * endpoint that is down.
+ */
+@Component
+public class WorkerTokenManager {
+
+	private static Logger log = LoggerFactory.getLogger(WorkerTokenManager.class);
+
+	private static final String attributeName = "enablemfa";
+
+	@Value("${oauth2.worker.clientId}")
+	private String workerClientId;
+
+	@Value("${oauth2.worker.clientSecret}")
+	private String workerClientSecret;
+
+	// percentage of the token lifetime remaining when the background refresh runs
+	@Value("${ping.workerToken.refreshAheadPercent:25}")
+	private int refreshAheadPercent;
+
+	@Value("${ping.workerToken.expirySkewSeconds:30}")
+	private long expirySkewSeconds;
+
+	@Value("${ping.workerToken.retrySeconds:10}")
+	private long retrySeconds;
+
+	@Value("${ping.workerToken.failureBackoffMillis:1000}")
+	private long failureBackoffMillis;
+
+	private static final String TokenPath = "/as/token";
+
+	@Autowired
+	private UpstreamClient httpClient;
+
+	@Autowired
+	private UpstreamPools upstreamPools;
+
+	private ScheduledExecutorService refreshScheduler;
+
+	private final AtomicReference<WorkerToken> currentToken = new AtomicReference<WorkerToken>();
+	private final AtomicReference<CompletableFuture<WorkerToken>> refreshing = new AtomicReference<CompletableFuture<WorkerToken>>();
+	private volatile RefreshFailure lastFailure = null;
+
+	private final LatencyMetrics refreshMetrics = new LatencyMetrics();
+	private final LongAdder refreshWaits = new LongAdder();
+
+	private static final class WorkerToken {
+		private final String accessToken;
+		private final long refreshAt;
+		private final long expiresAt;
+
+		private WorkerToken(String accessToken, long refreshAt, long expiresAt) {
+			this.accessToken = accessToken;
+			this.refreshAt = refreshAt;
+			this.expiresAt = expiresAt;
+		}
+
+		private boolean isUsable() {
+			return System.currentTimeMillis() < this.expiresAt;
+		}
+	}
+
+	private static final class RefreshFailure {
+		private final CustomAPIErrorException exception;
+		private final long retryAt;
+
+		private RefreshFailure(CustomAPIErrorException exception, long retryAt) {
+			this.exception = exception;
+			this.retryAt = retryAt;
+		}
+	}
+
+	@PostConstruct
+	public void init() {
+		this.refreshScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "worker-token-refresh");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		// warm the token so the first registration does not pay for it
+		scheduleRefresh(null, 0);
+	}
+
+	@PreDestroy
+	public void destroy() {
+		this.refreshScheduler.shutdownNow();
+	}
+
+	public String getAccessToken() throws CustomAPIErrorException {
+		return ConcurrentCalls.await(getAccessTokenAsync(), attributeName);
+	}
+
+	// never blocks: completes at once with a usable token, otherwise when the shared refresh does
+	public CompletableFuture<String> getAccessTokenAsync() {
+		WorkerToken token = this.currentToken.get();
+
+		if (token != null && token.isUsable()) {
+			if (log.isDebugEnabled())
+				log.debug("Using existing accessToken");
+
+			return CompletableFuture.completedFuture(token.accessToken);
+		}
+
+		RefreshFailure failure = this.lastFailure;
+
+		if (failure != null && System.currentTimeMillis() < failure.retryAt)
+			return ConcurrentCalls.failed(failure.exception);
+
+		return refresh(token).thenApply(refreshed -> refreshed.accessToken);
+	}
+
+	public Map<String, Object> getMetrics() {
+		WorkerToken token = this.currentToken.get();
+		RefreshFailure failure = this.lastFailure;
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("usable", token != null && token.isUsable());
+		metrics.put("expiresInMillis", token == null ? 0 : Math.max(0, token.expiresAt - System.currentTimeMillis()));
+		metrics.put("refreshing", this.refreshing.get() != null);
+		metrics.put("refreshWaits", this.refreshWaits.sum());
+		metrics.put("refreshes", this.refreshMetrics.snapshot());
+		metrics.put("lastFailure", failure == null ? null : failure.exception.getDetailedMessage());
+
+		return metrics;
+	}
+
+	// joins the refresh in flight, or starts one
+	private CompletableFuture<WorkerToken> refresh(WorkerToken staleToken) {
+		CompletableFuture<WorkerToken> refresh = new CompletableFuture<WorkerToken>();
+
+		while (!this.refreshing.compareAndSet(null, refresh)) {
+			CompletableFuture<WorkerToken> inFlight = this.refreshing.get();
+
+			if (inFlight != null) {
+				this.refreshWaits.increment();
+
+				// each caller gets its own copy so cancelling one does not cancel the shared refresh
+				return inFlight.copy();
+			}
+		}
+
+		// another caller refreshed between this one reading the token and starting a refresh
+		WorkerToken token = this.currentToken.get();
+		if (token != null && token != staleToken && token.isUsable()) {
+			this.refreshing.compareAndSet(refresh, null);
+			refresh.complete(token);
+
+			return refresh.copy();
+		}
+
+		long start = System.nanoTime();
+
+		CompletableFuture<WorkerToken> request;
+		try {
+			request = requestTokenAsync();
+		} catch (RuntimeException e) {
+			request = new CompletableFuture<WorkerToken>();
+			request.completeExceptionally(e);
+		}
+
+		request.whenComplete((refreshed, e) -> {
+			this.refreshMetrics.record(System.nanoTime() - start, e == null);
+
+			CustomAPIErrorException failure = e == null ? null : toCustomAPIErrorException(e);
+
+			// the token or the failure is published before the next refresh can start
+			if (failure == null) {
+				this.currentToken.set(refreshed);
+				this.lastFailure = null;
+
+				if (log.isDebugEnabled())
+					log.debug("Refreshed worker access token: " + this.refreshMetrics);
+
+				if (refreshed.refreshAt > System.currentTimeMillis())
+					scheduleRefresh(refreshed, refreshed.refreshAt - System.currentTimeMillis());
+			} else
+				this.lastFailure = new RefreshFailure(failure, System.currentTimeMillis() + this.failureBackoffMillis);
+
+			this.refreshing.compareAndSet(refresh, null);
+
+			if (failure == null)
+				refresh.complete(refreshed);
+			else
+				refresh.completeExceptionally(failure);
+		});
+
+		return refresh.copy();
+	}
+
+	private void scheduleRefresh(WorkerToken token, long delayMillis) {
+		try {
+			this.refreshScheduler.schedule(() -> backgroundRefresh(token), delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			if (log.isDebugEnabled())
+				log.debug("Worker token refresh not scheduled, shutting down");
+		}
+	}
+
+	private void backgroundRefresh(WorkerToken token) {
+		// a foreground refresh already replaced this token and scheduled its own refresh
+		if (token != null && this.currentToken.get() != token)
+			return;
+
+		refresh(token).whenComplete((refreshed, e) -> {
+			if (e == null)
+				return;
+
+			CustomAPIErrorException failure = toCustomAPIErrorException(e);
+
+			// a failed warm-up is left to the first caller so bad credentials are not retried forever
+			if (token == null) {
+				log.warn("Unable to obtain initial worker access token: " + failure.getDetailedMessage());
+				return;
+			}
+
+			log.warn("Background worker token refresh failed, retrying in " + this.retrySeconds + "s: "
+					+ failure.getDetailedMessage());
+
+			scheduleRefresh(this.currentToken.get(), TimeUnit.SECONDS.toMillis(this.retrySeconds));
+		});
+	}
+
+	private CompletableFuture<WorkerToken> requestTokenAsync() {
+
+		String payload = String.format("grant_type=client_credentials&client_id=%s&client_secret=%s",
+				this.workerClientId, this.workerClientSecret);
+
+		URI tokenEndpoint = null;
+
+		try {
+			tokenEndpoint = this.upstreamPools.getAuthPool().choose().getUri(TokenPath);
+		} catch (URISyntaxException e) {
+			return ConcurrentCalls.failed(new CustomAPIErrorException(attributeName, "UNKNOWN", "Unknown issue. Please contact support",
+					"UNKNOWN", "Unknown issue. Unable to create token endpoint."));
+		}
+
+		Builder targetRequestBuilder = httpClient.newRequestBuilder(tokenEndpoint)
+				.POST(BodyPublishers.ofString(payload));
+
+		targetRequestBuilder.header("content-type", "application/x-www-form-urlencoded");
+		HttpRequest targetRequest = targetRequestBuilder.build();
+
+		return httpClient.sendAsync(this.upstreamPools.getAuthPool(), targetRequest, BodyHandlers.ofString()).handle((targetResponse, e) -> {
+			if (e != null)
+				throw new CompletionException(ConcurrentCalls.noResponse(attributeName, "Bad http response when retrieving access token.", e));
+
+			try {
+				return readToken(targetResponse);
+			} catch (CustomAPIErrorException ce) {
+				throw new CompletionException(ce);
+			}
+		});
+	}
+
+	private static CustomAPIErrorException toCustomAPIErrorException(Throwable e) {
+		Throwable cause = ConcurrentCalls.unwrap(e);
+
+		if (cause instanceof CustomAPIErrorException)
+			return (CustomAPIErrorException) cause;
+
+		return new CustomAPIErrorException(attributeName, "UNKNOWN", "Unknown issue. Please contact support", "UNKNOWN",
+				"Unknown issue. " + cause);
+	}
+
+	private WorkerToken readToken(HttpResponse<String> targetResponse) throws CustomAPIErrorException {
+
+		if (targetResponse.statusCode() != 200)
+			throw ConcurrentCalls.badStatus(attributeName, "Bad http response when retrieving access token", targetResponse.statusCode());
+
+		String responsePayload = targetResponse.body();
+
+		if (responsePayload == null)
+			throw new CustomAPIErrorException(attributeName, "UNKNOWN", "Unknown issue. Please contact support",
+					"UNKNOWN", "Unknown issue. Cannot receive access token response");
+
+		JSONObject atResponse = new JSONObject(responsePayload);
+
+		if (!atResponse.has("access_token"))
+			throw new CustomAPIErrorException(attributeName, "UNKNOWN", "Unknown issue. Please contact support",
+					"UNKNOWN", "Unknown issue. Cannot locate access_token.");
+
+		long now = System.currentTimeMillis();
+		long lifetimeMillis = atResponse.has("expires_in") ? atResponse.getLong("expires_in") * 1000 : 0;
+
+		long expiresAt = now + Math.max(0, lifetimeMillis - Math.min(TimeUnit.SECONDS.toMillis(this.expirySkewSeconds), lifetimeMillis / 10));
+		long refreshAt = now + (lifetimeMillis * (100 - this.refreshAheadPercent) / 100);
+
+		return new WorkerToken(atResponse.getString("access_token"), Math.min(refreshAt, expiresAt), expiresAt);
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.pingidentity.pingone.authngateway.store;
+
+import com.pingidentity.pingone.authngateway.exceptions.EncryptionException;
+import com.pingidentity.pingone.authngateway.helpers.RetainedValues;
+
+/**
+ * Where the retained values of a flow are kept between its requests. The
+ * client always holds an ST-RC cookie for the flow; depending on the store
+ * that cookie is the encrypted values or a signed handle to values held on
+ * the server.
+ *
+ * The store is chosen with ping.retainValues.store. An external store can be
+ * added as a Spring component implementing this interface, or through a
+ * spring-session SessionRepository with the "session" store.
+ */
+public interface IRetainedValuesStore {
+
+	// the values for a flow from the client's cookie value, empty values if the cookie does not hold any
+	public RetainedValues load(String flowId, String handle) throws EncryptionException;
+
+	// keeps the values and returns the cookie value the client should now hold, or null if its cookie is still current
+	public String save(String flowId, RetainedValues retainedValues) throws EncryptionException;
+
+	// the flow no longer needs its values
+	public void remove(String flowId, RetainedValues retainedValues);
+
+	public String info();
+}
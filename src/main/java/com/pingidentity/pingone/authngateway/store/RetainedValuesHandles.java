@@ -0,0 +1,125 @@
+package com.pingidentity.pingone.authngateway.store;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.pingidentity.pingone.authngateway.exceptions.EncryptionException;
+
+/**
+ * The cookie value for values held by a server-side store: a random id and
+ * an HMAC-SHA256 over the flow id and that id, "id.signature".
+ *
+ * The signature binds the handle to its flow, so a handle cannot be replayed
+ * against another flow or guessed, and a forged one is rejected before the
+ * store is looked up.
+ */
+public class RetainedValuesHandles {
+
+	private static Logger log = LoggerFactory.getLogger(RetainedValuesHandles.class);
+
+	private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+	private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+
+	private static final int KeyLength = 32;
+	private static final int IdLength = 16;
+	private static final int SignatureLength = 16;
+
+	private static final ThreadLocal<Mac> mac = ThreadLocal.withInitial(() -> {
+		try {
+			return Mac.getInstance("HmacSHA256");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private final SecretKeySpec signingKey;
+	private final SecureRandom secureRandom = new SecureRandom();
+
+	private RetainedValuesHandles(byte[] key) {
+		this.signingKey = new SecretKeySpec(key, "HmacSHA256");
+	}
+
+	// handleKey: base64url, at least 256 bits. without one a random key is used, valid until this instance restarts
+	public static RetainedValuesHandles forKey(String handleKey) throws EncryptionException {
+		if (handleKey == null || handleKey.trim().isEmpty()) {
+			log.warn("No ping.retainValues.handleKey configured, retained values handles are only valid on this instance until it restarts");
+
+			byte[] key = new byte[KeyLength];
+			new SecureRandom().nextBytes(key);
+
+			return new RetainedValuesHandles(key);
+		}
+
+		byte[] key;
+		try {
+			key = decoder.decode(handleKey.trim());
+		} catch (IllegalArgumentException e) {
+			throw new EncryptionException("Retained values handleKey is not base64url", e);
+		}
+
+		if (key.length < KeyLength)
+			throw new EncryptionException("Retained values handleKey must be at least 256 bits");
+
+		return new RetainedValuesHandles(key);
+	}
+
+	public String newId() {
+		byte[] id = new byte[IdLength];
+		this.secureRandom.nextBytes(id);
+
+		return encoder.encodeToString(id);
+	}
+
+	public String sign(String flowId, String id) {
+		return id + "." + encoder.encodeToString(signature(flowId, id));
+	}
+
+	// the id of a handle signed for this flow, null for anything else
+	public String verify(String flowId, String handle) {
+		if (handle == null)
+			return null;
+
+		int separator = handle.indexOf('.');
+
+		if (separator <= 0 || separator != handle.lastIndexOf('.'))
+			return null;
+
+		String id = handle.substring(0, separator);
+
+		byte[] signature;
+		try {
+			signature = decoder.decode(handle.substring(separator + 1));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+
+		return MessageDigest.isEqual(signature(flowId, id), signature) ? id : null;
+	}
+
+	private byte[] signature(String flowId, String id) {
+		Mac mac = RetainedValuesHandles.mac.get();
+
+		try {
+			mac.init(this.signingKey);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+
+		mac.update(flowId.getBytes(StandardCharsets.UTF_8));
+		mac.update((byte) '.');
+		mac.update(id.getBytes(StandardCharsets.US_ASCII));
+
+		return Arrays.copyOf(mac.doFinal(), SignatureLength);
+	}
+
+}
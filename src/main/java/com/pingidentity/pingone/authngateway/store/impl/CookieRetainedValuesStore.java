@@ -0,0 +1,43 @@
+package com.pingidentity.pingone.authngateway.store.impl;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.pingidentity.pingone.authngateway.exceptions.EncryptionException;
+import com.pingidentity.pingone.authngateway.helpers.EncryptionHelper;
+import com.pingidentity.pingone.authngateway.helpers.RetainedValues;
+import com.pingidentity.pingone.authngateway.store.IRetainedValuesStore;
+
+/**
+ * The default store: the values are encrypted into the ST-RC cookie itself,
+ * so nothing is kept on the server.
+ */
+@Component
+@ConditionalOnProperty(name = "ping.retainValues.store", havingValue = "cookie", matchIfMissing = true)
+public class CookieRetainedValuesStore implements IRetainedValuesStore {
+
+	@Autowired
+	private EncryptionHelper encryptionHelper;
+
+	@Override
+	public RetainedValues load(String flowId, String handle) throws EncryptionException {
+		return this.encryptionHelper.read(flowId, handle);
+	}
+
+	@Override
+	public String save(String flowId, RetainedValues retainedValues) throws EncryptionException {
+		return this.encryptionHelper.generate(flowId, retainedValues);
+	}
+
+	@Override
+	public void remove(String flowId, RetainedValues retainedValues) {
+		// expiring the cookie removes the values
+	}
+
+	@Override
+	public String info() {
+		return "cookie";
+	}
+
+}
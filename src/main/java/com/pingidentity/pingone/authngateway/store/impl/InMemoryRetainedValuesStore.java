@@ -0,0 +1,210 @@
+package com.pingidentity.pingone.authngateway.store.impl;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.pingidentity.pingone.authngateway.exceptions.EncryptionException;
+import com.pingidentity.pingone.authngateway.helpers.RetainedValues;
+import com.pingidentity.pingone.authngateway.store.IRetainedValuesStore;
+import com.pingidentity.pingone.authngateway.store.RetainedValuesHandles;
+
+/**
+ * Keeps the retained values in this instance's memory; the cookie only holds
+ * a signed handle, so a request costs an HMAC and a map lookup instead of a
+ * decrypt.
+ *
+ * Entries are spread over independently locked shards, each an access-ordered
+ * map bounded to its share of maxEntries. An entry expires ttlSeconds after
+ * it was last used and expired or least recently used entries are evicted as
+ * new ones are added. Only suitable for a single instance (or sticky
+ * sessions); use the "session" store to share values between instances.
+ */
+@Component
+@ConditionalOnProperty(name = "ping.retainValues.store", havingValue = "memory")
+public class InMemoryRetainedValuesStore implements IRetainedValuesStore {
+
+	private static Logger log = LoggerFactory.getLogger(InMemoryRetainedValuesStore.class);
+
+	@Value("${ping.retainValues.claims}")
+	private String[] retainAttributeList;
+
+	@Value("${ping.retainValues.handleKey:}")
+	private String handleKey;
+
+	@Value("${ping.retainValues.ttlSeconds:1800}")
+	private long ttlSeconds;
+
+	@Value("${ping.retainValues.memory.maxEntries:100000}")
+	private int maxEntries;
+
+	@Value("${ping.retainValues.memory.shards:16}")
+	private int shardCount;
+
+	private RetainedValuesHandles handles;
+
+	private Shard[] shards;
+
+	@PostConstruct
+	public void init() throws EncryptionException {
+		this.handles = RetainedValuesHandles.forKey(this.handleKey);
+
+		int shardCount = Math.max(1, this.shardCount);
+		int shardCapacity = Math.max(1, (this.maxEntries + shardCount - 1) / shardCount);
+
+		this.shards = new Shard[shardCount];
+
+		for (int i = 0; i < shardCount; i++)
+			this.shards[i] = new Shard(shardCapacity);
+
+		if (log.isDebugEnabled())
+			log.debug(String.format("In-memory retained values store: maxEntries=%s, shards=%s, ttl=%ss", this.maxEntries, shardCount, this.ttlSeconds));
+	}
+
+	@Override
+	public RetainedValues load(String flowId, String handle) {
+		String id = this.handles.verify(flowId, handle);
+
+		if (id == null) {
+			if (log.isDebugEnabled())
+				log.debug("Ignoring retained values handle not signed for flow: " + flowId);
+
+			return new RetainedValues();
+		}
+
+		Entry entry = getShard(id).get(id, flowId, System.nanoTime(), TimeUnit.SECONDS.toNanos(this.ttlSeconds));
+
+		if (entry == null)
+			return new RetainedValues();
+
+		RetainedValues retainedValues = new RetainedValues(handle);
+		entry.claims.forEach(retainedValues::put);
+		retainedValues.clean();
+
+		return retainedValues;
+	}
+
+	@Override
+	public String save(String flowId, RetainedValues retainedValues) {
+		String id = retainedValues.isIssued() ? this.handles.verify(flowId, retainedValues.getHandle()) : null;
+		boolean newHandle = id == null;
+
+		if (newHandle)
+			id = this.handles.newId();
+
+		Entry entry = new Entry(flowId, Collections.unmodifiableMap(retainedValues.getClaims(this.retainAttributeList)),
+				System.nanoTime() + TimeUnit.SECONDS.toNanos(this.ttlSeconds));
+
+		getShard(id).put(id, entry);
+
+		// an existing handle now refers to the new values
+		return newHandle ? this.handles.sign(flowId, id) : null;
+	}
+
+	@Override
+	public void remove(String flowId, RetainedValues retainedValues) {
+		String id = retainedValues.isIssued() ? this.handles.verify(flowId, retainedValues.getHandle()) : null;
+
+		if (id != null)
+			getShard(id).remove(id);
+	}
+
+	@Override
+	public String info() {
+		return "memory";
+	}
+
+	public int size() {
+		int size = 0;
+
+		for (Shard shard : this.shards)
+			size += shard.count();
+
+		return size;
+	}
+
+	private Shard getShard(String id) {
+		int hash = id.hashCode();
+
+		return this.shards[((hash ^ (hash >>> 16)) & 0x7fffffff) % this.shards.length];
+	}
+
+	private static final class Entry {
+
+		private final String flowId;
+		private final Map<String, String> claims;
+		private long expiresAt;
+
+		private Entry(String flowId, Map<String, String> claims, long expiresAt) {
+			this.flowId = flowId;
+			this.claims = claims;
+			this.expiresAt = expiresAt;
+		}
+
+		private boolean isExpired(long now) {
+			return now - this.expiresAt > 0;
+		}
+	}
+
+	private static final class Shard {
+
+		private final int capacity;
+
+		private final LinkedHashMap<String, Entry> entries;
+
+		private Shard(int capacity) {
+			this.capacity = capacity;
+
+			this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+					return size() > Shard.this.capacity || eldest.getValue().isExpired(System.nanoTime());
+				}
+			};
+		}
+
+		private synchronized Entry get(String id, String flowId, long now, long ttlNanos) {
+			Entry entry = this.entries.get(id);
+
+			if (entry == null)
+				return null;
+
+			if (entry.isExpired(now)) {
+				this.entries.remove(id);
+				return null;
+			}
+
+			if (!entry.flowId.equals(flowId))
+				return null;
+
+			entry.expiresAt = now + ttlNanos;
+
+			return entry;
+		}
+
+		private synchronized void put(String id, Entry entry) {
+			this.entries.put(id, entry);
+		}
+
+		private synchronized void remove(String id) {
+			this.entries.remove(id);
+		}
+
+		private synchronized int count() {
+			return this.entries.size();
+		}
+	}
+
+}
@@ -0,0 +1,140 @@
+package com.pingidentity.pingone.authngateway.store.impl;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.session.Session;
+import org.springframework.session.SessionRepository;
+import org.springframework.stereotype.Component;
+
+import com.pingidentity.pingone.authngateway.exceptions.EncryptionException;
+import com.pingidentity.pingone.authngateway.helpers.RetainedValues;
+import com.pingidentity.pingone.authngateway.store.IRetainedValuesStore;
+import com.pingidentity.pingone.authngateway.store.RetainedValuesHandles;
+
+/**
+ * Keeps the retained values in a spring-session SessionRepository, one
+ * session per flow, so any store spring-session supports (Redis, JDBC,
+ * Hazelcast) can hold them and share them between instances. The cookie holds
+ * a signed handle to the session id.
+ *
+ * Uses the application's SessionRepository bean and refuses to start without
+ * one: spring-session's in-process MapSessionRepository only evicts expired
+ * sessions when they are read, so abandoned flows would never be freed (the
+ * "memory" store is the bounded in-process choice). ping.retainValues.handleKey
+ * must be the same on every instance.
+ */
+@Component
+@ConditionalOnProperty(name = "ping.retainValues.store", havingValue = "session")
+public class SessionRetainedValuesStore implements IRetainedValuesStore {
+
+	private static Logger log = LoggerFactory.getLogger(SessionRetainedValuesStore.class);
+
+	private static final String FlowIdAttribute = "ST-RC.flowId";
+	private static final String ClaimsAttribute = "ST-RC.claims";
+
+	@Value("${ping.retainValues.claims}")
+	private String[] retainAttributeList;
+
+	@Value("${ping.retainValues.handleKey:}")
+	private String handleKey;
+
+	@Value("${ping.retainValues.ttlSeconds:1800}")
+	private long ttlSeconds;
+
+	@Autowired
+	private ObjectProvider<SessionRepository<?>> sessionRepositoryProvider;
+
+	private SessionRepository<Session> sessionRepository;
+
+	private RetainedValuesHandles handles;
+
+	@SuppressWarnings("unchecked")
+	@PostConstruct
+	public void init() throws EncryptionException {
+		this.handles = RetainedValuesHandles.forKey(this.handleKey);
+
+		SessionRepository<?> sessionRepository = this.sessionRepositoryProvider.getIfAvailable();
+
+		if (sessionRepository == null)
+			throw new IllegalStateException("ping.retainValues.store=session needs a SessionRepository bean (e.g. spring-session-data-redis),"
+					+ " use ping.retainValues.store=memory to keep retained values in this instance");
+
+		this.sessionRepository = (SessionRepository<Session>) sessionRepository;
+
+		if (log.isDebugEnabled())
+			log.debug("Session retained values store: " + this.sessionRepository.getClass().getName());
+	}
+
+	@Override
+	public RetainedValues load(String flowId, String handle) {
+		String id = this.handles.verify(flowId, handle);
+
+		if (id == null) {
+			if (log.isDebugEnabled())
+				log.debug("Ignoring retained values handle not signed for flow: " + flowId);
+
+			return new RetainedValues();
+		}
+
+		Session session = this.sessionRepository.findById(id);
+
+		if (session == null || !flowId.equals(session.getAttribute(FlowIdAttribute)))
+			return new RetainedValues();
+
+		Map<String, String> claims = session.getAttribute(ClaimsAttribute);
+
+		RetainedValues retainedValues = new RetainedValues(handle);
+
+		if (claims != null)
+			claims.forEach(retainedValues::put);
+
+		retainedValues.clean();
+
+		return retainedValues;
+	}
+
+	@Override
+	public String save(String flowId, RetainedValues retainedValues) {
+		String id = retainedValues.isIssued() ? this.handles.verify(flowId, retainedValues.getHandle()) : null;
+		Session session = id != null ? this.sessionRepository.findById(id) : null;
+
+		boolean newHandle = session == null;
+
+		if (newHandle) {
+			session = this.sessionRepository.createSession();
+			session.setMaxInactiveInterval(Duration.ofSeconds(this.ttlSeconds));
+			session.setAttribute(FlowIdAttribute, flowId);
+		}
+
+		session.setAttribute(ClaimsAttribute, new HashMap<String, String>(retainedValues.getClaims(this.retainAttributeList)));
+
+		this.sessionRepository.save(session);
+
+		// an existing handle now refers to the new values
+		return newHandle ? this.handles.sign(flowId, session.getId()) : null;
+	}
+
+	@Override
+	public void remove(String flowId, RetainedValues retainedValues) {
+		String id = retainedValues.isIssued() ? this.handles.verify(flowId, retainedValues.getHandle()) : null;
+
+		if (id != null)
+			this.sessionRepository.deleteById(id);
+	}
+
+	@Override
+	public String info() {
+		return "session";
+	}
+
+}
@@ -1,6 +1,11 @@
 package com.pingidentity.pingone.authngateway.validators;
 
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
 import org.json.JSONObject;
 
@@ -11,4 +16,26 @@ public interface IValidator {
 	public void validate(Map<String, Object> retainedValues, Map<String, Object> requestPayload) throws CustomAPIErrorException;
 	public boolean isApplicable(Map<String, Object> userRequestPayload);
 	public String info();
+	
+	//request attributes that trigger this validator, isApplicable is only asked when one of them is in the payload.
+	//empty to be asked for every payload
+	public default Set<String> getTriggerAttributes() {
+		return Collections.emptySet();
+	}
+	
+	//validators that call other services override this, doing any blocking work on the executor and failing the stage
+	//with a CustomAPIErrorException. a stage still running when the validation is abandoned is cancelled.
+	//by default validate runs on the calling thread
+	public default CompletionStage<Void> validateAsync(Map<String, Object> retainedValues, Map<String, Object> requestPayload, Executor executor) {
+		CompletableFuture<Void> validated = new CompletableFuture<Void>();
+		
+		try {
+			validate(retainedValues, requestPayload);
+			validated.complete(null);
+		} catch (CustomAPIErrorException e) {
+			validated.completeExceptionally(e);
+		}
+		
+		return validated;
+	}
 }
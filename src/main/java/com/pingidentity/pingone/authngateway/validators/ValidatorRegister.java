@@ -1,29 +1,137 @@
 package com.pingidentity.pingone.authngateway.validators;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+/**
+ * Validators registered at startup, indexed by the request attributes that
+ * trigger them.
+ *
+ * Each registration publishes a new immutable index through a volatile
+ * field, so request threads always see a complete index without locking.
+ * Finding the validators for a payload costs one lookup per payload
+ * attribute, plus the validators that declare no trigger attributes.
+ */
 @Component
 public class ValidatorRegister {
 	
 	private static Logger log = LoggerFactory.getLogger(ValidatorRegister.class);
 
-	private final List<IValidator> registeredValidators = new ArrayList<IValidator>();
+	private volatile Index index = new Index(Collections.emptyList());
 	
-	public void register(IValidator validator)
+	public synchronized void register(IValidator validator)
 	{
 		if(log.isDebugEnabled())
-			log.debug("Registering validator: " + validator.info());
+			log.debug("Registering validator: " + validator.info() + ", triggered by: " + validator.getTriggerAttributes());
 		
-		this.registeredValidators.add(validator);
+		List<IValidator> validators = new ArrayList<IValidator>(this.index.validators);
+		validators.add(validator);
+		
+		this.index = new Index(validators);
 	}
 	
 	public List<IValidator> getRegisteredValidators()
 	{
-		return this.registeredValidators;
+		return this.index.validators;
+	}
+	
+	//validators triggered by the payload that say they apply to it, in registration order
+	public List<IValidator> getApplicableValidators(Map<String, Object> userRequestPayload)
+	{
+		Index index = this.index;
+		
+		if(index.validators.isEmpty())
+			return Collections.emptyList();
+		
+		//positions of the candidates, sorted afterwards so validators run in registration order
+		int[] candidates = Arrays.copyOf(index.untriggered, index.untriggered.length + 4);
+		int count = index.untriggered.length;
+		
+		for(String attributeName: userRequestPayload.keySet())
+		{
+			int[] positions = index.byAttribute.get(attributeName);
+			
+			if(positions == null)
+				continue;
+			
+			if(count + positions.length > candidates.length)
+				candidates = Arrays.copyOf(candidates, Math.max(candidates.length * 2, count + positions.length));
+			
+			System.arraycopy(positions, 0, candidates, count, positions.length);
+			count += positions.length;
+		}
+		
+		Arrays.sort(candidates, 0, count);
+		
+		List<IValidator> applicable = null;
+		
+		for(int i = 0; i < count; i++)
+		{
+			//a validator triggered by several attributes is asked once
+			if(i > 0 && candidates[i] == candidates[i - 1])
+				continue;
+			
+			IValidator validator = index.validators.get(candidates[i]);
+			
+			if(!validator.isApplicable(userRequestPayload))
+				continue;
+			
+			if(applicable == null)
+				applicable = new ArrayList<IValidator>(1);
+			
+			applicable.add(validator);
+		}
+		
+		return applicable == null ? Collections.emptyList() : applicable;
+	}
+	
+	private static final class Index {
+		
+		private final List<IValidator> validators;
+		
+		//positions in validators
+		private final Map<String, int[]> byAttribute;
+		private final int[] untriggered;
+		
+		private Index(List<IValidator> validators)
+		{
+			Map<String, List<Integer>> byAttribute = new HashMap<String, List<Integer>>();
+			List<Integer> untriggered = new ArrayList<Integer>();
+			
+			for(int position = 0; position < validators.size(); position++)
+			{
+				Set<String> triggerAttributes = validators.get(position).getTriggerAttributes();
+				
+				if(triggerAttributes == null || triggerAttributes.isEmpty())
+				{
+					untriggered.add(position);
+					continue;
+				}
+				
+				for(String attributeName: triggerAttributes)
+					byAttribute.computeIfAbsent(attributeName, key -> new ArrayList<Integer>()).add(position);
+			}
+			
+			Map<String, int[]> index = new HashMap<String, int[]>();
+			byAttribute.forEach((attributeName, positions) -> index.put(attributeName, toArray(positions)));
+			
+			this.validators = Collections.unmodifiableList(new ArrayList<IValidator>(validators));
+			this.byAttribute = Collections.unmodifiableMap(index);
+			this.untriggered = toArray(untriggered);
+		}
+		
+		private static int[] toArray(List<Integer> positions)
+		{
+			return positions.stream().mapToInt(Integer::intValue).toArray();
+		}
 	}
 }
@@ -0,0 +1,179 @@
+package com.pingidentity.pingone.authngateway.validators;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.pingidentity.pingone.authngateway.exceptions.CustomAPIErrorException;
+import com.pingidentity.pingone.authngateway.helpers.ConcurrentCalls;
+
+/**
+ * Runs the validators that apply to a request.
+ *
+ * Every validator, a lone one included, is started on a bounded executor so
+ * synchronous and async validators are timed out alike. Each has
+ * ping.validators.timeoutMillis from when it starts running, and all of them
+ * together have ping.validators.deadlineMillis from when they were submitted,
+ * queueing included. The first validator to fail cancels the others
+ * (interrupting any still running) and its error is the one returned.
+ *
+ * Only when the executor's queue is full does a validator start on the
+ * request thread; a synchronous one then runs to completion there, and
+ * fails with the timeout if it overran, as the request thread cannot
+ * interrupt itself.
+ */
+@Component
+public class ValidatorRunner {
+
+	private static Logger log = LoggerFactory.getLogger(ValidatorRunner.class);
+
+	private static final String Target = "user";
+
+	@Value("${ping.validators.threads:8}")
+	private int threads;
+
+	@Value("${ping.validators.maxPending:256}")
+	private int maxPending;
+
+	@Value("${ping.validators.timeoutMillis:5000}")
+	private long timeoutMillis;
+
+	@Value("${ping.validators.deadlineMillis:10000}")
+	private long deadlineMillis;
+
+	private ThreadPoolExecutor executor;
+
+	@PostConstruct
+	public void init() {
+		AtomicInteger threadCount = new AtomicInteger();
+
+		this.executor = new ThreadPoolExecutor(this.threads, this.threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(this.maxPending), runnable -> {
+					Thread thread = new Thread(runnable, "validator-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+
+		if (log.isDebugEnabled())
+			log.debug(String.format("Validator threads: %s, timeoutMillis: %s, deadlineMillis: %s", this.threads,
+					this.timeoutMillis, this.deadlineMillis));
+	}
+
+	@PreDestroy
+	public void destroy() {
+		this.executor.shutdownNow();
+	}
+
+	public void validate(List<IValidator> validators, Map<String, Object> retainedValues,
+			Map<String, Object> userRequestPayload) throws CustomAPIErrorException {
+		if (validators.isEmpty())
+			return;
+
+		ConcurrentCalls calls = new ConcurrentCalls();
+
+		for (IValidator validator : validators)
+			calls.add(start(validator, retainedValues, userRequestPayload), this.deadlineMillis);
+
+		try {
+			calls.whenAll().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw interrupted();
+		} catch (ExecutionException e) {
+			throw failure(e);
+		}
+	}
+
+	private static CustomAPIErrorException failure(ExecutionException e) {
+		if (ConcurrentCalls.unwrap(e) instanceof TimeoutException)
+			return timedOut();
+
+		return ConcurrentCalls.toCustomAPIErrorException(e, Target);
+	}
+
+	//runs the validator on the executor, its timeout starting once it is running rather than while it is queued
+	private CompletableFuture<Void> start(IValidator validator, Map<String, Object> retainedValues,
+			Map<String, Object> userRequestPayload) {
+		CompletableFuture<Void> call = new CompletableFuture<Void>();
+
+		Runnable run = () -> {
+			if (call.isDone())
+				return;
+
+			call.orTimeout(this.timeoutMillis, TimeUnit.MILLISECONDS);
+
+			try {
+				CompletableFuture<Void> stage = validator.validateAsync(retainedValues, userRequestPayload, this.executor)
+						.toCompletableFuture();
+
+				stage.whenComplete((result, e) -> {
+					if (e != null)
+						call.completeExceptionally(e);
+					else
+						call.complete(null);
+				});
+
+				call.whenComplete((result, e) -> {
+					if (e != null)
+						stage.cancel(true);
+				});
+			} catch (RuntimeException e) {
+				call.completeExceptionally(e);
+			}
+		};
+
+		Future<?> task;
+
+		try {
+			task = this.executor.submit(run);
+		} catch (RejectedExecutionException e) {
+			//a full queue runs the validator on the request thread, which slows new requests rather than failing them
+			run.run();
+
+			return call;
+		}
+
+		//timed out, or cancelled because another validator failed
+		call.whenComplete((result, e) -> {
+			if (!(e instanceof TimeoutException || e instanceof CancellationException))
+				return;
+
+			task.cancel(true);
+
+			if (log.isDebugEnabled() && e instanceof TimeoutException)
+				log.debug("Validator timed out: " + validator.info());
+		});
+
+		return call;
+	}
+
+	private static CustomAPIErrorException timedOut() {
+		return new CustomAPIErrorException(Target, "UNKNOWN", "Unknown issue. Please contact support", "TIMEOUT",
+				"Unknown issue. Validation timed out.");
+	}
+
+	private static CustomAPIErrorException interrupted() {
+		return new CustomAPIErrorException(Target, "UNKNOWN", "Unknown issue. Please contact support", "UNKNOWN",
+				"Unknown issue. Interrupted waiting for validation.");
+	}
+
+}
@@ -1,6 +1,8 @@
 package com.pingidentity.pingone.authngateway.validators.impl;
 
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.PostConstruct;
 
@@ -77,6 +79,11 @@ public class InvoiceNumber implements IValidator {
 		return userRequestPayload.containsKey(this.attributeName);
 	}
 
+	@Override
+	public Set<String> getTriggerAttributes() {
+		return Collections.singleton(this.attributeName);
+	}
+
 	@Override
 	public String info() {
 		return InvoiceNumber.class.getCanonicalName() + ":" + this.attributeName;
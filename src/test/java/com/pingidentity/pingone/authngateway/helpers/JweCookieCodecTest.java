@@ -0,0 +1,220 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.stream.Stream;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jose4j.jwa.AlgorithmConstraints;
+import org.jose4j.jwe.JsonWebEncryption;
+import org.jose4j.jwe.KeyManagementAlgorithmIdentifiers;
+import org.jose4j.keys.AesKey;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import com.pingidentity.pingone.authngateway.exceptions.EncryptionException;
+
+class JweCookieCodecTest {
+
+	private static final byte[] Key = Base64.getUrlDecoder().decode("Fdh9u8rINxfivbrianbbVT1u232VQBZYKx1HGAGPt2I");
+	private static final byte[] OtherKey = Base64.getUrlDecoder().decode("AAh9u8rINxfivbrianbbVT1u232VQBZYKx1HGAGPt2I");
+
+	private static final String Payload = "{\"sub\":\"flow-1\",\"iss\":\"env\",\"iat\":1700000000,\"e\":\"user@example.com\",\"u\":\"ünïcödé\"}";
+
+	// every header a codec can write: method x kid x zip
+	static Stream<Arguments> codecs() {
+		return Stream.of(JweCookieCodec.A128CBC_HS256, JweCookieCodec.A256GCM)
+				.flatMap(method -> Stream.of(null, "2026-10")
+						.flatMap(kid -> Stream.of(false, true).map(compressed -> Arguments.of(method, kid, compressed))));
+	}
+
+	@ParameterizedTest
+	@MethodSource("codecs")
+	void roundTrip(String method, String kid, boolean compressed) throws EncryptionException {
+		JweCookieCodec codec = JweCookieCodec.forKey(Key, method, kid, compressed);
+
+		String cookie = codec.encrypt(Payload);
+
+		assertEquals(codec.getEncodedHeader(), JweCookieCodec.getEncodedHeader(cookie));
+		assertEquals(Payload, codec.decrypt(cookie));
+		assertNotEquals(cookie, codec.encrypt(Payload), "each cookie has its own iv");
+	}
+
+	@ParameterizedTest
+	@MethodSource("codecs")
+	void jose4jReadsCodecCookies(String method, String kid, boolean compressed) throws Exception {
+		String cookie = JweCookieCodec.forKey(Key, method, kid, compressed).encrypt(Payload);
+
+		JsonWebEncryption jwe = new JsonWebEncryption();
+		jwe.setAlgorithmConstraints(new AlgorithmConstraints(AlgorithmConstraints.ConstraintType.PERMIT, KeyManagementAlgorithmIdentifiers.DIRECT));
+		jwe.setContentEncryptionAlgorithmConstraints(new AlgorithmConstraints(AlgorithmConstraints.ConstraintType.PERMIT, method));
+		jwe.setCompactSerialization(cookie);
+		jwe.setKey(new AesKey(Key));
+
+		assertEquals(Payload, jwe.getPayload());
+		assertEquals(kid, jwe.getKeyIdHeaderValue());
+	}
+
+	@ParameterizedTest
+	@MethodSource("codecs")
+	void codecReadsJose4jCookies(String method, String kid, boolean compressed) throws Exception {
+		JsonWebEncryption jwe = new JsonWebEncryption();
+		jwe.setPayload(Payload);
+		jwe.setAlgorithmHeaderValue(KeyManagementAlgorithmIdentifiers.DIRECT);
+		jwe.setEncryptionMethodHeaderParameter(method);
+
+		if (kid != null)
+			jwe.setKeyIdHeaderValue(kid);
+
+		if (compressed)
+			jwe.enableDefaultCompression();
+
+		jwe.setKey(new AesKey(Key));
+
+		String cookie = jwe.getCompactSerialization();
+		JweCookieCodec codec = JweCookieCodec.forKey(Key, method, kid, compressed);
+
+		assertEquals(codec.getEncodedHeader(), JweCookieCodec.getEncodedHeader(cookie));
+		assertEquals(Payload, codec.decrypt(cookie));
+	}
+
+	@Test
+	void rejectsKeysOfTheWrongSizeAndUnknownMethods() {
+		assertNull(JweCookieCodec.forKey(Arrays.copyOf(Key, 16), JweCookieCodec.A128CBC_HS256, null, false));
+		assertNull(JweCookieCodec.forKey(null));
+		assertNull(JweCookieCodec.forKey(Key, "A192GCM", null, false));
+	}
+
+	@ParameterizedTest
+	@MethodSource("codecs")
+	void rejectsTamperedCookies(String method, String kid, boolean compressed) throws EncryptionException {
+		JweCookieCodec codec = JweCookieCodec.forKey(Key, method, kid, compressed);
+		String[] parts = codec.encrypt(Payload).split("\\.", -1);
+
+		// iv, ciphertext and tag, one bit flipped in each
+		for (int part = 2; part <= 4; part++) {
+			String[] tampered = parts.clone();
+			tampered[part] = flipBit(parts[part]);
+
+			assertThrows(EncryptionException.class, () -> codec.decrypt(String.join(".", tampered)), "part " + part);
+		}
+
+		// a cookie is only read by the codec for its header, and only with its key
+		assertThrows(EncryptionException.class, () -> JweCookieCodec.forKey(Key, method, kid, !compressed).decrypt(String.join(".", parts)));
+		assertThrows(EncryptionException.class, () -> JweCookieCodec.forKey(OtherKey, method, kid, compressed).decrypt(String.join(".", parts)));
+
+		// the header is authenticated: a cookie moved under another header fails the tag check
+		JweCookieCodec otherKid = JweCookieCodec.forKey(Key, method, "other", compressed);
+		String[] moved = parts.clone();
+		moved[0] = otherKid.getEncodedHeader();
+
+		assertThrows(EncryptionException.class, () -> otherKid.decrypt(String.join(".", moved)));
+	}
+
+	@Test
+	void rejectsMalformedSerializations() {
+		JweCookieCodec codec = JweCookieCodec.forKey(Key, JweCookieCodec.A256GCM, null, false);
+		String header = codec.getEncodedHeader();
+
+		for (String malformed : new String[] { header, header + "....", header + ".key.aXY.Y3Q.dGFn", header + "..!!.Y3Q.dGFn",
+				header + "..aXY.Y3Q.dGFn", header + "..aXY.Y3Q.dGFn.extra" })
+			assertThrows(EncryptionException.class, () -> codec.decrypt(malformed), malformed);
+	}
+
+	@Test
+	void rejectsPayloadsThatInflatePastTheLimit() throws Exception {
+		JweCookieCodec codec = JweCookieCodec.forKey(Key, JweCookieCodec.A256GCM, null, true);
+
+		// a few hundred bytes on the wire, 1MB once inflated
+		char[] large = new char[1 << 20];
+		Arrays.fill(large, 'a');
+		String cookie = codec.encrypt(new String(large));
+
+		EncryptionException e = assertThrows(EncryptionException.class, () -> codec.decrypt(cookie));
+		assertEquals("Compressed JWE payload is too large", e.getMessage());
+	}
+
+	@Test
+	void acceptsPayloadsUpToTheLimit() throws EncryptionException {
+		JweCookieCodec codec = JweCookieCodec.forKey(Key, JweCookieCodec.A128CBC_HS256, null, true);
+
+		char[] limit = new char[16384];
+		Arrays.fill(limit, 'a');
+		String payload = new String(limit);
+
+		assertEquals(payload, codec.decrypt(codec.encrypt(payload)));
+	}
+
+	@Test
+	void rejectsMalformedCompressedPayloads() throws Exception {
+		JweCookieCodec codec = JweCookieCodec.forKey(Key, JweCookieCodec.A256GCM, null, true);
+
+		// authentic cookies for the zip header whose plaintext is not a complete DEFLATE stream
+		byte[] notDeflate = Payload.getBytes(StandardCharsets.UTF_8);
+		byte[] truncated = Arrays.copyOf(deflate(Payload), 4);
+
+		for (byte[] plaintext : new byte[][] { notDeflate, truncated })
+			assertThrows(EncryptionException.class, () -> codec.decrypt(sealGcm(codec.getEncodedHeader(), plaintext)));
+	}
+
+	private static String flipBit(String base64url) {
+		byte[] bytes = Base64.getUrlDecoder().decode(base64url);
+		bytes[bytes.length / 2] ^= 1;
+
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+
+	private static byte[] deflate(String payload) throws Exception {
+		JsonWebEncryption jwe = new JsonWebEncryption();
+		jwe.setPayload(payload);
+		jwe.setAlgorithmHeaderValue(KeyManagementAlgorithmIdentifiers.DIRECT);
+		jwe.setEncryptionMethodHeaderParameter(JweCookieCodec.A256GCM);
+		jwe.enableDefaultCompression();
+		jwe.setKey(new AesKey(Key));
+
+		String[] parts = jwe.getCompactSerialization().split("\\.", -1);
+		byte[] iv = Base64.getUrlDecoder().decode(parts[2]);
+		byte[] sealed = concat(Base64.getUrlDecoder().decode(parts[3]), Base64.getUrlDecoder().decode(parts[4]));
+
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(Key, "AES"), new GCMParameterSpec(128, iv));
+		cipher.updateAAD(parts[0].getBytes(StandardCharsets.US_ASCII));
+
+		return cipher.doFinal(sealed);
+	}
+
+	// A256GCM compact JWE of raw plaintext under encodedHeader, bypassing the codec's compression
+	private static String sealGcm(String encodedHeader, byte[] plaintext) throws Exception {
+		byte[] iv = new byte[12];
+
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(Key, "AES"), new GCMParameterSpec(128, iv));
+		cipher.updateAAD(encodedHeader.getBytes(StandardCharsets.US_ASCII));
+
+		byte[] sealed = cipher.doFinal(plaintext);
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+
+		return encodedHeader + ".." + encoder.encodeToString(iv) + "."
+				+ encoder.encodeToString(Arrays.copyOf(sealed, sealed.length - 16)) + "."
+				+ encoder.encodeToString(Arrays.copyOfRange(sealed, sealed.length - 16, sealed.length));
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] joined = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, joined, a.length, b.length);
+
+		return joined;
+	}
+
+}
@@ -0,0 +1,131 @@
+package com.pingidentity.pingone.authngateway.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class UpstreamUriBuilderTest {
+
+	private UpstreamUriBuilder uriBuilder;
+
+	@BeforeEach
+	void setUp() throws URISyntaxException {
+		UpstreamPools upstreamPools = new UpstreamPools();
+		ReflectionTestUtils.setField(upstreamPools, "authHosts", new String[] { "auth.pingone.com" });
+		ReflectionTestUtils.setField(upstreamPools, "apiHosts", new String[] { "api.pingone.com" });
+		ReflectionTestUtils.setField(upstreamPools, "healthCheckPath", "/");
+		upstreamPools.init();
+
+		this.uriBuilder = new UpstreamUriBuilder();
+		ReflectionTestUtils.setField(this.uriBuilder, "upstreamPools", upstreamPools);
+		ReflectionTestUtils.setField(this.uriBuilder, "maxCacheEntries", 16);
+		ReflectionTestUtils.setField(this.uriBuilder, "maxFlowEntries", 16);
+		this.uriBuilder.init();
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {
+			"/as/authorize",
+			"/5a8d2f3c-0e4b-4c7a-9b61-2d3e4f5a6b7c/as/authorize",
+			"/flows/03d7e1b0-6c8a-4f6e-9d53-b2a7f1c4e8d9",
+			"/flows/03d7e1b0-6c8a-4f6e-9d53-b2a7f1c4e8d9/flowExecutionCallback",
+			"/flowExecutions/8b1f2e3d-4c5a-6b7c-8d9e-0f1a2b3c4d5e",
+			"/signon/",
+			"/signon/assets/main.3f9c2a.js",
+			"/signon/assets/fonts/EndUserFont-Regular.woff2",
+			"/signon/assets/images/logo%20dark.png",
+			"/...",
+			"/a..b/c.d",
+			"/~user/a-b_c;v=1:@!$&'()*+,="
+	})
+	void acceptsOrdinaryPaths(String path) throws URISyntaxException {
+		URI uri = this.uriBuilder.getUri(path, null);
+
+		assertEquals("auth.pingone.com", uri.getRawAuthority());
+		assertEquals(path, uri.getRawPath());
+	}
+
+	@Test
+	void acceptsQueries() throws URISyntaxException {
+		String query = "client_id=6c8a&response_type=code&scope=openid%20profile&redirect_uri=https%3A%2F%2Fapp.example.com%2Fcb&state=a/b?c[0]";
+
+		URI uri = this.uriBuilder.getUri("/as/authorize", query);
+
+		assertEquals("auth.pingone.com", uri.getRawAuthority());
+		assertEquals("/as/authorize", uri.getRawPath());
+		assertEquals(query, uri.getRawQuery());
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {
+			"",
+			"as/authorize",
+			"evil.com/as/authorize",
+			"@evil.com/",
+			"//evil.com",
+			"//evil.com/as/authorize",
+			"/.",
+			"/..",
+			"/../as/authorize",
+			"/signon/..",
+			"/signon/../../as/token",
+			"/signon/./assets",
+			"/%2e%2E/as/token",
+			"/signon/%2e%2e/as/token",
+			"/signon/.%2E/as/token",
+			"/signon/%2E/assets",
+			"/signon%2f..%2fas/token",
+			"/signon%2F..%2Fas/token",
+			"/signon%5c..%5cas/token",
+			"/signon%5C..%5Cas/token",
+			"/signon%00.js",
+			"/signon\\..\\as/token",
+			"/signon/ assets",
+			"/signon/assets#fragment",
+			"/signon?query",
+			"/signon/%zz",
+			"/signon/%2",
+			"/signon/\u0000",
+			"/signon/\r\nHost: evil.com"
+	})
+	void rejectsPathsThatCouldLeaveTheOrigin(String path) {
+		assertThrows(URISyntaxException.class, () -> this.uriBuilder.getUri(path, null));
+	}
+
+	@Test
+	void rejectsNullPaths() {
+		assertThrows(URISyntaxException.class, () -> this.uriBuilder.getUri(null, null));
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = { "a=1#fragment", "a=%zz", "a=b c", "a=\r\n" })
+	void rejectsMalformedQueries(String query) {
+		assertThrows(URISyntaxException.class, () -> this.uriBuilder.getUri("/as/authorize", query));
+	}
+
+	@Test
+	void cachesOnlyCacheablePaths() throws URISyntaxException {
+		String path = "/signon/assets/main.3f9c2a.js";
+
+		assertSame(this.uriBuilder.getUri(path, null, true), this.uriBuilder.getUri(path, null, true));
+		assertEquals(this.uriBuilder.getUri(path, null, true), this.uriBuilder.getUri(path, null, false));
+	}
+
+	@Test
+	void sendsFlowRequestsToTheFlowsAddress() throws URISyntaxException {
+		URI uri = this.uriBuilder.getFlowUri("03d7e1b0", "/flows/03d7e1b0", null);
+
+		assertEquals("https://auth.pingone.com/flows/03d7e1b0", uri.toString());
+		assertThrows(URISyntaxException.class, () -> this.uriBuilder.getFlowUri("03d7e1b0", "/flows/../as/token", null));
+	}
+
+}